@@ -0,0 +1,87 @@
+package com.code.fauch.horcrux;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the execution of a populate script of N INSERT statements against an in-memory H2 database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecuteBenchmark {
+
+    @Param({"1000", "10000"})
+    public int statements;
+
+    @Param({"0", "100"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    private Path script;
+
+    private Connection conn;
+
+    private int databases = 0;
+
+    @Setup(Level.Trial)
+    public void writeScript() throws IOException {
+        this.script = Files.createTempFile("populate", ".sql");
+        Files.writeString(this.script, Scripts.inserts(this.statements));
+    }
+
+    @Setup(Level.Invocation)
+    public void createDatabase() throws SQLException {
+        final JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:execute" + this.databases++);
+        this.conn = ds.getConnection();
+        this.conn.setAutoCommit(false);
+        try (Statement statement = this.conn.createStatement()) {
+            statement.execute("CREATE TABLE pets (id INT PRIMARY KEY, name VARCHAR(64), owner VARCHAR(64))");
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropDatabase() throws SQLException {
+        this.conn.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteScript() throws IOException {
+        Files.deleteIfExists(this.script);
+    }
+
+    @Benchmark
+    public void populate() throws IOException, SQLException {
+        try (ScriptParser parser = ScriptParser.open(this.script, this.mapped)) {
+            DataSourceUtils.execute(this.conn, parser::next, new DataSourceUtils.Options().batchSize(this.batchSize));
+        }
+        this.conn.commit();
+    }
+
+}
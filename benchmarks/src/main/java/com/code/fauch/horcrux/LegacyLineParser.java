@@ -0,0 +1,39 @@
+package com.code.fauch.horcrux;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.StringJoiner;
+
+/**
+ * Copy of the line-joining parser used by <code>DataSourceUtils</code> before the streaming
+ * <code>ScriptParser</code>, kept as a reference for the benchmarks.
+ */
+final class LegacyLineParser {
+
+    private LegacyLineParser() {
+    }
+
+    /**
+     * Splits the script and gives each statement to the black hole.
+     *
+     * @param reader the reader open on the script (not null)
+     * @param hole the black hole consuming the statements (not null)
+     * @throws IOException if unable to read the script
+     */
+    static void parse(final BufferedReader reader, final Blackhole hole) throws IOException {
+        String line = null;
+        StringJoiner joiner = new StringJoiner(" ");
+        while ((line = reader.readLine()) != null) {
+            if(line.length() > 0 && line.charAt(0) == '-' || line.length() == 0 )
+                continue;
+            joiner.add(line);
+            if (line.endsWith(";")) {
+                hole.consume(joiner.toString());
+                joiner = new StringJoiner(" ");
+            }
+        }
+    }
+
+}
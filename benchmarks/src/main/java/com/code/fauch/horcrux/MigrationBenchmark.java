@@ -0,0 +1,115 @@
+package com.code.fauch.horcrux;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures <code>Migration.update</code> against in-memory H2 databases: creation of an empty database followed by
+ * an upgrade chain of N versions, and update of a database already up to date.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MigrationBenchmark {
+
+    @Param({"3", "50"})
+    public int versions;
+
+    @Param({"false", "true"})
+    public boolean fingerprint;
+
+    private Path scripts;
+
+    private Migration migration;
+
+    private JdbcDataSource current;
+
+    private Connection currentHolder;
+
+    private JdbcDataSource empty;
+
+    private Connection emptyHolder;
+
+    private int databases = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        this.scripts = Files.createTempDirectory("horcrux-bench");
+        Scripts.chain(this.scripts, this.versions, 1000);
+        this.migration = new Migration.Builder()
+                .versionTable("HORCRUX_VERSIONS")
+                .createSchema(true)
+                .runUpdates(true)
+                .checkFingerprint(this.fingerprint)
+                .withScripts(this.scripts)
+                .build();
+        this.current = dataSource("current");
+        this.currentHolder = this.current.getConnection();
+        this.migration.update(this.current);
+    }
+
+    @Setup(Level.Invocation)
+    public void createEmptyDatabase() throws SQLException {
+        this.empty = dataSource("empty" + this.databases++);
+        this.emptyHolder = this.empty.getConnection();
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropEmptyDatabase() throws SQLException {
+        this.emptyHolder.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException, IOException {
+        this.currentHolder.close();
+        try (Stream<Path> files = Files.walk(this.scripts)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void updateEmptyDatabase() throws SQLException, IOException {
+        this.migration.update(this.empty);
+    }
+
+    @Benchmark
+    public void updateCurrentDatabase() throws SQLException, IOException {
+        this.migration.update(this.current);
+    }
+
+    /**
+     * Creates an in-memory database kept alive while one of its connections is open.
+     * @param name the name of the database
+     * @return the data source
+     */
+    private static JdbcDataSource dataSource(final String name) {
+        final JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:" + name);
+        return ds;
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.code.fauch.horcrux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming <code>ScriptParser</code> with the former line-joining parser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptParserBenchmark {
+
+    @Param({"100", "10000"})
+    public int statements;
+
+    @Param({"inserts", "complex"})
+    public String shape;
+
+    private String script;
+
+    @Setup
+    public void setUp() {
+        this.script = "inserts".equals(this.shape) ? Scripts.inserts(this.statements) : Scripts.complex(this.statements);
+    }
+
+    @Benchmark
+    public void legacyLineParser(final Blackhole hole) throws IOException {
+        LegacyLineParser.parse(new BufferedReader(new StringReader(this.script)), hole);
+    }
+
+    @Benchmark
+    public void streamingReader(final Blackhole hole) throws IOException {
+        try (ScriptParser parser = new ScriptParser(new StringReader(this.script))) {
+            SqlStatement next;
+            while ((next = parser.next()) != null) {
+                hole.consume(next);
+            }
+        }
+    }
+
+    @Benchmark
+    public void streamingBuffer(final Blackhole hole) throws IOException {
+        try (ScriptParser parser = new ScriptParser(CharBuffer.wrap(this.script))) {
+            SqlStatement next;
+            while ((next = parser.next()) != null) {
+                hole.consume(next);
+            }
+        }
+    }
+
+}
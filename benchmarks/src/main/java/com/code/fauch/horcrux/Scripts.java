@@ -0,0 +1,83 @@
+package com.code.fauch.horcrux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generators of the SQL scripts used by the benchmarks.
+ */
+final class Scripts {
+
+    private Scripts() {
+    }
+
+    /**
+     * Generates a script of simple one line INSERT statements.
+     *
+     * @param count the number of statements
+     * @return the script
+     */
+    static String inserts(final int count) {
+        final StringBuilder script = new StringBuilder(count * 80);
+        script.append("-- generated populate script\n");
+        for (int i = 0; i < count; i++) {
+            script.append("INSERT INTO pets (id, name, owner) VALUES (")
+                    .append(i)
+                    .append(", 'pet ")
+                    .append(i)
+                    .append("', 'owner ")
+                    .append(i % 17)
+                    .append("');\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Generates a script of multi-line statements with comments and quoted literals.
+     *
+     * @param count the number of statements
+     * @return the script
+     */
+    static String complex(final int count) {
+        final StringBuilder script = new StringBuilder(count * 200);
+        for (int i = 0; i < count; i++) {
+            script.append("-- statement ").append(i).append('\n')
+                    .append("UPDATE pets\n")
+                    .append("   SET name = 'it''s pet ").append(i).append("',\n")
+                    .append("       owner = \"owner\" /* keep owner */\n")
+                    .append(" WHERE id = ").append(i).append(";\n")
+                    .append('\n');
+        }
+        return script.toString();
+    }
+
+    /**
+     * Writes a script directory with a chain of versions: <code>schema.sql</code> creates the version table at
+     * version 1 with all the known versions, <code>populate.sql</code> declares all the versions again and each
+     * <code>upgrade_to_vN.sql</code> adds a column to a table.
+     *
+     * @param dir the directory to write (not null)
+     * @param versions the number of versions
+     * @param rows the number of INSERT statements of <code>schema.sql</code>
+     * @throws IOException if unable to write the scripts
+     */
+    static void chain(final Path dir, final int versions, final int rows) throws IOException {
+        final StringBuilder versionRows = new StringBuilder();
+        versionRows.append("MERGE INTO HORCRUX_VERSIONS (number, script) KEY(number) VALUES (1, NULL);\n");
+        for (int v = 2; v <= versions; v++) {
+            versionRows.append("MERGE INTO HORCRUX_VERSIONS (number, script) KEY(number) VALUES (")
+                    .append(v).append(", 'upgrade_to_v").append(v).append(".sql');\n");
+            Files.writeString(dir.resolve("upgrade_to_v" + v + ".sql"),
+                    "-- upgrade to v" + v + "\nALTER TABLE pets ADD COLUMN c" + v + " INT;\n");
+        }
+        Files.writeString(dir.resolve("schema.sql"),
+                "CREATE TABLE IF NOT EXISTS HORCRUX_VERSIONS (number INT NOT NULL, script VARCHAR(64), active BOOLEAN);\n"
+                + "CREATE TABLE IF NOT EXISTS pets (id INT PRIMARY KEY, name VARCHAR(64), owner VARCHAR(64));\n"
+                + versionRows
+                + "UPDATE HORCRUX_VERSIONS SET active = (number = 1);\n"
+                + inserts(rows));
+        Files.writeString(dir.resolve("populate.sql"), versionRows);
+    }
+
+}
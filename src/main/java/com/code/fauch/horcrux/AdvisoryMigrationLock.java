@@ -0,0 +1,53 @@
+package com.code.fauch.horcrux;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Migration lock based on PostgreSQL session advisory locks.
+ */
+final class AdvisoryMigrationLock implements MigrationLock {
+
+    private static final String TAKE_LOCK = "SELECT pg_try_advisory_lock(?)";
+    private static final String RELEASE_LOCK = "SELECT pg_advisory_unlock(?)";
+
+    /**
+     * The key of the advisory lock.
+     */
+    private final long key;
+
+    /**
+     * Constructor.
+     * @param key the key of the advisory lock
+     */
+    AdvisoryMigrationLock(final long key) {
+        this.key = key;
+    }
+
+    @Override
+    public Handle tryAcquire(final Connection conn) throws SQLException {
+        if (!call(conn, TAKE_LOCK)) {
+            return null;
+        }
+        return () -> call(conn, RELEASE_LOCK);
+    }
+
+    /**
+     * Calls an advisory lock function.
+     * @param conn the open connection (not null)
+     * @param query the query calling the function (not null)
+     * @return the result of the function
+     * @throws SQLException if unable to call the function due to some SQL errors.
+     */
+    private boolean call(final Connection conn, final String query) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setLong(1, this.key);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() && result.getBoolean(1);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,369 @@
+package com.code.fauch.horcrux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An <code>UPDATE</code> or <code>DELETE</code> statement run in keyset paginated chunks, declared in a script by the
+ * directive <code>-- horcrux:chunked key=id size=10000 pause=100</code> written just before the statement.
+ * <p>
+ * The key column splits the table in chunks of <code>size</code> rows, in key order; the statement is run once per
+ * chunk, restricted to the keys of the chunk, with an optional pause in milliseconds between two chunks. The key
+ * should be indexed, unique and short (a number or an UUID) since the last key of each chunk is stored to resume.
+ * </p>
+ */
+final class ChunkedStatement {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedStatement.class);
+
+    /**
+     * The directive of the chunked statements.
+     */
+    static final String DIRECTIVE = ScriptParser.DIRECTIVE_PREFIX + "chunked";
+
+    /**
+     * The default number of rows of a chunk.
+     */
+    private static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * The statements that can be chunked, with the name of their table.
+     */
+    private static final Pattern TARGET = Pattern.compile("^\\s*(?:UPDATE|DELETE\\s+FROM)\\s+([^\\s(]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Callback notified after each chunk.
+     */
+    @FunctionalInterface
+    interface Progress {
+
+        /**
+         * Notified after running the statement on a chunk.
+         *
+         * @param chunk the number of the chunk (from 1)
+         * @param last the last key of the chunk
+         * @param rows the number of rows updated by the chunk
+         * @param duration the duration of the chunk
+         * @throws SQLException if unable to commit the chunk
+         */
+        void chunkExecuted(int chunk, Object last, long rows, Duration duration) throws SQLException;
+
+    }
+
+    /**
+     * The name of the table.
+     */
+    private final String table;
+
+    /**
+     * The name of the key column.
+     */
+    private final String key;
+
+    /**
+     * The number of rows of a chunk.
+     */
+    private final int size;
+
+    /**
+     * The pause between two chunks, in milliseconds.
+     */
+    private final long pause;
+
+    /**
+     * The statement restricted to the first chunk.
+     */
+    private final String firstChunk;
+
+    /**
+     * The statement restricted to the next chunks.
+     */
+    private final String nextChunk;
+
+    /**
+     * Constructor.
+     *
+     * @param sql the statement to run by chunks (not null)
+     * @param directive the directive of the statement (not null)
+     * @throws SQLException if the directive or the statement can't be chunked
+     */
+    ChunkedStatement(final String sql, final String directive) throws SQLException {
+        Objects.requireNonNull(sql, "sql is missing");
+        String key = null;
+        int size = DEFAULT_SIZE;
+        long pause = 0;
+        final String[] options = Objects.requireNonNull(directive, "directive is missing").trim().split("\\s+");
+        for (int i = 1; i < options.length; i++) {
+            final int eq = options[i].indexOf('=');
+            final String name = eq < 0 ? options[i] : options[i].substring(0, eq);
+            final String value = eq < 0 ? "" : options[i].substring(eq + 1);
+            try {
+                switch (name) {
+                    case "key":
+                        key = value;
+                        break;
+                    case "size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "pause":
+                        pause = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new SQLException("Unknown option of " + DIRECTIVE + ": " + options[i]);
+                }
+            } catch (NumberFormatException err) {
+                throw new SQLException("Invalid option of " + DIRECTIVE + ": " + options[i], err);
+            }
+        }
+        if (key == null || key.isEmpty()) {
+            throw new SQLException("Missing key option of " + DIRECTIVE);
+        }
+        if (size < 1 || pause < 0) {
+            throw new SQLException("Invalid options of " + DIRECTIVE + ": " + directive);
+        }
+        final Matcher target = TARGET.matcher(sql);
+        if (!target.find()) {
+            throw new SQLException("Only UPDATE and DELETE statements can be chunked: " + sql);
+        }
+        this.table = target.group(1);
+        this.key = key;
+        this.size = size;
+        this.pause = pause;
+        this.firstChunk = restrict(sql, key + " <= ?");
+        this.nextChunk = restrict(sql, key + " > ? AND " + key + " <= ?");
+    }
+
+    /**
+     * Tells whether the given directive declares a chunked statement.
+     *
+     * @param directive the directive (null if none)
+     * @return true if the statement must be run by chunks
+     */
+    static boolean isChunked(final String directive) {
+        return directive != null && (directive.equals(DIRECTIVE) || directive.startsWith(DIRECTIVE + " "));
+    }
+
+    /**
+     * Runs the statement chunk by chunk.
+     *
+     * @param conn the open connection (not null)
+     * @param from the last key of the chunks already done, as stored by a previous run (null to start from the first
+     *             chunk)
+     * @param control the timeout and cancellation of the statements (null for none)
+     * @param progress the callback notified after each chunk (not null)
+     * @return the total number of rows updated
+     * @throws SQLException if unable to run a chunk or if the update is cancelled
+     */
+    long execute(final Connection conn, final String from, final ExecutionControl control,
+                 final Progress progress) throws SQLException {
+        final String bounds = String.format("SELECT MAX(k) FROM (SELECT %s AS k FROM %s ORDER BY %s FETCH FIRST %d ROWS ONLY) c",
+                this.key, this.table, this.key, this.size);
+        final String nextBounds = String.format("SELECT MAX(k) FROM (SELECT %s AS k FROM %s WHERE %s > ? ORDER BY %s FETCH FIRST %d ROWS ONLY) c",
+                this.key, this.table, this.key, this.key, this.size);
+        Object last = from == null ? null : parseKey(conn, from);
+        if (last != null) {
+            LOGGER.info("resuming chunked update of {} after {} = {}", this.table, this.key, last);
+        }
+        try (PreparedStatement firstBound = conn.prepareStatement(bounds);
+             PreparedStatement nextBound = conn.prepareStatement(nextBounds);
+             PreparedStatement first = conn.prepareStatement(this.firstChunk);
+             PreparedStatement next = conn.prepareStatement(this.nextChunk)) {
+            final List<PreparedStatement> statements = List.of(firstBound, nextBound, first, next);
+            if (control != null) {
+                for (PreparedStatement statement : statements) {
+                    control.register(statement);
+                }
+            }
+            try {
+                return execute(firstBound, nextBound, first, next, last, control, progress);
+            } finally {
+                if (control != null) {
+                    statements.forEach(control::unregister);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the statement chunk by chunk, with the prepared statements.
+     *
+     * @param firstBound the query of the last key of the first chunk (not null)
+     * @param nextBound the query of the last key of the next chunks (not null)
+     * @param first the statement restricted to the first chunk (not null)
+     * @param next the statement restricted to the next chunks (not null)
+     * @param from the last key of the chunks already done (null to start from the first chunk)
+     * @param control the timeout and cancellation of the statements (null for none)
+     * @param progress the callback notified after each chunk (not null)
+     * @return the total number of rows updated
+     * @throws SQLException if unable to run a chunk or if the update is cancelled
+     */
+    private long execute(final PreparedStatement firstBound, final PreparedStatement nextBound,
+                         final PreparedStatement first, final PreparedStatement next, final Object from,
+                         final ExecutionControl control, final Progress progress) throws SQLException {
+        Object last = from;
+        long total = 0;
+        int chunk = 0;
+        while (true) {
+            if (control != null) {
+                control.check();
+            }
+            final Object upper;
+            if (last == null) {
+                upper = bound(firstBound);
+            } else {
+                nextBound.setObject(1, last);
+                upper = bound(nextBound);
+            }
+            if (upper == null) {
+                break;
+            }
+            if (chunk > 0 && this.pause > 0) {
+                pause();
+            }
+            final long start = System.nanoTime();
+            final long rows;
+            if (last == null) {
+                first.setObject(1, upper);
+                rows = first.executeUpdate();
+            } else {
+                next.setObject(1, last);
+                next.setObject(2, upper);
+                rows = next.executeUpdate();
+            }
+            chunk++;
+            total += rows;
+            last = upper;
+            LOGGER.info("chunk {} of {}: {} rows updated up to {} = {} ({} rows so far)", chunk, this.table, rows,
+                    this.key, last, total);
+            progress.chunkExecuted(chunk, last, rows, Duration.ofNanos(System.nanoTime() - start));
+        }
+        return total;
+    }
+
+    /**
+     * Reads the last key of the next chunk.
+     *
+     * @param statement the prepared query of the bound (not null)
+     * @return the last key or null if there is no more row
+     * @throws SQLException if unable to run the query
+     */
+    private static Object bound(final PreparedStatement statement) throws SQLException {
+        try (ResultSet result = statement.executeQuery()) {
+            return result.next() ? result.getObject(1) : null;
+        }
+    }
+
+    /**
+     * Converts a stored key to the type of the key column.
+     *
+     * @param conn the open connection (not null)
+     * @param value the stored key (not null)
+     * @return the key
+     * @throws SQLException if unable to read the type of the key column
+     */
+    private Object parseKey(final Connection conn, final String value) throws SQLException {
+        final int type;
+        try (Statement statement = conn.createStatement();
+             ResultSet result = statement.executeQuery(String.format("SELECT %s FROM %s WHERE 1 = 0", this.key, this.table))) {
+            type = result.getMetaData().getColumnType(1);
+        }
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return Long.parseLong(value);
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return new BigDecimal(value);
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+                return value;
+            default:
+                try {
+                    return UUID.fromString(value);
+                } catch (IllegalArgumentException err) {
+                    return value;
+                }
+        }
+    }
+
+    /**
+     * Waits between two chunks.
+     *
+     * @throws SQLException if interrupted
+     */
+    private void pause() throws SQLException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(this.pause);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while running chunked update of " + this.table, err);
+        }
+    }
+
+    /**
+     * Adds a condition to the <code>WHERE</code> clause of a statement, creating the clause if needed.
+     * The <code>WHERE</code> clause must be the last clause of the statement.
+     *
+     * @param sql the statement (not null)
+     * @param condition the condition to add (not null)
+     * @return the restricted statement
+     */
+    static String restrict(final String sql, final String condition) {
+        final int where = findWhere(sql);
+        if (where < 0) {
+            return sql + " WHERE " + condition;
+        }
+        return sql.substring(0, where) + "WHERE " + condition + " AND (" + sql.substring(where + 5).trim() + ")";
+    }
+
+    /**
+     * Finds the <code>WHERE</code> keyword of a statement, out of quotes and parentheses.
+     *
+     * @param sql the statement (not null)
+     * @return the position of the keyword or -1 if none
+     */
+    private static int findWhere(final String sql) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && (c == 'W' || c == 'w') && sql.regionMatches(true, i, "WHERE", 0, 5)
+                    && (i == 0 || !ScriptParser.isIdentifierPart(sql.charAt(i - 1)))
+                    && (i + 5 == sql.length() || !ScriptParser.isIdentifierPart(sql.charAt(i + 5)))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
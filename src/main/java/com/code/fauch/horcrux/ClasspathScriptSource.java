@@ -0,0 +1,132 @@
+package com.code.fauch.horcrux;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Source of the scripts of a resource directory of the classpath. The scripts are streamed straight from the jars,
+ * without extracting them, and listed from the index file <code>horcrux.index</code>.
+ */
+final class ClasspathScriptSource implements ScriptSource {
+
+    /**
+     * The extension of the scripts listed at the root of the classpath, without index.
+     */
+    private static final String SCRIPT_EXTENSION = ".sql";
+
+    /**
+     * The class loader of the scripts.
+     */
+    private final ClassLoader loader;
+
+    /**
+     * The resource directory of the scripts, ending with a slash (empty for the root).
+     */
+    private final String root;
+
+    /**
+     * Constructor.
+     *
+     * @param loader the class loader of the scripts (not null)
+     * @param root the resource directory of the scripts (not null)
+     */
+    ClasspathScriptSource(final ClassLoader loader, final String root) {
+        this.loader = Objects.requireNonNull(loader, "loader is mandatory");
+        String dir = Objects.requireNonNull(root, "root is mandatory");
+        while (dir.startsWith("/")) {
+            dir = dir.substring(1);
+        }
+        this.root = dir.isEmpty() || dir.endsWith("/") ? dir : dir + "/";
+    }
+
+    /**
+     * Lists the scripts from the index file. Without index, the scripts can only be listed if the resource directory
+     * is a directory of the file system.
+     */
+    @Override
+    public List<String> list() throws IOException {
+        final InputStream index = this.loader.getResourceAsStream(this.root + INDEX);
+        if (index == null) {
+            return listDirectory();
+        }
+        final List<String> names = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(index, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    names.add(line);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public InputStream open(final String name) throws IOException {
+        final InputStream input = this.loader.getResourceAsStream(this.root + name);
+        if (input == null) {
+            throw new NoSuchFileException(this.root + name);
+        }
+        return input;
+    }
+
+    @Override
+    public Path path(final String name) {
+        return Paths.get(this.root + name);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof ClasspathScriptSource && this.loader == ((ClasspathScriptSource) other).loader
+                && this.root.equals(((ClasspathScriptSource) other).root);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.root.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "classpath:/" + this.root;
+    }
+
+    /**
+     * Lists the scripts of a resource directory of the file system. At the root of the classpath, shared with the
+     * other resources of the application, only the <code>.sql</code> files and the version manifest are listed.
+     *
+     * @return the names of the scripts, sorted
+     * @throws IOException if the resource directory is not a directory of the file system
+     */
+    private List<String> listDirectory() throws IOException {
+        final URL url = this.loader.getResource(this.root);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            throw new NoSuchFileException(this.root + INDEX, null, "Missing script index");
+        }
+        final List<String> names;
+        try {
+            names = new ArrayList<>(new DirectoryScriptSource(Paths.get(url.toURI())).list());
+        } catch (URISyntaxException err) {
+            throw new IOException("Invalid script directory: " + url, err);
+        }
+        if (this.root.isEmpty()) {
+            names.removeIf(name -> !name.endsWith(SCRIPT_EXTENSION) && !VersionChain.MANIFEST.equals(name));
+        }
+        return names;
+    }
+
+}
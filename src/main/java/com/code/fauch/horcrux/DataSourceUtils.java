@@ -3,16 +3,18 @@ package com.code.fauch.horcrux;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
-import java.util.StringJoiner;
 
 /**
  * Utility class used to run sql script.
@@ -22,42 +24,632 @@ final class DataSourceUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceUtils.class);
 
     /**
-     * Execute a SQL script file.
-     *
-     * @param conn the open connection (not null)
-     * @param file the path of the script file to execute (not null)
-     * @throws SQLException if unable to update database due to some SQL errors.
-     * @throws IOException if unable to update database due to file reading issues.
+     * The leading keywords of the statements that can be grouped in a JDBC batch.
+     */
+    private static final List<String> BATCHABLE = List.of("INSERT", "UPDATE", "DELETE", "MERGE", "UPSERT");
+
+    /**
+     * The keyword of the DML statements returning a result set.
+     */
+    private static final String RETURNING = "RETURNING";
+
+    /**
+     * Callback committing the statements of a script executed so far.
+     */
+    @FunctionalInterface
+    interface Checkpoint {
+
+        /**
+         * Notified every <code>interval</code> statements, once the pending batch sent, and after each statement
+         * run by chunks.
+         *
+         * @param statements the number of statements of the script executed so far, skipped ones included
+         * @throws SQLException if unable to commit the statements
+         */
+        void reached(int statements) throws SQLException;
+
+        /**
+         * Notified after each chunk of a statement run by chunks, to commit the chunk with its last key.
+         *
+         * @param ordinal the ordinal of the chunked statement
+         * @param last the last key of the chunk, as stored
+         * @throws SQLException if unable to commit the chunk
+         */
+        default void chunkReached(final int ordinal, final String last) throws SQLException {
+        }
+
+        /**
+         * Gives the last key of the chunks committed by a previous run.
+         *
+         * @param ordinal the ordinal of the chunked statement
+         * @return the last key or null to start from the first chunk
+         * @throws SQLException if unable to read the last key
+         */
+        default String chunkPosition(final int ordinal) throws SQLException {
+            return null;
+        }
+
+    }
+
+    /**
+     * The source of the statements of a script: a <code>ScriptParser</code> through <code>parser::next</code>, or
+     * the statements already read.
      */
-    static void execute(final Connection conn, final Path file) throws IOException, SQLException {
-        LOGGER.info("running script: {}", file);
-        try(BufferedReader reader = Files.newBufferedReader(Objects.requireNonNull(file, "file is missing"), StandardCharsets.UTF_8)) {
-            execute(conn, reader);
+    @FunctionalInterface
+    interface Statements {
+
+        /**
+         * Gives the next statement of the script.
+         *
+         * @return the next statement or null once the end of the script reached
+         * @throws IOException if unable to read the script
+         */
+        SqlStatement next() throws IOException;
+
+        /**
+         * Gives the statements already read from a script.
+         *
+         * @param statements the statements (not null)
+         * @return the source of the statements, in the order of the list
+         */
+        static Statements of(final List<SqlStatement> statements) {
+            final Iterator<SqlStatement> iterator = Objects.requireNonNull(statements, "statements are missing").iterator();
+            return () -> iterator.hasNext() ? iterator.next() : null;
         }
+
     }
 
     /**
-     * Execute a SQL script.
+     * The options of the execution of a script. By default, the statements are executed one at a time, in the
+     * current transaction, without listener.
+     */
+    static final class Options {
+
+        /**
+         * The maximum number of consecutive DML statements sent in one JDBC batch.
+         */
+        private int batchSize = 0;
+
+        /**
+         * The listener of the executed statements (null if none).
+         */
+        private MigrationListener listener = null;
+
+        /**
+         * The path of the script, given to the listener.
+         */
+        private Path script = null;
+
+        /**
+         * The number of statements already committed, read but not executed.
+         */
+        private int skip = 0;
+
+        /**
+         * The number of statements between two checkpoints.
+         */
+        private int interval = 0;
+
+        /**
+         * The callback committing the statements executed so far (null if none).
+         */
+        private Checkpoint checkpoint = null;
+
+        /**
+         * The timeout and cancellation of the statements (null if none).
+         */
+        private ExecutionControl control = null;
+
+        /**
+         * Specifies the maximum number of consecutive DML statements sent in one JDBC batch.
+         *
+         * @param size the number of statements (0 or 1 to disable batching, which is the default)
+         * @return these options
+         */
+        Options batchSize(final int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("batch size must not be negative");
+            }
+            this.batchSize = size;
+            return this;
+        }
+
+        /**
+         * Specifies the listener notified of each executed statement.
+         *
+         * @param listener the listener of the executed statements (null if none)
+         * @param script the path of the script, given to the listener
+         * @return these options
+         */
+        Options listener(final MigrationListener listener, final Path script) {
+            this.listener = listener;
+            this.script = script;
+            return this;
+        }
+
+        /**
+         * Specifies that the script is executed in several transactions, skipping the statements already committed.
+         *
+         * @param skip the number of statements already committed, read but not executed
+         * @param interval the number of statements between two checkpoints (0 to commit only the chunks and the
+         *                 parallel phases)
+         * @param checkpoint the callback committing the statements executed so far (null for none)
+         * @return these options
+         */
+        Options checkpoint(final int skip, final int interval, final Checkpoint checkpoint) {
+            this.skip = skip;
+            this.interval = interval;
+            this.checkpoint = checkpoint;
+            return this;
+        }
+
+        /**
+         * Specifies the timeout and the cancellation of the statements, and enables the deferred statements and
+         * the parallel phases of the update.
+         *
+         * @param control the timeout and cancellation of the statements (null for none)
+         * @return these options
+         */
+        Options control(final ExecutionControl control) {
+            this.control = control;
+            return this;
+        }
+
+    }
+
+    /**
+     * Execute the statements of a SQL script.
+     * <p>
+     * When batching is enabled, consecutive DML statements are grouped in JDBC batches of at most
+     * <code>batchSize</code> statements. Any other statement (DDL, query, ...) flushes the pending batch
+     * before being executed on its own.
+     * </p>
      *
      * @param conn the open connection (not null)
-     * @param reader the reader open on the script to execute (not null)
+     * @param statements the statements to execute (not null)
+     * @param options the options of the execution (not null)
+     * @return the number of statements of the script, skipped ones included
      * @throws SQLException if unable to update database due to some SQL errors.
      * @throws IOException if unable to update database due to file reading issues.
      */
-    static void execute(final Connection conn, final BufferedReader reader) throws SQLException, IOException {
-        String line = null;
-        StringJoiner joiner = new StringJoiner(" ");
+    static int execute(final Connection conn, final Statements statements, final Options options) throws SQLException, IOException {
+        Objects.requireNonNull(statements, "statements are missing");
         try(Statement statement = Objects.requireNonNull(conn, "conn is missing").createStatement()) {
-            while ((line = reader.readLine()) != null) {
-                if(line.length() > 0 && line.charAt(0) == '-' || line.length() == 0 )
-                    continue;
-                joiner.add(line);
-                if (line.endsWith(";")) {
-                    statement.execute(joiner.toString());
-                    joiner = new StringJoiner(" ");
+            final Batch batch = new Batch(statement, Objects.requireNonNull(options, "options are missing"));
+            try {
+                SqlStatement next;
+                while ((next = statements.next()) != null) {
+                    batch.execute(next.getSql(), next.getLine(), next.getDirective());
                 }
+                batch.flush();
+                return batch.count;
+            } finally {
+                batch.close();
             }
         }
     }
 
+    /**
+     * Tells whether the given statement can be added to a JDBC batch.
+     *
+     * @param sql the statement (not null)
+     * @return true if it is a DML statement that does not return any result set
+     */
+    static boolean isBatchable(final String sql) {
+        int start = 0;
+        while (start < sql.length() && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '(')) {
+            start++;
+        }
+        int end = start;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+        final String keyword = sql.substring(start, end).toUpperCase(Locale.ROOT);
+        return BATCHABLE.contains(keyword) && !hasKeyword(sql, RETURNING);
+    }
+
+    /**
+     * Tells whether the given statement contains a keyword, as a whole word out of quotes.
+     *
+     * @param sql the statement, without comments (not null)
+     * @param keyword the keyword, in upper case (not null)
+     * @return true if the keyword is found
+     */
+    private static boolean hasKeyword(final String sql, final String keyword) {
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if ((i == 0 || !ScriptChecksum.isWordPart(sql.charAt(i - 1)))
+                    && sql.regionMatches(true, i, keyword, 0, keyword.length())
+                    && (i + keyword.length() == sql.length() || !ScriptChecksum.isWordPart(sql.charAt(i + keyword.length())))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the exception reported when a statement fails.
+     *
+     * @param sql the failing statement
+     * @param line the line of the script where the statement starts
+     * @param cause the original error
+     * @return the exception naming the failing statement
+     */
+    static SQLException failure(final String sql, final int line, final SQLException cause) {
+        return new SQLException(
+                String.format("Unable to execute statement at line %d: %s (%s)", line, sql, cause.getMessage()),
+                cause.getSQLState(),
+                cause.getErrorCode(),
+                cause
+        );
+    }
+
+    /**
+     * Pending batch of DML statements.
+     */
+    private static final class Batch {
+
+        /**
+         * The statement used to send SQL to the database.
+         */
+        private final Statement statement;
+
+        /**
+         * The maximum number of statements in a batch.
+         */
+        private final int size;
+
+        /**
+         * The listener of the executed statements (null if none).
+         */
+        private final MigrationListener listener;
+
+        /**
+         * The path of the script, given to the listener.
+         */
+        private final Path script;
+
+        /**
+         * The number of statements already committed, read but not executed.
+         */
+        private final int skip;
+
+        /**
+         * The number of statements between two checkpoints.
+         */
+        private final int interval;
+
+        /**
+         * The callback committing the statements executed so far (null if none).
+         */
+        private final Checkpoint checkpoint;
+
+        /**
+         * The timeout and cancellation of the statements (null if none).
+         */
+        private final ExecutionControl control;
+
+        /**
+         * The number of statements read so far, that is the ordinal of the last read statement.
+         */
+        private int count = 0;
+
+        /**
+         * The number of statements committed by the last checkpoint.
+         */
+        private int checkpointed;
+
+        /**
+         * The SQL text of the pending statements.
+         */
+        private final List<String> sqls = new ArrayList<>();
+
+        /**
+         * The line numbers of the pending statements.
+         */
+        private final List<Integer> lines = new ArrayList<>();
+
+        /**
+         * The SQL text of the statements of the pending parallel phase.
+         */
+        private final List<String> phaseSqls = new ArrayList<>();
+
+        /**
+         * The line numbers of the statements of the pending parallel phase.
+         */
+        private final List<Integer> phaseLines = new ArrayList<>();
+
+        /**
+         * Constructor.
+         *
+         * @param statement the statement used to send SQL to the database (not null)
+         * @param options the options of the execution (not null)
+         * @throws SQLException if the update is cancelled or unable to set the timeout of the statement
+         */
+        private Batch(final Statement statement, final Options options) throws SQLException {
+            this.statement = statement;
+            this.size = options.batchSize;
+            this.listener = options.listener;
+            this.script = options.script;
+            this.skip = options.skip;
+            this.checkpointed = options.skip;
+            this.interval = options.interval;
+            this.checkpoint = options.checkpoint;
+            this.control = options.control;
+            if (this.control != null) {
+                this.control.register(statement);
+            }
+        }
+
+        /**
+         * Forgets the statement once the script executed.
+         */
+        private void close() {
+            if (this.control != null) {
+                this.control.unregister(this.statement);
+            }
+        }
+
+        /**
+         * Executes the given statement or adds it to the pending batch.
+         *
+         * @param sql the statement to execute (not null)
+         * @param line the line of the script where the statement starts
+         * @param directive the directive of the statement (null if none)
+         * @throws SQLException if unable to execute the statement or the pending batch
+         */
+        private void execute(final String sql, final int line, final String directive) throws SQLException {
+            if (this.count < this.skip) {
+                this.count++;
+                return;
+            }
+            if (this.control != null) {
+                this.control.check();
+            }
+            if (ExecutionControl.isDeferred(directive) && this.control != null) {
+                join();
+                this.count++;
+                this.control.defer(this.count, sql);
+            } else if (ParallelPhase.isParallel(directive)) {
+                if (this.phaseSqls.isEmpty()) {
+                    flush();
+                }
+                this.count++;
+                this.phaseSqls.add(sql);
+                this.phaseLines.add(line);
+            } else {
+                join();
+                if (ChunkedStatement.isChunked(directive)) {
+                    flush();
+                    this.count++;
+                    executeChunked(sql, line, directive);
+                } else {
+                    executeSingle(sql, line, directive);
+                }
+            }
+            if (this.checkpoint != null && this.interval > 0 && this.phaseSqls.isEmpty()
+                    && this.count / this.interval > this.checkpointed / this.interval) {
+                flush();
+                reached(this.count);
+            }
+        }
+
+        /**
+         * Executes a statement without directive or adds it to the pending batch.
+         *
+         * @param sql the statement to execute (not null)
+         * @param line the line of the script where the statement starts
+         * @param directive the directive of the statement (null if none)
+         * @throws SQLException if unable to execute the statement or the pending batch
+         */
+        private void executeSingle(final String sql, final int line, final String directive) throws SQLException {
+            if (directive != null && !ExecutionControl.isDeferred(directive)) {
+                LOGGER.warn("Ignoring unknown directive at line {}: {}", line, directive);
+            }
+            if (this.size > 1 && isBatchable(sql)) {
+                this.count++;
+                this.statement.addBatch(sql);
+                this.sqls.add(sql);
+                this.lines.add(line);
+                if (this.sqls.size() >= this.size) {
+                    flush();
+                }
+            } else {
+                flush();
+                this.count++;
+                run(sql, line, this.count);
+            }
+        }
+
+        /**
+         * Commits the statements executed so far through the checkpoint callback.
+         *
+         * @param statements the number of statements executed so far
+         * @throws SQLException if unable to commit
+         */
+        private void reached(final int statements) throws SQLException {
+            this.checkpoint.reached(statements);
+            this.checkpointed = statements;
+        }
+
+        /**
+         * Executes a statement on its own.
+         *
+         * @param sql the statement to execute (not null)
+         * @param line the line of the script where the statement starts
+         * @param ordinal the ordinal of the statement in the script
+         * @throws SQLException if unable to execute the statement
+         */
+        private void run(final String sql, final int line, final int ordinal) throws SQLException {
+            final long start = this.listener == null ? 0 : System.nanoTime();
+            final boolean query;
+            try {
+                query = this.statement.execute(sql);
+            } catch (SQLException err) {
+                throw failure(sql, line, err);
+            }
+            if (this.listener != null) {
+                this.listener.statementExecuted(this.script, ordinal, line, sql,
+                        query ? -1 : this.statement.getUpdateCount(), Duration.ofNanos(System.nanoTime() - start));
+            }
+        }
+
+        /**
+         * Executes the pending parallel phase, if any, and waits until all its statements are done.
+         * <p>
+         * Without extra connections or without checkpoint callback, that is when the script is applied in a single
+         * transaction, the statements are executed one after the other. Otherwise the statements executed so far are
+         * committed first through the checkpoint callback, so that the extra connections see them, and the phase is
+         * committed by the extra connections. Any statement without the parallel directive, deferred ones included,
+         * ends the phase, so that the statements of a phase have consecutive ordinals.
+         * </p>
+         *
+         * @throws SQLException if one of the statements fails
+         */
+        private void join() throws SQLException {
+            final int size = this.phaseSqls.size();
+            if (size == 0) {
+                return;
+            }
+            final int first = this.count - size + 1;
+            final ParallelPhase phase = this.control == null ? null : this.control.getParallelPhase();
+            try {
+                if (phase == null || this.checkpoint == null || size == 1) {
+                    for (int i = 0; i < size; i++) {
+                        run(this.phaseSqls.get(i), this.phaseLines.get(i), first + i);
+                    }
+                    return;
+                }
+                reached(first - 1);
+                final long[] rows = new long[size];
+                final long[] durations = new long[size];
+                final Duration elapsed = phase.run(this.phaseSqls, this.phaseLines, rows, durations, this.control);
+                long total = 0;
+                for (int i = 0; i < size; i++) {
+                    total += durations[i];
+                    if (this.listener != null) {
+                        this.listener.statementExecuted(this.script, first + i, this.phaseLines.get(i),
+                                this.phaseSqls.get(i), rows[i], Duration.ofNanos(durations[i]));
+                    }
+                }
+                final Duration saved = Duration.ofNanos(Math.max(0, total - elapsed.toNanos()));
+                LOGGER.info("{} parallel statements at line {} executed in {} ms, {} ms saved", size,
+                        this.phaseLines.get(0), elapsed.toMillis(), saved.toMillis());
+                if (this.listener != null) {
+                    this.listener.parallelPhaseExecuted(this.script, size, elapsed, saved);
+                }
+                reached(this.count);
+            } finally {
+                this.phaseSqls.clear();
+                this.phaseLines.clear();
+            }
+        }
+
+        /**
+         * Executes a statement by chunks, committing each chunk when a checkpoint callback is given.
+         *
+         * @param sql the statement to execute (not null)
+         * @param line the line of the script where the statement starts
+         * @param directive the directive of the statement (not null)
+         * @throws SQLException if unable to execute a chunk
+         */
+        private void executeChunked(final String sql, final int line, final String directive) throws SQLException {
+            final int ordinal = this.count;
+            final long start = this.listener == null ? 0 : System.nanoTime();
+            final long rows;
+            try {
+                final ChunkedStatement chunked = new ChunkedStatement(sql, directive);
+                final String from = this.checkpoint == null ? null : this.checkpoint.chunkPosition(ordinal);
+                rows = chunked.execute(this.statement.getConnection(), from, this.control, (chunk, last, count, duration) -> {
+                    if (this.listener != null) {
+                        this.listener.chunkExecuted(this.script, ordinal, chunk, count, duration);
+                    }
+                    if (this.checkpoint != null) {
+                        this.checkpoint.chunkReached(ordinal, last.toString());
+                    }
+                });
+            } catch (SQLException err) {
+                throw failure(sql, line, err);
+            }
+            if (this.listener != null) {
+                this.listener.statementExecuted(this.script, ordinal, line, sql, rows,
+                        Duration.ofNanos(System.nanoTime() - start));
+            }
+            if (this.checkpoint != null) {
+                reached(ordinal);
+            }
+        }
+
+        /**
+         * Executes the pending parallel phase and sends the pending batch, if any.
+         *
+         * @throws SQLException if one of the batched statements fails
+         */
+        private void flush() throws SQLException {
+            join();
+            if (this.sqls.isEmpty()) {
+                return;
+            }
+            try {
+                final long start = this.listener == null ? 0 : System.nanoTime();
+                final int[] counts = this.statement.executeBatch();
+                if (this.listener != null) {
+                    notifyBatch(counts, System.nanoTime() - start);
+                }
+            } catch (BatchUpdateException err) {
+                final int index = failedIndex(err.getUpdateCounts());
+                throw failure(this.sqls.get(index), this.lines.get(index), err);
+            } finally {
+                this.statement.clearBatch();
+                this.sqls.clear();
+                this.lines.clear();
+            }
+        }
+
+        /**
+         * Notifies the listener of each statement of the executed batch. The statements of a batch share evenly
+         * its duration.
+         *
+         * @param counts the update counts reported by the driver
+         * @param elapsed the duration of the batch, in nanoseconds
+         */
+        private void notifyBatch(final int[] counts, final long elapsed) {
+            final int pending = this.sqls.size();
+            final Duration duration = Duration.ofNanos(elapsed / pending);
+            for (int i = 0; i < pending; i++) {
+                final long rows = counts != null && i < counts.length && counts[i] >= 0 ? counts[i] : -1;
+                this.listener.statementExecuted(this.script, this.count - pending + i + 1, this.lines.get(i),
+                        this.sqls.get(i), rows, duration);
+            }
+        }
+
+        /**
+         * Finds the index of the failing statement in the batch.
+         *
+         * @param counts the update counts reported by the driver
+         * @return the index of the failing statement
+         */
+        private int failedIndex(final int[] counts) {
+            if (counts != null) {
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == Statement.EXECUTE_FAILED) {
+                        return i;
+                    }
+                }
+                if (counts.length < this.sqls.size()) {
+                    return counts.length;
+                }
+            }
+            return 0;
+        }
+
+    }
+
 }
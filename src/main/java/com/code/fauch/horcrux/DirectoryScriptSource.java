@@ -0,0 +1,74 @@
+package com.code.fauch.horcrux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Source of the scripts of a directory. The scripts can be memory mapped.
+ */
+final class DirectoryScriptSource implements ScriptSource {
+
+    /**
+     * The path of the directory.
+     */
+    private final Path dir;
+
+    /**
+     * Constructor.
+     *
+     * @param dir the path of the directory (not null)
+     */
+    DirectoryScriptSource(final Path dir) {
+        this.dir = Objects.requireNonNull(dir, "dir is mandatory");
+    }
+
+    /**
+     * Lists the regular files of the directory, except the index file.
+     */
+    @Override
+    public List<String> list() throws IOException {
+        try (Stream<Path> files = Files.list(this.dir)) {
+            return files.filter(Files::isRegularFile).sorted().map(file -> file.getFileName().toString())
+                    .filter(name -> !INDEX.equals(name)).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public InputStream open(final String name) throws IOException {
+        return Files.newInputStream(path(name));
+    }
+
+    @Override
+    public String version(final String name) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(path(name), BasicFileAttributes.class);
+        return attributes.lastModifiedTime() + "/" + attributes.size();
+    }
+
+    @Override
+    public Path path(final String name) {
+        return this.dir.resolve(name);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof DirectoryScriptSource && this.dir.equals(((DirectoryScriptSource) other).dir);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.dir.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.dir.toString();
+    }
+
+}
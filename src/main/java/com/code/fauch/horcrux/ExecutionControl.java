@@ -0,0 +1,320 @@
+package com.code.fauch.horcrux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of one update: the listener notified, the timeout of the statements, the cancellation, the extra
+ * connections of the parallel phases, the migration lock renewed at each commit and the statements deferred after
+ * the commit.
+ * <p>
+ * The cancellation is cooperative: once cancelled, the running statements are cancelled through
+ * <code>Statement.cancel()</code> and the next statement is not executed.
+ * </p>
+ */
+final class ExecutionControl {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionControl.class);
+
+    /**
+     * The directive of a statement run after the update is committed.
+     */
+    static final String DEFERRED_DIRECTIVE = "horcrux:deferred";
+
+    /**
+     * The listener of the update events (null if none).
+     */
+    private final MigrationListener listener;
+
+    /**
+     * The timeout of each statement, in seconds (0 for no timeout).
+     */
+    private final int queryTimeout;
+
+    /**
+     * The statements being executed.
+     */
+    private final Set<Statement> running = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * True once the update is cancelled.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * The runner of the parallel phases (null to run their statements one after the other).
+     */
+    private ParallelPhase parallelPhase;
+
+    /**
+     * The migration lock held by the update (null if none).
+     */
+    private MigrationLock.Handle lock;
+
+    /**
+     * The checksums of the deferred statements of the running script, not stored yet, by ordinal.
+     */
+    private final Map<Integer, String> deferred = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param listener the listener of the update events (null if none)
+     * @param queryTimeout the timeout of each statement (zero for no timeout)
+     */
+    ExecutionControl(final MigrationListener listener, final Duration queryTimeout) {
+        this.listener = listener;
+        final long seconds = (queryTimeout.toMillis() + 999) / 1000;
+        this.queryTimeout = (int) Math.min(seconds, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds the listener notifying both given listeners.
+     *
+     * @param first the first listener (null if none)
+     * @param second the second listener (null if none)
+     * @return the listener notifying both listeners, or the non null one
+     */
+    static MigrationListener both(final MigrationListener first, final MigrationListener second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return new Both(first, second);
+    }
+
+    /**
+     * Tells whether the given directive declares a statement run after the update is committed.
+     *
+     * @param directive the directive (null if none)
+     * @return true if the statement must be deferred
+     */
+    static boolean isDeferred(final String directive) {
+        return DEFERRED_DIRECTIVE.equals(directive);
+    }
+
+    /**
+     * @return the listener of the update events or null if none.
+     */
+    MigrationListener getListener() {
+        return this.listener;
+    }
+
+    /**
+     * @return the runner of the parallel phases or null to run their statements one after the other.
+     */
+    ParallelPhase getParallelPhase() {
+        return this.parallelPhase;
+    }
+
+    /**
+     * Sets the runner of the parallel phases, once the updated database known.
+     *
+     * @param phase the runner (null to run the statements of the parallel phases one after the other)
+     */
+    void setParallelPhase(final ParallelPhase phase) {
+        this.parallelPhase = phase;
+    }
+
+    /**
+     * @return the migration lock held by the update or null if none.
+     */
+    MigrationLock.Handle getLock() {
+        return this.lock;
+    }
+
+    /**
+     * Sets the migration lock held by the update, renewed at each commit.
+     *
+     * @param lock the taken lock (null if none)
+     */
+    void setLock(final MigrationLock.Handle lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * Defers a statement of the running script after the commit of the update.
+     *
+     * @param ordinal the ordinal of the statement in the script (from 1)
+     * @param sql the SQL text of the statement (not null)
+     */
+    void defer(final int ordinal, final String sql) {
+        this.deferred.put(ordinal, ScriptChecksum.of(sql));
+    }
+
+    /**
+     * Gives the statements deferred since the last call, and forgets them.
+     *
+     * @return the checksums of the deferred statements of the running script, by ordinal in execution order
+     */
+    Map<Integer, String> takeDeferred() {
+        final Map<Integer, String> statements = new LinkedHashMap<>(this.deferred);
+        this.deferred.clear();
+        return statements;
+    }
+
+    /**
+     * Checks that the update is not cancelled before executing the next statement.
+     *
+     * @throws SQLException if the update is cancelled
+     */
+    void check() throws SQLException {
+        if (this.cancelled) {
+            throw new SQLException("Migration cancelled");
+        }
+    }
+
+    /**
+     * Prepares a statement before executing it: sets its timeout and registers it to be cancelled with the update.
+     *
+     * @param statement the statement (not null)
+     * @throws SQLException if the update is cancelled or unable to set the timeout
+     */
+    void register(final Statement statement) throws SQLException {
+        check();
+        if (this.queryTimeout > 0) {
+            statement.setQueryTimeout(this.queryTimeout);
+        }
+        synchronized (this.running) {
+            this.running.add(statement);
+        }
+    }
+
+    /**
+     * Forgets a statement once closed.
+     *
+     * @param statement the statement (not null)
+     */
+    void unregister(final Statement statement) {
+        synchronized (this.running) {
+            this.running.remove(statement);
+        }
+    }
+
+    /**
+     * Cancels the update: the running statements are cancelled and no other statement will be executed.
+     */
+    void cancel() {
+        this.cancelled = true;
+        synchronized (this.running) {
+            for (Statement statement : this.running) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    LOGGER.warn("Unable to cancel statement: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the update is cancelled.
+     */
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Listener notifying two listeners.
+     */
+    private static final class Both implements MigrationListener {
+
+        private final MigrationListener first;
+        private final MigrationListener second;
+
+        private Both(final MigrationListener first, final MigrationListener second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void migrationStarted(final String schema) {
+            this.first.migrationStarted(schema);
+            this.second.migrationStarted(schema);
+        }
+
+        @Override
+        public void lockAcquired(final Duration waited) {
+            this.first.lockAcquired(waited);
+            this.second.lockAcquired(waited);
+        }
+
+        @Override
+        public void scriptStarted(final Path script) {
+            this.first.scriptStarted(script);
+            this.second.scriptStarted(script);
+        }
+
+        @Override
+        public void statementExecuted(final Path script, final int ordinal, final int line, final String sql,
+                                      final long rows, final Duration duration) {
+            this.first.statementExecuted(script, ordinal, line, sql, rows, duration);
+            this.second.statementExecuted(script, ordinal, line, sql, rows, duration);
+        }
+
+        @Override
+        public void chunkExecuted(final Path script, final int ordinal, final int chunk, final long rows,
+                                  final Duration duration) {
+            this.first.chunkExecuted(script, ordinal, chunk, rows, duration);
+            this.second.chunkExecuted(script, ordinal, chunk, rows, duration);
+        }
+
+        @Override
+        public void parallelPhaseExecuted(final Path script, final int statements, final Duration duration,
+                                          final Duration saved) {
+            this.first.parallelPhaseExecuted(script, statements, duration, saved);
+            this.second.parallelPhaseExecuted(script, statements, duration, saved);
+        }
+
+        @Override
+        public void deferredStatementExecuted(final Path script, final int line, final String sql,
+                                              final int remaining, final Duration duration) {
+            this.first.deferredStatementExecuted(script, line, sql, remaining, duration);
+            this.second.deferredStatementExecuted(script, line, sql, remaining, duration);
+        }
+
+        @Override
+        public void scriptFinished(final Path script, final int statements, final Duration duration) {
+            this.first.scriptFinished(script, statements, duration);
+            this.second.scriptFinished(script, statements, duration);
+        }
+
+        @Override
+        public void retried(final int attempt, final Duration delay, final SQLException cause) {
+            this.first.retried(attempt, delay, cause);
+            this.second.retried(attempt, delay, cause);
+        }
+
+        @Override
+        public void committed(final Duration duration) {
+            this.first.committed(duration);
+            this.second.committed(duration);
+        }
+
+        @Override
+        public void rolledBack(final Exception cause) {
+            this.first.rolledBack(cause);
+            this.second.rolledBack(cause);
+        }
+
+        @Override
+        public void migrationFinished(final String schema, final Duration duration, final Exception error) {
+            this.first.migrationFinished(schema, duration, error);
+            this.second.migrationFinished(schema, duration, error);
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.code.fauch.horcrux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * Utility class used to compute the fingerprint of a script directory.
+ */
+final class Fingerprint {
+
+    /**
+     * Size of the buffer used to read the files.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Hexadecimal digits.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Computes the SHA-256 hash of the names and contents of all the regular files of the given directory.
+     *
+     * @param dir the script directory (not null)
+     * @return the hash as 64 hexadecimal chars
+     * @throws IOException if unable to read the directory
+     */
+    static String compute(final Path dir) throws IOException {
+        return compute(ScriptSource.directory(Objects.requireNonNull(dir, "dir is missing")));
+    }
+
+    /**
+     * Computes the SHA-256 hash of the names and contents of all the scripts of the given source.
+     * A directory and its copy on the classpath, listed by its index, have the same hash. The hash of a
+     * <code>MigrationBundle</code> is the one of the source it was compiled from.
+     *
+     * @param source the source of the scripts (not null)
+     * @return the hash as 64 hexadecimal chars
+     * @throws IOException if unable to read the scripts
+     */
+    static String compute(final ScriptSource source) throws IOException {
+        if (Objects.requireNonNull(source, "source is missing") instanceof MigrationBundle) {
+            return ((MigrationBundle) source).getFingerprint();
+        }
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        for (String name : source.list()) {
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            try (InputStream input = source.open(name)) {
+                int n;
+                while ((n = input.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Converts bytes in hexadecimal.
+     *
+     * @param bytes the bytes to convert (not null)
+     * @return the hexadecimal chars
+     */
+    static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return a new SHA-256 message digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException err) {
+            throw new IllegalStateException("SHA-256 is not supported", err);
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.code.fauch.horcrux;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Migration lock shared by the migrations of the current JVM.
+ */
+final class LocalMigrationLock implements MigrationLock {
+
+    /**
+     * The locks of the JVM by name.
+     */
+    private static final Map<String, Semaphore> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * The lock.
+     */
+    private final Semaphore semaphore;
+
+    /**
+     * Constructor.
+     * @param name the name of the lock (not null)
+     */
+    LocalMigrationLock(final String name) {
+        this.semaphore = LOCKS.computeIfAbsent(name, key -> new Semaphore(1));
+    }
+
+    @Override
+    public Handle tryAcquire(final Connection conn) {
+        if (!this.semaphore.tryAcquire()) {
+            return null;
+        }
+        return this.semaphore::release;
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.code.fauch.horcrux;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Source of scripts held in memory.
+ */
+final class MemoryScriptSource implements ScriptSource {
+
+    /**
+     * The UTF-8 content of each script by name.
+     */
+    private final Map<String, byte[]> scripts = new TreeMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param scripts the content of each script by name (not null)
+     */
+    MemoryScriptSource(final Map<String, String> scripts) {
+        for (Map.Entry<String, String> script : Objects.requireNonNull(scripts, "scripts are mandatory").entrySet()) {
+            this.scripts.put(Objects.requireNonNull(script.getKey(), "name is mandatory"),
+                    Objects.requireNonNull(script.getValue(), "content is mandatory").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(this.scripts.keySet());
+    }
+
+    @Override
+    public InputStream open(final String name) throws NoSuchFileException {
+        final byte[] content = this.scripts.get(name);
+        if (content == null) {
+            throw new NoSuchFileException(name);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+}
@@ -9,7 +9,19 @@ import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The <code>Migration</code> class defines the main object responsible to update databases.
@@ -21,8 +33,97 @@ public final class Migration {
     private static final Logger LOGGER = LoggerFactory.getLogger(Migration.class);
     private static final String DEFAULT_VERSION_TABLE = "versions";
     private static final String SELECT_SCRIPTS = "SELECT number, script FROM %s WHERE script IS NOT NULL AND number>(SELECT number FROM %s WHERE active IS TRUE) ORDER BY number";
-    private static final String ENABLE_VERSION = "UPDATE %s SET active = TRUE WHERE number = ?";
-    private static final String DISABLE_OTHER_VERSIONS = "UPDATE %s SET active = FALSE WHERE number != ?";
+    private static final String SELECT_ACTIVE_VERSION = "SELECT number FROM %s WHERE active IS TRUE";
+    private static final String MOVE_ACTIVE_VERSION = "UPDATE %s SET active = (number = ?) WHERE number IN (?, ?)";
+    private static final String COUNT_ACTIVE_VERSIONS = "SELECT MAX(number), COUNT(*) FROM %s WHERE active IS TRUE";
+    private static final String REPAIR_ACTIVE_VERSIONS = "UPDATE %s SET active = FALSE WHERE active IS TRUE AND number <> ?";
+    private static final String SELECT_RESERVED = "SELECT script FROM %s WHERE number = ?";
+    private static final String DELETE_RESERVED = "DELETE FROM %s WHERE number = ?";
+    private static final String INSERT_RESERVED = "INSERT INTO %s (number, script, active) VALUES (?, ?, FALSE)";
+    private static final String SELECT_APPLIED = "SELECT number, script, checksum, script_version FROM %s WHERE script IS NOT NULL AND number > ? AND number<=(SELECT number FROM %s WHERE active IS TRUE) ORDER BY number";
+    private static final String UPDATE_CHECKSUM = "UPDATE %s SET checksum = ?, script_version = ? WHERE number = ?";
+    private static final String UPDATE_SCRIPT_VERSION = "UPDATE %s SET script_version = ? WHERE number = ?";
+    private static final String ADD_COLUMN = "ALTER TABLE %s ADD %s VARCHAR(64)";
+    private static final String SELECT_VERSIONS = "SELECT number, script FROM %s WHERE number > ?";
+    private static final String UPDATE_SCRIPT = "UPDATE %s SET script = ? WHERE number = ?";
+    private static final String SELECT_DEFERRED = "SELECT number, script FROM %s WHERE number BETWEEN ? AND ? ORDER BY number";
+
+    /**
+     * The column of the version table storing the checksum of the applied scripts.
+     */
+    private static final String CHECKSUM_COLUMN = "checksum";
+
+    /**
+     * The column of the version table storing the version of the applied scripts when their checksum was computed.
+     */
+    private static final String SCRIPT_VERSION_COLUMN = "script_version";
+
+    /**
+     * The maximum length of the checksum and script version columns.
+     */
+    private static final int MAX_CHECKSUM_LENGTH = 64;
+
+    /**
+     * The reserved version number of the row storing the fingerprint of the scripts last applied.
+     */
+    static final int FINGERPRINT_NUMBER = Integer.MIN_VALUE;
+
+    /**
+     * The reserved version number of the row storing the checkpoint of the script being applied.
+     */
+    static final int CHECKPOINT_NUMBER = Integer.MIN_VALUE + 1;
+
+    /**
+     * The reserved version number of the row storing the last key of the chunked statement being applied.
+     */
+    static final int CHUNK_NUMBER = Integer.MIN_VALUE + 2;
+
+    /**
+     * The reserved version number of the row storing the first deferred statement not executed yet, the next ones
+     * being stored in the following rows, up to <code>LAST_RESERVED_NUMBER</code>.
+     */
+    static final int DEFERRED_NUMBER = Integer.MIN_VALUE + 3;
+
+    /**
+     * The maximum length of the value of a reserved row, stored in the script column of the version table.
+     */
+    static final int MAX_RESERVED_LENGTH = 64;
+
+    /**
+     * The number of chars of the checksum stored with a deferred statement.
+     */
+    static final int DEFERRED_CHECKSUM_LENGTH = 16;
+
+    /**
+     * The last reserved version number.
+     */
+    static final int LAST_RESERVED_NUMBER = Integer.MIN_VALUE + 1023;
+
+    /**
+     * The first and the maximum delays between two attempts to take the migration lock, in milliseconds.
+     */
+    private static final long MIN_LOCK_BACKOFF = 50;
+    private static final long MAX_LOCK_BACKOFF = 2000;
+
+    /**
+     * The default maximum time to wait for the migration lock.
+     */
+    private static final Duration DEFAULT_LOCK_TIMEOUT = Duration.ofMinutes(5);
+
+    /**
+     * The number of the threads running the asynchronous updates without executor.
+     */
+    private static final AtomicLong THREADS = new AtomicLong();
+
+    /**
+     * The default number of pending scripts above which a baseline script is used instead.
+     */
+    private static final int DEFAULT_BASELINE_THRESHOLD = 10;
+
+    /**
+     * The default number of statements between two checkpoints.
+     */
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
 
     /**
      * Name of the table where are stored each database versions.
@@ -35,19 +136,74 @@ public final class Migration {
     private final String findScriptsCmd;
 
     /**
-     * The SQL command to enable a version.
+     * The SQL command to find the active version.
+     */
+    private final String findActiveVersionCmd;
+
+    /**
+     * The SQL command to move the active flag from a version to another.
+     */
+    private final String moveActiveVersionCmd;
+
+    /**
+     * The SQL command to count the active versions.
+     */
+    private final String countActiveVersionsCmd;
+
+    /**
+     * The SQL command to disable the active versions but one.
+     */
+    private final String repairActiveVersionsCmd;
+
+    /**
+     * The SQL command to read a reserved row (fingerprint or checkpoint).
+     */
+    private final String findReservedCmd;
+
+    /**
+     * The SQL command to remove a reserved row.
+     */
+    private final String deleteReservedCmd;
+
+    /**
+     * The SQL command to store a reserved row or a new version.
+     */
+    private final String insertReservedCmd;
+
+    /**
+     * The SQL command to read all the versions and their script.
+     */
+    private final String findVersionsCmd;
+
+    /**
+     * The SQL command to change the script of a version.
+     */
+    private final String updateScriptCmd;
+
+    /**
+     * The SQL command to read the deferred statements not executed yet.
      */
-    private final String enableVersionCmd;
+    private final String findDeferredCmd;
 
     /**
-     * The SQL command to disable other versions.
+     * The SQL command to find the scripts already applied with their checksum.
      */
-    private final String disableOtherVersionsCmd;
+    private final String findAppliedCmd;
 
     /**
-     * Path of the directory containing updates scripts.
+     * The SQL command to store the checksum of an applied script.
      */
-    private final Path scriptDir;
+    private final String updateChecksumCmd;
+
+    /**
+     * The SQL command to store the version of an applied script whose checksum is unchanged.
+     */
+    private final String updateScriptVersionCmd;
+
+    /**
+     * The source of the scripts.
+     */
+    private final ScriptSource scripts;
 
     /**
      * Option to specify whether the schema.sql should be applied or not if the database is empty.
@@ -59,6 +215,111 @@ public final class Migration {
      */
     private final boolean runUpdates;
 
+    /**
+     * The maximum number of consecutive DML statements sent in one JDBC batch.
+     */
+    private final int batchSize;
+
+    /**
+     * Option to specify whether the script files should be memory mapped or not.
+     */
+    private final boolean mapScripts;
+
+    /**
+     * Option to specify whether the fingerprint of the script directory should be checked before migrating.
+     */
+    private final boolean checkFingerprint;
+
+    /**
+     * Option to specify whether the checksums of the applied scripts should be stored and verified.
+     */
+    private final boolean verifyChecksums;
+
+    /**
+     * The baseline scripts by version.
+     */
+    private final NavigableMap<Integer, String> baselines;
+
+    /**
+     * The number of pending scripts above which a baseline script is used instead.
+     */
+    private final int baselineThreshold;
+
+    /**
+     * The way the updates are committed.
+     */
+    private final TransactionMode transactionMode;
+
+    /**
+     * The number of statements between two checkpoints.
+     */
+    private final int checkpointInterval;
+
+    /**
+     * The number of scripts read in advance while the current one is executed (0 for none).
+     */
+    private final int prefetch;
+
+    /**
+     * The maximum number of extra connections running the statements of a parallel phase (0 for none).
+     */
+    private final int parallelConnections;
+
+    /**
+     * The cache of the scripts already read (null if none).
+     */
+    private final ScriptCache cache;
+
+    /**
+     * The listener of the update events (null if none).
+     */
+    private final MigrationListener listener;
+
+    /**
+     * The lock preventing several nodes from migrating the same database at the same time (null if none).
+     */
+    private final MigrationLock lock;
+
+    /**
+     * The maximum time to wait for the migration lock.
+     */
+    private final Duration lockTimeout;
+
+    /**
+     * The timeout of each statement (zero for no timeout).
+     */
+    private final Duration queryTimeout;
+
+    /**
+     * The policy retrying the updates failed due to transient errors (null for none).
+     */
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * The number of times the migration lock has been taken.
+     */
+    private final AtomicLong lockCount = new AtomicLong();
+
+    /**
+     * The total time spent waiting for the migration lock, in nanoseconds.
+     */
+    private final AtomicLong lockWaitTime = new AtomicLong();
+
+    /**
+     * The longest time spent waiting for the migration lock, in nanoseconds.
+     */
+    private final AtomicLong maxLockWaitTime = new AtomicLong();
+
+    /**
+     * The number of updates retried after a transient error.
+     */
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /**
+     * The total time spent waiting before retrying, in nanoseconds.
+     */
+    private final AtomicLong retryWaitTime = new AtomicLong();
+
     /**
      * Builder to create and configure <code>Migration</code> object.
      *
@@ -73,9 +334,9 @@ public final class Migration {
         private String versionTable = null;
 
         /**
-         * Path of the directory where are all SQL script files.
+         * The source of all SQL script files.
          */
-        private Path scripts = null;
+        private ScriptSource scripts = null;
 
         /**
          * The create schema option.
@@ -87,13 +348,110 @@ public final class Migration {
          */
         private boolean runUpdates = false;
 
+        /**
+         * The batch size option.
+         */
+        private int batchSize = 0;
+
+        /**
+         * The memory mapping option.
+         */
+        private boolean mapScripts = false;
+
+        /**
+         * The fingerprint checking option.
+         */
+        private boolean checkFingerprint = false;
+
+        /**
+         * The checksum verification option.
+         */
+        private boolean verifyChecksums = false;
+
+        /**
+         * The baseline scripts by version.
+         */
+        private final NavigableMap<Integer, String> baselines = new TreeMap<>();
+
+        /**
+         * The baseline threshold option.
+         */
+        private int baselineThreshold = DEFAULT_BASELINE_THRESHOLD;
+
+        /**
+         * The transaction mode option.
+         */
+        private TransactionMode transactionMode = TransactionMode.SINGLE;
+
+        /**
+         * The checkpoint interval option.
+         */
+        private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+        /**
+         * The prefetch option.
+         */
+        private int prefetch = 0;
+
+        /**
+         * The parallel connections option.
+         */
+        private int parallelConnections = 0;
+
+        /**
+         * The script cache.
+         */
+        private ScriptCache cache = null;
+
+        /**
+         * The listener of the update events.
+         */
+        private MigrationListener listener = null;
+
+        /**
+         * The migration lock.
+         */
+        private MigrationLock lock = null;
+
+        /**
+         * The maximum time to wait for the migration lock.
+         */
+        private Duration lockTimeout = DEFAULT_LOCK_TIMEOUT;
+
+        /**
+         * The timeout of each statement.
+         */
+        private Duration queryTimeout = Duration.ZERO;
+
+        /**
+         * The retry policy.
+         */
+        private RetryPolicy retryPolicy = null;
+
+        /**
+         * Constructor of a builder with the default options.
+         */
+        public Builder() {
+        }
+
         /**
          * Specifies the path of the script files directory
          * @param dir the path of the directory (not null)
          * @return this builder
          */
         public Migration.Builder withScripts(final Path dir) {
-            this.scripts = Objects.requireNonNull(dir, "dir is mandatory");
+            return withScripts(ScriptSource.directory(Objects.requireNonNull(dir, "dir is mandatory")));
+        }
+
+        /**
+         * Specifies the source of the script files, such as a resource directory of the classpath, read straight
+         * from the jars with {@link ScriptSource#classpath(String)}, or a {@link MigrationBundle} compiled at build time.
+         * By default, the directory of the file system holding the root of the classpath of this library.
+         * @param source the source of the scripts (not null)
+         * @return this builder
+         */
+        public Migration.Builder withScripts(final ScriptSource source) {
+            this.scripts = Objects.requireNonNull(source, "source is mandatory");
             return this;
         }
 
@@ -131,125 +489,1549 @@ public final class Migration {
         }
 
         /**
-         * Build the <code>Migration</code> object
-         * @return the corresponding <code>Migration</code> instance
+         * Specifies the maximum number of consecutive DML statements (INSERT, UPDATE, DELETE, MERGE)
+         * sent to the database in one JDBC batch. Any other statement flushes the pending batch first.
+         * @param size the batch size (0 or 1 to execute each statement on its own, which is the default)
+         * @return this builder
          */
-        public Migration build() {
-            return new Migration(this);
+        public Migration.Builder batchSize(final int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("batch size must not be negative");
+            }
+            this.batchSize = size;
+            return this;
         }
 
-    }
+        /**
+         * Specifies whether the script files should be memory mapped and decoded straight from the mapping
+         * instead of being read through a stream. Scripts that can't be mapped (inside a jar for instance)
+         * are still read through a stream.
+         * @param option true to memory map the script files
+         * @return this builder
+         */
+        public Migration.Builder mapScripts(final boolean option) {
+            this.mapScripts = option;
+            return this;
+        }
 
-    /**
-     * Constructor.
-     * @param builder the builder (not null)
-     */
-    private Migration(final Builder builder) {
-        try {
-            this.versionTable = builder.versionTable == null ? DEFAULT_VERSION_TABLE : builder.versionTable;
-            this.scriptDir = builder.scripts == null ? Paths.get(Objects.requireNonNull(getClass().getResource("/")).toURI()) : builder.scripts;
-            this.findScriptsCmd = String.format(SELECT_SCRIPTS, this.versionTable, this.versionTable);
-            this.enableVersionCmd = String.format(ENABLE_VERSION, this.versionTable);
-            this.disableOtherVersionsCmd = String.format(DISABLE_OTHER_VERSIONS, this.versionTable);
-            this.createSchema = builder.createSchema;
-            this.runUpdates = builder.runUpdates;
-        } catch (URISyntaxException err) {
-            throw new RuntimeException("Unexpected error while computing resources path", err);
+        /**
+         * Specifies whether the fingerprint of the script directory should be checked before migrating.
+         * When enabled, a hash of all the files of the script directory is stored in the version table after
+         * each successful update, and the next updates return at once without running <code>populate.sql</code>
+         * nor any metadata query while the hash is unchanged.
+         * @param option true to skip the update when the scripts are the same as the last applied ones
+         * @return this builder
+         */
+        public Migration.Builder checkFingerprint(final boolean option) {
+            this.checkFingerprint = option;
+            return this;
         }
-    }
 
-    /**
-     * Update the given database.
-     * @param dataSource the given database (not null)
-     * @throws SQLException if unable to update database due to some SQL errors.
-     * @throws IOException if unable to update database due to some file reading issues.
-     */
-    public void update(final DataSource dataSource) throws SQLException, IOException {
-        Connection conn = null;
-        try {
-            LOGGER.info("opening transactional connection...");
-            conn = dataSource.getConnection();
-            conn.setAutoCommit(false);
-            initialize(conn);
-            runUpdateScripts(conn);
-            LOGGER.info("committing transaction...");
-            conn.commit();
-        } catch (Exception err) {
-            if (conn != null) {
-                try {
-                    conn.rollback();
-                } catch (SQLException e) {
-                    LOGGER.warn("Unable to rollback updates: {}", e.getMessage());
-                }
-            }
-            throw err;
-        } finally {
-            if (conn != null) {
-                LOGGER.info("closing connection...");
-                conn.close();
-            }
+        /**
+         * Specifies whether the checksums of the applied scripts should be stored and verified.
+         * When enabled, the checksum of each applied script is stored in a <code>checksum</code> column of the
+         * version table, added if missing, and each update fails if a script already applied has been modified
+         * since. The checksum ignores comments and whitespaces out of quotes. The scripts applied before are
+         * trusted and their checksum is stored by the next update.
+         * <p>
+         * The version of each script file, its modification time and size, is stored in a
+         * <code>script_version</code> column next to its checksum: the next updates only read and hash again the
+         * files whose version changed. The scripts of the classpath have no version and are hashed by each update,
+         * unless they come from a <code>MigrationBundle</code>, which stores the checksums precomputed.
+         * </p>
+         * @param option true to fail the update when an applied script has been modified
+         * @return this builder
+         */
+        public Migration.Builder verifyChecksums(final boolean option) {
+            this.verifyChecksums = option;
+            return this;
         }
-    }
 
-    /**
-     * Checks if version table exists and creates schema if needed.
+        /**
+         * Declares a baseline script: a script bringing a database of any older version straight to the given
+         * version, typically a snapshot of <code>schema.sql</code> at this version. When more than
+         * <code>baselineThreshold</code> pending scripts lead to this version, the baseline script is applied
+         * instead of all of them.
+         * @param version the version of the database once the baseline script applied
+         * @param script the name of the baseline script in the script directory (not null)
+         * @return this builder
+         */
+        public Migration.Builder baseline(final int version, final String script) {
+            this.baselines.put(version, Objects.requireNonNull(script, "script is mandatory"));
+            return this;
+        }
+
+        /**
+         * Specifies the number of pending scripts above which a baseline script is applied instead of them.
+         * @param threshold the number of scripts (10 by default)
+         * @return this builder
+         */
+        public Migration.Builder baselineThreshold(final int threshold) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("threshold must not be negative");
+            }
+            this.baselineThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Specifies how the updates are committed: all in one transaction (the default), one transaction per
+         * script or with checkpoints inside the scripts. With the last two modes, a failed update keeps the
+         * scripts already committed and the next update resumes from there.
+         * @param mode the transaction mode (not null)
+         * @return this builder
+         */
+        public Migration.Builder transactionMode(final TransactionMode mode) {
+            this.transactionMode = Objects.requireNonNull(mode, "mode is mandatory");
+            return this;
+        }
+
+        /**
+         * Specifies the number of statements committed at once inside a script with
+         * <code>TransactionMode.CHECKPOINT</code>.
+         * @param statements the number of statements (1000 by default)
+         * @return this builder
+         */
+        public Migration.Builder checkpointInterval(final int statements) {
+            if (statements < 1) {
+                throw new IllegalArgumentException("checkpoint interval must be strictly positive");
+            }
+            this.checkpointInterval = statements;
+            return this;
+        }
+
+        /**
+         * Specifies the number of migration scripts read and parsed in advance, on a background thread, while the
+         * current script is executed. The scripts are still executed one after the other, in version order, and an
+         * unreadable script fails the update when its turn comes. The prefetched scripts are kept in memory.
+         * @param scripts the number of scripts read in advance (0 to read each script when executed, which is the
+         *                default)
+         * @return this builder
+         */
+        public Migration.Builder prefetch(final int scripts) {
+            if (scripts < 0) {
+                throw new IllegalArgumentException("prefetch must not be negative");
+            }
+            this.prefetch = scripts;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of extra connections, taken from the updated data source, running the
+         * consecutive statements written after a <code>-- horcrux:parallel</code> directive concurrently. The
+         * statements executed before a parallel phase are committed first, with a checkpoint, and each statement of
+         * the phase is committed on its own, so the statements of a phase must be independent (<code>CREATE
+         * INDEX</code>, backfills of distinct tables). All of them are done before the next statement and before the
+         * version is changed. Only the migration scripts applied with <code>TransactionMode.PER_SCRIPT</code> or
+         * <code>TransactionMode.CHECKPOINT</code> have parallel phases: with <code>TransactionMode.SINGLE</code>,
+         * and for <code>schema.sql</code> and <code>populate.sql</code>, the statements are run one after the other
+         * in the transaction of the update, which stays all-or-nothing.
+         * @param connections the number of extra connections (0 to run the statements one after the other in the
+         *                    transaction of the update, which is the default)
+         * @return this builder
+         */
+        public Migration.Builder parallelConnections(final int connections) {
+            if (connections < 0) {
+                throw new IllegalArgumentException("parallel connections must not be negative");
+            }
+            this.parallelConnections = connections;
+            return this;
+        }
+
+        /**
+         * Specifies the cache keeping the statements of the scripts already read, so that the scripts are not read
+         * and parsed again on each update. The same cache can be shared by many <code>Migration</code> objects.
+         * @param cache the script cache (null for none, which is the default)
+         * @return this builder
+         */
+        public Migration.Builder cache(final ScriptCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * Specifies the listener notified of the update events: start and end of the updates, lock taken, start
+         * and end of the scripts, executed statements, commits and rollbacks.
+         * See <code>MigrationRecorder</code> for a listener keeping statistics in memory.
+         * @param listener the listener (null for none, which is the default)
+         * @return this builder
+         */
+        public Migration.Builder listener(final MigrationListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Specifies the lock to take before updating the database, so that only one node updates it when many
+         * nodes start at the same time. The other nodes wait for the lock then, with
+         * <code>checkFingerprint(true)</code>, return at once since the database is up to date.
+         * @param lock the migration lock (null for none, which is the default)
+         * @return this builder
+         */
+        public Migration.Builder lock(final MigrationLock lock) {
+            this.lock = lock;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum time to wait for the migration lock (5 minutes by default).
+         * @param timeout the maximum waiting time (not null)
+         * @return this builder
+         */
+        public Migration.Builder lockTimeout(final Duration timeout) {
+            this.lockTimeout = Objects.requireNonNull(timeout, "timeout is mandatory");
+            return this;
+        }
+
+        /**
+         * Specifies the maximum time to execute each statement, set with <code>Statement.setQueryTimeout</code>
+         * and rounded up to the second.
+         * @param timeout the maximum execution time (zero for no timeout, which is the default)
+         * @return this builder
+         */
+        public Migration.Builder queryTimeout(final Duration timeout) {
+            if (Objects.requireNonNull(timeout, "timeout is mandatory").isNegative()) {
+                throw new IllegalArgumentException("timeout must not be negative");
+            }
+            this.queryTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * Specifies the policy retrying an update failed due to a transient error (deadlock, serialization failure,
+         * lock timeout...). The uncommitted updates are rolled back and the update is run again, so the retried unit
+         * is the whole update with <code>TransactionMode.SINGLE</code>, the failed script with
+         * <code>TransactionMode.PER_SCRIPT</code> and the statements since the last checkpoint with
+         * <code>TransactionMode.CHECKPOINT</code>.
+         * @param policy the retry policy (null to never retry, which is the default)
+         * @return this builder
+         */
+        public Migration.Builder retry(final RetryPolicy policy) {
+            this.retryPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Build the <code>Migration</code> object
+         * @return the corresponding <code>Migration</code> instance
+         */
+        public Migration build() {
+            return new Migration(this);
+        }
+
+    }
+
+    /**
+     * Gives the default source of the scripts, the directory holding the root of the classpath.
+     * @return the source of the scripts
+     */
+    private static ScriptSource defaultScripts() {
+        try {
+            return ScriptSource.directory(Paths.get(Objects.requireNonNull(Migration.class.getResource("/")).toURI()));
+        } catch (URISyntaxException err) {
+            throw new RuntimeException("Unexpected error while computing resources path", err);
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param builder the builder (not null)
+     */
+    private Migration(final Builder builder) {
+        this.versionTable = builder.versionTable == null ? DEFAULT_VERSION_TABLE : builder.versionTable;
+        this.scripts = builder.scripts == null ? defaultScripts() : builder.scripts;
+        this.findScriptsCmd = String.format(SELECT_SCRIPTS, this.versionTable, this.versionTable);
+        this.findActiveVersionCmd = String.format(SELECT_ACTIVE_VERSION, this.versionTable);
+        this.moveActiveVersionCmd = String.format(MOVE_ACTIVE_VERSION, this.versionTable);
+        this.countActiveVersionsCmd = String.format(COUNT_ACTIVE_VERSIONS, this.versionTable);
+        this.repairActiveVersionsCmd = String.format(REPAIR_ACTIVE_VERSIONS, this.versionTable);
+        this.findReservedCmd = String.format(SELECT_RESERVED, this.versionTable);
+        this.deleteReservedCmd = String.format(DELETE_RESERVED, this.versionTable);
+        this.insertReservedCmd = String.format(INSERT_RESERVED, this.versionTable);
+        this.findVersionsCmd = String.format(SELECT_VERSIONS, this.versionTable);
+        this.updateScriptCmd = String.format(UPDATE_SCRIPT, this.versionTable);
+        this.findDeferredCmd = String.format(SELECT_DEFERRED, this.versionTable);
+        this.findAppliedCmd = String.format(SELECT_APPLIED, this.versionTable, this.versionTable);
+        this.updateChecksumCmd = String.format(UPDATE_CHECKSUM, this.versionTable);
+        this.updateScriptVersionCmd = String.format(UPDATE_SCRIPT_VERSION, this.versionTable);
+        this.createSchema = builder.createSchema;
+        this.runUpdates = builder.runUpdates;
+        this.batchSize = builder.batchSize;
+        this.mapScripts = builder.mapScripts;
+        this.checkFingerprint = builder.checkFingerprint;
+        this.verifyChecksums = builder.verifyChecksums;
+        this.baselines = new TreeMap<>(builder.baselines);
+        this.baselineThreshold = builder.baselineThreshold;
+        this.transactionMode = builder.transactionMode;
+        this.checkpointInterval = builder.checkpointInterval;
+        this.prefetch = builder.prefetch;
+        this.parallelConnections = builder.parallelConnections;
+        this.cache = builder.cache;
+        this.listener = builder.listener;
+        this.lock = builder.lock;
+        this.lockTimeout = builder.lockTimeout;
+        this.queryTimeout = builder.queryTimeout;
+        this.retryPolicy = builder.retryPolicy;
+    }
+
+    /**
+     * Update the given database.
+     * @param dataSource the given database (not null)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     * @throws IOException if unable to update database due to some file reading issues.
+     */
+    public void update(final DataSource dataSource) throws SQLException, IOException {
+        update(dataSource, null);
+    }
+
+    /**
+     * Update the given schema of the given database.
+     * @param dataSource the given database (not null)
+     * @param schema the schema to update (null for the default schema of the connections)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     * @throws IOException if unable to update database due to some file reading issues.
+     */
+    public void update(final DataSource dataSource, final String schema) throws SQLException, IOException {
+        update(dataSource, schema, this.cache);
+    }
+
+    /**
+     * Update the given schema of the given database.
+     * @param dataSource the given database (not null)
+     * @param schema the schema to update (null for the default schema of the connections)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     * @throws IOException if unable to update database due to some file reading issues.
+     */
+    void update(final DataSource dataSource, final String schema, final ScriptCache cache) throws SQLException, IOException {
+        update(dataSource, schema, cache, new ExecutionControl(this.listener, this.queryTimeout));
+    }
+
+    /**
+     * Update the given schema of the given database.
+     * @param dataSource the given database (not null)
+     * @param schema the schema to update (null for the default schema of the connections)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @param control the listener, timeout and cancellation of the update (not null)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     * @throws IOException if unable to update database due to some file reading issues.
+     */
+    private void update(final DataSource dataSource, final String schema, final ScriptCache cache,
+                        final ExecutionControl control) throws SQLException, IOException {
+        final MigrationListener listener = control.getListener();
+        if (listener == null) {
+            retry(dataSource, schema, cache, control);
+            return;
+        }
+        final long start = System.nanoTime();
+        listener.migrationStarted(schema);
+        Exception error = null;
+        try {
+            retry(dataSource, schema, cache, control);
+        } catch (SQLException | IOException | RuntimeException err) {
+            error = err;
+            throw err;
+        } finally {
+            listener.migrationFinished(schema, Duration.ofNanos(System.nanoTime() - start), error);
+        }
+    }
+
+    /**
+     * Update the given schema of the given database, retrying it after the transient errors allowed by the retry
+     * policy.
+     * @param dataSource the given database (not null)
+     * @param schema the schema to update (null for the default schema of the connections)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @param control the listener, timeout and cancellation of the update (not null)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     * @throws IOException if unable to update database due to some file reading issues.
+     */
+    private void retry(final DataSource dataSource, final String schema, final ScriptCache cache,
+                       final ExecutionControl control) throws SQLException, IOException {
+        long first = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                migrate(dataSource, schema, cache, control);
+                return;
+            } catch (SQLException err) {
+                // the statements deferred by the failed attempt have been rolled back, the next attempt defers them again
+                control.takeDeferred();
+                if (this.retryPolicy == null || control.isCancelled()) {
+                    throw err;
+                }
+                if (first == 0) {
+                    first = System.nanoTime();
+                }
+                final Duration delay = this.retryPolicy.nextDelay(attempt, err, Duration.ofNanos(System.nanoTime() - first));
+                if (delay == null) {
+                    throw err;
+                }
+                LOGGER.warn("transient failure (SQLState {}), retrying in {} ms: {}", err.getSQLState(), delay.toMillis(),
+                        err.getMessage());
+                this.retryCount.incrementAndGet();
+                this.retryWaitTime.addAndGet(delay.toNanos());
+                if (control.getListener() != null) {
+                    control.getListener().retried(attempt, delay, err);
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay.toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw err;
+                }
+                control.check();
+            }
+        }
+    }
+
+    /**
+     * Update the given database in background, with a virtual thread when the JVM supports them or with a new
+     * platform thread otherwise.
+     * @param dataSource the given database (not null)
+     * @return the future completed once the database updated. Cancelling it cancels the update.
+     */
+    public CompletableFuture<Void> updateAsync(final DataSource dataSource) {
+        return updateAsync(dataSource, null, null);
+    }
+
+    /**
+     * Update the given database in background.
+     * @param dataSource the given database (not null)
+     * @param executor the executor running the update (null for a virtual thread when the JVM supports them)
+     * @return the future completed once the database updated. Cancelling it cancels the update.
+     */
+    public CompletableFuture<Void> updateAsync(final DataSource dataSource, final Executor executor) {
+        return updateAsync(dataSource, executor, null);
+    }
+
+    /**
+     * Update the given database in background.
+     * <p>
+     * Cancelling the returned future cancels the running statements through <code>Statement.cancel()</code>,
+     * prevents the next statements from being executed and rolls back the uncommitted updates. The future then
+     * completes as cancelled without waiting for the rollback.
+     * </p>
+     * @param dataSource the given database (not null)
+     * @param executor the executor running the update (null for a virtual thread when the JVM supports them)
+     * @param progress the listener notified of the progress of this update, in addition to the listener of the
+     *                 migration (null if none)
+     * @return the future completed once the database updated. Cancelling it cancels the update.
+     */
+    public CompletableFuture<Void> updateAsync(final DataSource dataSource, final Executor executor,
+                                               final MigrationListener progress) {
+        Objects.requireNonNull(dataSource, "dataSource is mandatory");
+        final ExecutionControl control = new ExecutionControl(ExecutionControl.both(this.listener, progress), this.queryTimeout);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        future.whenComplete((result, err) -> {
+            if (future.isCancelled()) {
+                control.cancel();
+            }
+        });
+        final Runnable task = () -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                update(dataSource, null, this.cache, control);
+                future.complete(null);
+            } catch (Exception err) {
+                future.completeExceptionally(err);
+            }
+        };
+        try {
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                startThread(task);
+            }
+        } catch (RuntimeException err) {
+            future.completeExceptionally(err);
+        }
+        return future;
+    }
+
+    /**
+     * Starts a new thread running the given task: a virtual thread when the JVM supports them, a platform thread
+     * otherwise.
+     * @param task the task to run (not null)
+     */
+    private static void startThread(final Runnable task) {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> type = Class.forName("java.lang.Thread$Builder");
+            type.getMethod("name", String.class).invoke(builder, "horcrux-migration-" + THREADS.incrementAndGet());
+            type.getMethod("start", Runnable.class).invoke(builder, task);
+            return;
+        } catch (ReflectiveOperationException err) {
+            LOGGER.debug("virtual threads not supported, using a platform thread");
+        }
+        new Thread(task, "horcrux-migration-" + THREADS.incrementAndGet()).start();
+    }
+
+    /**
+     * Update the given schema of the given database.
+     * @param dataSource the given database (not null)
+     * @param schema the schema to update (null for the default schema of the connections)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @param control the listener, timeout and cancellation of the update (not null)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     * @throws IOException if unable to update database due to some file reading issues.
+     */
+    private void migrate(final DataSource dataSource, final String schema, final ScriptCache cache,
+                         final ExecutionControl control) throws SQLException, IOException {
+        Connection conn = null;
+        String defaultSchema = null;
+        MigrationLock.Handle locked = null;
+        try {
+            LOGGER.info("opening transactional connection...");
+            conn = dataSource.getConnection();
+            if (schema != null) {
+                defaultSchema = conn.getSchema();
+                conn.setSchema(schema);
+            }
+            final String fingerprint = !this.checkFingerprint ? null
+                    : cache == null ? Fingerprint.compute(this.scripts) : cache.fingerprint(this.scripts);
+            if (fingerprint != null && isUpToDate(conn, fingerprint) && !hasDeferred(conn)) {
+                LOGGER.info("database is up to date");
+                return;
+            }
+            if (this.lock != null) {
+                locked = lock(conn, control);
+                control.setLock(locked);
+                if (fingerprint != null && isUpToDate(conn, fingerprint)) {
+                    LOGGER.info("database updated by another node");
+                    runDeferred(conn, cache, control);
+                    return;
+                }
+            }
+            if (this.parallelConnections > 0) {
+                control.setParallelPhase(new ParallelPhase(dataSource, schema, this.parallelConnections));
+            }
+            if (this.verifyChecksums && hasVersionTable(conn, schema)) {
+                addChecksumColumn(conn, schema);
+            }
+            conn.setAutoCommit(false);
+            initialize(conn, schema, cache, control);
+            if (this.verifyChecksums) {
+                verifyChecksums(conn, cache);
+            }
+            if (this.transactionMode != TransactionMode.SINGLE) {
+                commit(conn, control);
+            }
+            runUpdateScripts(conn, cache, control);
+            if (fingerprint != null) {
+                setFingerprint(conn, fingerprint);
+            }
+            commit(conn, control);
+            runDeferred(conn, cache, control);
+        } catch (Exception err) {
+            if (conn != null) {
+                try {
+                    if (!conn.getAutoCommit()) {
+                        conn.rollback();
+                        if (control.getListener() != null) {
+                            control.getListener().rolledBack(err);
+                        }
+                    }
+                } catch (SQLException e) {
+                    LOGGER.warn("Unable to rollback updates: {}", e.getMessage());
+                }
+            }
+            throw err;
+        } finally {
+            control.setLock(null);
+            if (conn != null) {
+                unlock(conn, locked);
+                if (defaultSchema != null) {
+                    restoreSchema(conn, defaultSchema);
+                }
+                LOGGER.info("closing connection...");
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Commits the updates done so far, renewing the migration lock in the same transaction.
+     * @param conn the open connection (not null)
+     * @param control the listener, timeout and cancellation of the update (not null)
+     * @throws SQLException if unable to commit due to some SQL errors, if the migration lock has been lost or if
+     * the update is cancelled.
+     */
+    private static void commit(final Connection conn, final ExecutionControl control) throws SQLException {
+        control.check();
+        if (control.getLock() != null) {
+            control.getLock().renew();
+        }
+        LOGGER.info("committing transaction...");
+        final MigrationListener listener = control.getListener();
+        final long start = listener == null ? 0 : System.nanoTime();
+        conn.commit();
+        if (listener != null) {
+            listener.committed(Duration.ofNanos(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Computes the scripts that <code>update</code> would apply to the given database, without updating it.
+     * @param dataSource the given database (not null)
+     * @return the plan, that can be printed
+     * @throws SQLException if unable to read database due to some SQL errors.
+     * @throws IOException if unable to read the scripts due to some file reading issues.
+     * @see #plan(DataSource, MigrationRecorder)
+     */
+    public MigrationPlan plan(final DataSource dataSource) throws SQLException, IOException {
+        return plan(dataSource, null);
+    }
+
+    /**
+     * Computes the scripts that <code>update</code> would apply to the given database, without updating it, and
+     * estimates their duration from the timings of earlier runs.
+     * <p>
+     * The connection is read-only: the versions declared by <code>versions.properties</code> or
+     * <code>populate.sql</code> are read from the scripts, not run, and compared to the version table. When the database is empty, the plan only tells that
+     * <code>schema.sql</code> would be applied. The statements of the pending scripts are counted, at once with a
+     * <code>MigrationBundle</code> or a cache already holding them.
+     * </p>
+     * @param dataSource the given database (not null)
+     * @param timings the timings of earlier runs, recorded by the listener of earlier updates or read by
+     *                <code>MigrationRecorder.readTimings(...)</code> (null for no estimate)
+     * @return the plan, that can be printed
+     * @throws SQLException if unable to read database due to some SQL errors.
+     * @throws IOException if unable to read the scripts due to some file reading issues.
+     */
+    public MigrationPlan plan(final DataSource dataSource, final MigrationRecorder timings) throws SQLException, IOException {
+        final NavigableMap<Integer, String> manifest = findManifest();
+        final NavigableMap<Integer, String> chain = manifest != null ? manifest
+                : VersionChain.parse(statements(VersionChain.POPULATE, this.cache));
+        try (Connection conn = dataSource.getConnection()) {
+            final boolean readOnly = conn.isReadOnly();
+            conn.setReadOnly(true);
+            try {
+                if (!hasVersionTable(conn, null)) {
+                    return new MigrationPlan(true, List.of(), List.of());
+                }
+                return plan(false, findPlannedScripts(conn, chain, timings), true, timings);
+            } finally {
+                conn.setReadOnly(readOnly);
+            }
+        }
+    }
+
+    /**
+     * @return the cache of the scripts already read or null if none.
+     */
+    ScriptCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * @return the number of extra connections opened by the parallel phases of an update.
+     */
+    int getParallelConnections() {
+        return this.parallelConnections;
+    }
+
+    /**
+     * Computes the fingerprint of the scripts, the hash of the names and contents of all the scripts.
+     * @return the fingerprint as 64 hexadecimal chars
+     * @throws IOException if unable to read the scripts.
+     */
+    public String getFingerprint() throws IOException {
+        return this.cache == null ? Fingerprint.compute(this.scripts) : this.cache.fingerprint(this.scripts);
+    }
+
+    /**
+     * Describes the options shaping the migrated database, besides the scripts.
+     * @return the description of the options
+     */
+    String describeOptions() {
+        return "versionTable=" + this.versionTable + ";createSchema=" + this.createSchema + ";runUpdates="
+                + this.runUpdates + ";checkFingerprint=" + this.checkFingerprint + ";verifyChecksums="
+                + this.verifyChecksums + ";baselines=" + this.baselines + ";baselineThreshold=" + this.baselineThreshold;
+    }
+
+    /**
+     * @return the number of times the migration lock has been taken.
+     */
+    public long getLockCount() {
+        return this.lockCount.get();
+    }
+
+    /**
+     * @return the total time spent waiting for the migration lock.
+     */
+    public Duration getLockWaitTime() {
+        return Duration.ofNanos(this.lockWaitTime.get());
+    }
+
+    /**
+     * @return the longest time spent waiting for the migration lock.
+     */
+    public Duration getMaxLockWaitTime() {
+        return Duration.ofNanos(this.maxLockWaitTime.get());
+    }
+
+    /**
+     * @return the number of updates retried after a transient error.
+     */
+    public long getRetryCount() {
+        return this.retryCount.get();
+    }
+
+    /**
+     * @return the total time spent waiting before retrying updates.
+     */
+    public Duration getRetryWaitTime() {
+        return Duration.ofNanos(this.retryWaitTime.get());
+    }
+
+    /**
+     * Takes the migration lock, waiting with a bounded backoff while another node holds it.
+     * @param conn the open connection in auto-commit mode (not null)
+     * @param control the listener, timeout and cancellation of the update (not null)
+     * @return the taken lock
+     * @throws SQLException if unable to take the lock before the timeout or due to some SQL errors.
+     */
+    private MigrationLock.Handle lock(final Connection conn, final ExecutionControl control) throws SQLException {
+        LOGGER.info("taking migration lock...");
+        final long start = System.nanoTime();
+        long backoff = MIN_LOCK_BACKOFF;
+        MigrationLock.Handle handle;
+        while ((handle = this.lock.tryAcquire(conn)) == null) {
+            control.check();
+            if (System.nanoTime() - start >= this.lockTimeout.toNanos()) {
+                throw new SQLTimeoutException("Unable to take migration lock within " + this.lockTimeout);
+            }
+            LOGGER.debug("migration lock held by another node, retrying in {} ms", backoff);
+            try {
+                TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for migration lock", err);
+            }
+            backoff = Math.min(backoff * 2, MAX_LOCK_BACKOFF);
+        }
+        final long waited = System.nanoTime() - start;
+        this.lockCount.incrementAndGet();
+        this.lockWaitTime.addAndGet(waited);
+        this.maxLockWaitTime.accumulateAndGet(waited, Math::max);
+        LOGGER.info("migration lock taken after {} ms", TimeUnit.NANOSECONDS.toMillis(waited));
+        if (control.getListener() != null) {
+            control.getListener().lockAcquired(Duration.ofNanos(waited));
+        }
+        return handle;
+    }
+
+    /**
+     * Releases the migration lock once the transaction is over.
+     * @param conn the open connection (not null)
+     * @param handle the taken lock (null if none)
+     */
+    private void unlock(final Connection conn, final MigrationLock.Handle handle) {
+        if (handle != null) {
+            LOGGER.info("releasing migration lock...");
+            try {
+                conn.setAutoCommit(true);
+                handle.release();
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to release migration lock: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gives back its default schema to the connection before closing it.
+     * @param conn the open connection (not null)
+     * @param schema the default schema of the connection (not null)
+     */
+    private static void restoreSchema(final Connection conn, final String schema) {
+        try {
+            conn.setSchema(schema);
+        } catch (SQLException e) {
+            LOGGER.warn("Unable to restore default schema: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether the scripts last applied have the given fingerprint.
+     * The check runs outside of any transaction so that a missing version table doesn't abort the update.
+     * @param conn the open connection in auto-commit mode (not null)
+     * @param fingerprint the fingerprint of the script directory (not null)
+     * @return true if the database is already up to date with the scripts
+     */
+    private boolean isUpToDate(final Connection conn, final String fingerprint) {
+        try {
+            return fingerprint.equals(findReserved(conn, FINGERPRINT_NUMBER));
+        } catch (SQLException err) {
+            LOGGER.debug("Unable to read scripts fingerprint: {}", err.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Checks if version table exists and creates schema if needed.
      * @param conn the open connection (not null)
+     * @param schema the schema to update (null for the default schema of the connection)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @param control the listener, timeout and cancellation of the update (not null)
      * @throws SQLException if unable to update database due to some SQL errors.
      * @throws IOException if unable to update database due to some file reading issues.
      */
-    private void initialize(final Connection conn) throws SQLException, IOException {
-        final DatabaseMetaData meta = conn.getMetaData();
-        try(ResultSet tables = meta.getTables(null, null, this.versionTable, null)) {
-            if (!tables.next()) {
-                if (!this.createSchema) {
-                    throw new SQLWarning("Missing table: " + this.versionTable);
-                }
-                LOGGER.info("creating schema...");
-                DataSourceUtils.execute(conn, this.scriptDir.resolve("schema.sql"));
+    private void initialize(final Connection conn, final String schema, final ScriptCache cache,
+                            final ExecutionControl control) throws SQLException, IOException {
+        if (!hasVersionTable(conn, schema)) {
+            if (!this.createSchema) {
+                throw new SQLWarning("Missing table: " + this.versionTable);
+            }
+            LOGGER.info("creating schema...");
+            execute(conn, "schema.sql", cache, null, 0, null, control);
+            if (this.verifyChecksums) {
+                addChecksumColumn(conn, schema);
+            }
+        } else {
+            final NavigableMap<Integer, String> manifest = findManifest();
+            if (manifest != null) {
+                LOGGER.info("populating versions table from {}...", VersionChain.MANIFEST);
+                populate(conn, manifest);
             } else {
                 LOGGER.info("populating versions table...");
-                DataSourceUtils.execute(conn, this.scriptDir.resolve("populate.sql"));
+                execute(conn, VersionChain.POPULATE, cache, null, 0, null, control);
+            }
+            repairActiveVersions(conn);
+        }
+    }
+
+    /**
+     * Keeps only the highest active version when several versions are active. The active flag is moved from one
+     * version to the next without rewriting the other rows, so the stray active rows of a table written by older
+     * releases or by hand are disabled once here.
+     * @param conn the open connection (not null)
+     * @throws SQLException if unable to read or update the versions due to some SQL errors.
+     */
+    private void repairActiveVersions(final Connection conn) throws SQLException {
+        final int current;
+        try (PreparedStatement statement = conn.prepareStatement(this.countActiveVersionsCmd);
+             ResultSet result = statement.executeQuery()) {
+            if (!result.next() || result.getInt(2) <= 1) {
+                return;
+            }
+            current = result.getInt(1);
+        }
+        LOGGER.warn("several active versions in table {}, keeping version {}", this.versionTable, current);
+        try (PreparedStatement statement = conn.prepareStatement(this.repairActiveVersionsCmd)) {
+            statement.setInt(1, current);
+            statement.execute();
+        }
+    }
+
+    /**
+     * Reads the version manifest of the scripts.
+     * @return the script of each version or null if the scripts have no version manifest
+     * @throws IOException if unable to read the manifest.
+     */
+    private NavigableMap<Integer, String> findManifest() throws IOException {
+        if (this.scripts instanceof MigrationBundle) {
+            return ((MigrationBundle) this.scripts).getManifest();
+        }
+        return VersionChain.read(this.scripts);
+    }
+
+    /**
+     * Stores the versions of the manifest, inserting the missing ones and updating the ones with another script,
+     * in JDBC batches. The versions already stored as declared are not written.
+     * @param conn the open connection (not null)
+     * @param manifest the script of each version (not null)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     */
+    private void populate(final Connection conn, final NavigableMap<Integer, String> manifest) throws SQLException {
+        final Map<Integer, String> stored = new HashMap<>();
+        try (PreparedStatement statement = conn.prepareStatement(this.findVersionsCmd)) {
+            statement.setInt(1, LAST_RESERVED_NUMBER);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    stored.put(result.getInt(1), result.getString(2));
+                }
+            }
+        }
+        int inserted = 0;
+        int updated = 0;
+        try (PreparedStatement insert = conn.prepareStatement(this.insertReservedCmd);
+             PreparedStatement update = conn.prepareStatement(this.updateScriptCmd)) {
+            for (Map.Entry<Integer, String> version : manifest.entrySet()) {
+                if (!stored.containsKey(version.getKey())) {
+                    insert.setInt(1, version.getKey());
+                    insert.setString(2, version.getValue());
+                    insert.addBatch();
+                    inserted++;
+                } else if (!Objects.equals(stored.get(version.getKey()), version.getValue())) {
+                    update.setString(1, version.getValue());
+                    update.setInt(2, version.getKey());
+                    update.addBatch();
+                    updated++;
+                }
+            }
+            if (inserted > 0) {
+                insert.executeBatch();
+            }
+            if (updated > 0) {
+                update.executeBatch();
             }
         }
+        LOGGER.info("{} versions inserted, {} updated", inserted, updated);
+    }
+
+    /**
+     * Checks if version table exists.
+     * @param conn the open connection (not null)
+     * @param schema the schema to update (null for the default schema of the connection)
+     * @return true if the version table exists
+     * @throws SQLException if unable to read database metadata.
+     */
+    private boolean hasVersionTable(final Connection conn, final String schema) throws SQLException {
+        final DatabaseMetaData meta = conn.getMetaData();
+        try(ResultSet tables = meta.getTables(null, schema, this.versionTable, null)) {
+            return tables.next();
+        }
     }
 
     /**
      * Checks database version and apply migration scripts if needed.
      * @param conn the open connection (not null)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @param control the listener, timeout and cancellation of the update (not null)
      * @throws SQLException if unable to update database due to some SQL errors.
      * @throws IOException if unable to update database due to some file reading issues.
      */
-    private void runUpdateScripts(final Connection conn) throws SQLException, IOException {
+    private void runUpdateScripts(final Connection conn, final ScriptCache cache, final ExecutionControl control) throws SQLException, IOException {
+        final List<MigrationPlan.Step> pending = findPendingScripts(conn);
+        if (pending.isEmpty()) {
+            return;
+        }
+        if(!this.runUpdates) {
+            throw new SQLWarning("Database is too old.");
+        }
+        final MigrationPlan plan = plan(false, pending, false, null);
+        if (!plan.getReplaced().isEmpty()) {
+            LOGGER.info("applying baseline {} instead of {} scripts", plan.getSteps().get(0).getScript(), plan.getReplaced().size());
+        }
+        int current = findActiveVersion(conn);
+        int skip = this.transactionMode == TransactionMode.SINGLE ? 0 : findCheckpoint(conn, plan.getSteps().get(0));
+        final List<String> names = new ArrayList<>(plan.getSteps().size());
+        for (MigrationPlan.Step step : plan.getSteps()) {
+            names.add(step.getScript());
+        }
+        try (PreparedStatement statement = conn.prepareStatement(this.moveActiveVersionCmd);
+             PreparedStatement checksums = this.verifyChecksums ? conn.prepareStatement(this.updateChecksumCmd) : null;
+             ScriptPrefetcher prefetcher = this.prefetch > 0
+                     ? new ScriptPrefetcher(this.scripts, names, this.prefetch, cache, this.mapScripts) : null) {
+            for (MigrationPlan.Step step : plan.getSteps()) {
+                final String script = step.getScript();
+                final String version = checksums == null || step.isBaseline() ? null : scriptVersion(script);
+                final String checksum;
+                if (this.transactionMode == TransactionMode.SINGLE) {
+                    checksum = execute(conn, script, cache, prefetcher, 0, null, control);
+                } else {
+                    if (skip > 0) {
+                        LOGGER.info("resuming script {} after {} committed statements", script, skip);
+                    }
+                    checksum = execute(conn, script, cache, prefetcher, skip,
+                            new ScriptCheckpoint(conn, step.getVersion(), script, control), control);
+                    skip = 0;
+                    setReserved(conn, CHECKPOINT_NUMBER, null);
+                    setReserved(conn, CHUNK_NUMBER, null);
+                }
+                if (checksums != null && !step.isBaseline()) {
+                    setChecksum(checksums, step.getVersion(), checksum, version);
+                }
+                setVersion(statement, current, step.getVersion());
+                current = step.getVersion();
+                if (this.transactionMode != TransactionMode.SINGLE) {
+                    commit(conn, control);
+                }
+            }
+        }
+    }
+
+    /**
+     * The checkpoints of a script applied in several transactions, stored in the version table.
+     */
+    private final class ScriptCheckpoint implements DataSourceUtils.Checkpoint {
+
+        /**
+         * The open connection.
+         */
+        private final Connection conn;
+
+        /**
+         * The version of the database once the script applied.
+         */
+        private final int version;
+
+        /**
+         * The name of the script.
+         */
+        private final String script;
+
+        /**
+         * The listener, timeout and cancellation of the update.
+         */
+        private final ExecutionControl control;
+
+        /**
+         * Constructor.
+         * @param conn the open connection (not null)
+         * @param version the version of the database once the script applied
+         * @param script the name of the script (not null)
+         * @param control the listener, timeout and cancellation of the update (not null)
+         */
+        private ScriptCheckpoint(final Connection conn, final int version, final String script,
+                                 final ExecutionControl control) {
+            this.conn = conn;
+            this.version = version;
+            this.script = script;
+            this.control = control;
+        }
+
+        @Override
+        public void reached(final int statements) throws SQLException {
+            storeDeferred(this.conn, this.script, this.control);
+            setReserved(this.conn, CHECKPOINT_NUMBER, this.version + ":" + statements);
+            commit(this.conn, this.control);
+        }
+
+        @Override
+        public void chunkReached(final int ordinal, final String last) throws SQLException {
+            final String position = this.version + ":" + ordinal + ":" + last;
+            if (position.length() > MAX_RESERVED_LENGTH) {
+                throw new SQLException("Chunk key too long to be stored in the version table ("
+                        + MAX_RESERVED_LENGTH + " characters with the version and the ordinal): " + last);
+            }
+            storeDeferred(this.conn, this.script, this.control);
+            setReserved(this.conn, CHECKPOINT_NUMBER, this.version + ":" + (ordinal - 1));
+            setReserved(this.conn, CHUNK_NUMBER, position);
+            commit(this.conn, this.control);
+        }
+
+        @Override
+        public String chunkPosition(final int ordinal) throws SQLException {
+            final String position = findReserved(this.conn, CHUNK_NUMBER);
+            final String prefix = this.version + ":" + ordinal + ":";
+            return position != null && position.startsWith(prefix) ? position.substring(prefix.length()) : null;
+        }
+
+    }
+
+    /**
+     * Finds the number of statements already committed by a previous update for the given script.
+     * @param conn the open connection (not null)
+     * @param step the next script to apply (not null)
+     * @return the number of statements to skip (0 if the checkpoint is missing or doesn't match the script)
+     * @throws SQLException if unable to read the checkpoint due to some SQL errors.
+     */
+    private int findCheckpoint(final Connection conn, final MigrationPlan.Step step) throws SQLException {
+        final String checkpoint = findReserved(conn, CHECKPOINT_NUMBER);
+        final String prefix = step.getVersion() + ":";
+        if (checkpoint == null || !checkpoint.startsWith(prefix)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(checkpoint.substring(prefix.length()));
+        } catch (NumberFormatException err) {
+            LOGGER.warn("Ignoring invalid checkpoint: {}", checkpoint);
+            return 0;
+        }
+    }
+
+    /**
+     * Finds the current version of the database.
+     * @param conn the open connection (not null)
+     * @return the current version
+     * @throws SQLException if unable to read the versions due to some SQL errors.
+     */
+    private int findActiveVersion(final Connection conn) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(this.findActiveVersionCmd)) {
+            try (ResultSet result = statement.executeQuery()) {
+                if (!result.next()) {
+                    throw new SQLException("No active version in table: " + this.versionTable);
+                }
+                return result.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * Finds the scripts to apply, newer than the current version of the database.
+     * @param conn the open connection (not null)
+     * @return the pending scripts in version order
+     * @throws SQLException if unable to read the versions due to some SQL errors.
+     */
+    private List<MigrationPlan.Step> findPendingScripts(final Connection conn) throws SQLException {
+        final List<MigrationPlan.Step> pending = new ArrayList<>();
         try (PreparedStatement statement = conn.prepareStatement(this.findScriptsCmd)) {
             try (ResultSet result = statement.executeQuery()) {
-                if (result.next()) {
-                    if(!this.runUpdates) {
-                        throw new SQLWarning("Database is too old.");
+                while (result.next()) {
+                    pending.add(new MigrationPlan.Step(result.getInt(1), result.getString(2), false, -1));
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Finds the scripts that an update would apply, from the version table and the versions declared by
+     * <code>populate.sql</code>, without running it.
+     * @param conn the open connection (not null)
+     * @param chain the script of each version declared by <code>populate.sql</code> (not null)
+     * @param timings the timings of earlier runs (null for no estimate)
+     * @return the pending scripts in version order, with their statements counted
+     * @throws SQLException if unable to read the versions due to some SQL errors.
+     * @throws IOException if unable to count the statements due to some file reading issues.
+     */
+    private List<MigrationPlan.Step> findPlannedScripts(final Connection conn, final NavigableMap<Integer, String> chain,
+                                                        final MigrationRecorder timings) throws SQLException, IOException {
+        final NavigableMap<Integer, String> scripts = new TreeMap<>();
+        for (MigrationPlan.Step step : findPendingScripts(conn)) {
+            scripts.put(step.getVersion(), step.getScript());
+        }
+        for (Map.Entry<Integer, String> version : chain.tailMap(findActiveVersion(conn), false).entrySet()) {
+            if (version.getValue() == null) {
+                scripts.remove(version.getKey());
+            } else {
+                scripts.put(version.getKey(), version.getValue());
+            }
+        }
+        final List<MigrationPlan.Step> pending = new ArrayList<>(scripts.size());
+        for (Map.Entry<Integer, String> script : scripts.entrySet()) {
+            pending.add(step(script.getKey(), script.getValue(), false, timings));
+        }
+        return pending;
+    }
+
+    /**
+     * Plans the scripts to apply, replacing the oldest pending scripts by a baseline script when there are too many.
+     * @param createSchema true if the database has to be created first
+     * @param pending the pending scripts in version order (not null)
+     * @param count true to count the statements of the baseline script
+     * @param timings the timings of earlier runs, to estimate the duration of the baseline script (null if none)
+     * @return the plan
+     * @throws IOException if unable to count the statements due to some file reading issues.
+     */
+    private MigrationPlan plan(final boolean createSchema, final List<MigrationPlan.Step> pending, final boolean count,
+                               final MigrationRecorder timings) throws IOException {
+        for (Map.Entry<Integer, String> baseline : this.baselines.descendingMap().entrySet()) {
+            int covered = 0;
+            while (covered < pending.size() && pending.get(covered).getVersion() <= baseline.getKey()) {
+                covered++;
+            }
+            if (covered > 0 && covered > this.baselineThreshold) {
+                final int version = pending.get(covered - 1).getVersion();
+                final List<MigrationPlan.Step> steps = new ArrayList<>();
+                steps.add(count ? step(version, baseline.getValue(), true, timings)
+                        : new MigrationPlan.Step(version, baseline.getValue(), true, -1));
+                steps.addAll(pending.subList(covered, pending.size()));
+                return new MigrationPlan(createSchema, steps, pending.subList(0, covered));
+            }
+        }
+        return new MigrationPlan(createSchema, pending, List.of());
+    }
+
+    /**
+     * Describes a script to apply, with its number of statements and its estimated duration.
+     * @param version the version of the database once the script applied
+     * @param script the name of the script in the script source (not null)
+     * @param baseline true if the script is a baseline
+     * @param timings the timings of earlier runs (null for no estimate)
+     * @return the step
+     * @throws IOException if unable to count the statements due to some file reading issues.
+     */
+    private MigrationPlan.Step step(final int version, final String script, final boolean baseline,
+                                    final MigrationRecorder timings) throws IOException {
+        return new MigrationPlan.Step(version, script, baseline, countStatements(script),
+                timings == null ? null : timings.getAverageScriptTime(this.scripts.path(script)));
+    }
+
+    /**
+     * Counts the statements of a script.
+     * @param script the name of the script in the script source (not null)
+     * @return the number of statements
+     * @throws IOException if unable to read the script.
+     */
+    private int countStatements(final String script) throws IOException {
+        if (this.scripts instanceof MigrationBundle || this.cache != null) {
+            return statements(script, this.cache).size();
+        }
+        int count = 0;
+        try (ScriptParser parser = ScriptParser.open(this.scripts, script, this.mapScripts)) {
+            while (parser.next() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads all the statements of a script.
+     * @param script the name of the script in the script source (not null)
+     * @param cache the scripts already read (null to read the script from the source)
+     * @return the statements of the script
+     * @throws IOException if unable to read the script.
+     */
+    private List<SqlStatement> statements(final String script, final ScriptCache cache) throws IOException {
+        return cache == null ? ScriptParser.parse(this.scripts, script, this.mapScripts)
+                : cache.statements(this.scripts, script, this.mapScripts);
+    }
+
+    /**
+     * Executes a script, committing it by parts when a checkpoint is given.
+     * @param conn the open connection (not null)
+     * @param script the name of the script in the script source (not null)
+     * @param cache the scripts already read during the current run (null to read the script from the file)
+     * @param prefetcher the scripts read in advance, giving the statements of this script (null if none)
+     * @param skip the number of statements already committed, not executed
+     * @param checkpoint the callback committing the statements executed so far (null for none)
+     * @param control the listener, timeout and cancellation of the update (not null)
+     * @return the checksum of the script, computed while executing it (null if checksums are not verified)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     * @throws IOException if unable to update database due to some file reading issues.
+     */
+    private String execute(final Connection conn, final String script, final ScriptCache cache, final ScriptPrefetcher prefetcher,
+                           final int skip, final DataSourceUtils.Checkpoint checkpoint,
+                           final ExecutionControl control) throws SQLException, IOException {
+        final MigrationListener listener = control.getListener();
+        final long start = listener == null ? 0 : System.nanoTime();
+        final Path file = this.scripts.path(script);
+        if (listener != null) {
+            listener.scriptStarted(file);
+        }
+        LOGGER.info("running script: {}", file);
+        final int interval = this.transactionMode == TransactionMode.CHECKPOINT ? this.checkpointInterval : 0;
+        final DataSourceUtils.Options options = new DataSourceUtils.Options()
+                .batchSize(this.batchSize)
+                .listener(listener, file)
+                .checkpoint(skip, interval, checkpoint)
+                .control(control);
+        final int statements;
+        final String checksum;
+        if (prefetcher == null && cache == null && !(this.scripts instanceof MigrationBundle)) {
+            try (ScriptParser parser = ScriptParser.open(this.scripts, script, this.mapScripts)) {
+                if (this.verifyChecksums) {
+                    parser.withChecksum();
+                }
+                statements = DataSourceUtils.execute(conn, parser::next, options);
+                checksum = this.verifyChecksums ? parser.getChecksum() : null;
+            }
+        } else {
+            final List<SqlStatement> parsed = prefetcher != null ? prefetcher.next() : statements(script, cache);
+            statements = DataSourceUtils.execute(conn, DataSourceUtils.Statements.of(parsed), options);
+            checksum = !this.verifyChecksums ? null
+                    : this.scripts instanceof MigrationBundle ? ((MigrationBundle) this.scripts).getHash(script)
+                    : ScriptChecksum.of(parsed);
+        }
+        storeDeferred(conn, script, control);
+        if (listener != null) {
+            listener.scriptFinished(file, statements, Duration.ofNanos(System.nanoTime() - start));
+        }
+        return checksum;
+    }
+
+    /**
+     * Stores the statements of a script deferred after the commit, in the transaction of the statements executed
+     * before them, so that they are executed even if the update stops once committed. Each statement is stored as
+     * <code>ordinal:checksum:script</code>, with the first chars of its checksum.
+     * @param conn the open connection (not null)
+     * @param script the name of the running script (not null)
+     * @param control the statements deferred so far (not null)
+     * @throws SQLException if unable to store the statements, if there are too many of them or if the name of the
+     * script is too long.
+     */
+    private void storeDeferred(final Connection conn, final String script, final ExecutionControl control) throws SQLException {
+        final Map<Integer, String> checksums = control.takeDeferred();
+        if (checksums.isEmpty()) {
+            return;
+        }
+        final NavigableMap<Integer, String[]> stored = findDeferred(conn);
+        int number = stored.isEmpty() ? DEFERRED_NUMBER : stored.lastKey() + 1;
+        try (PreparedStatement statement = conn.prepareStatement(this.insertReservedCmd)) {
+            for (Map.Entry<Integer, String> checksum : checksums.entrySet()) {
+                if (number > LAST_RESERVED_NUMBER) {
+                    throw new SQLException("Too many deferred statements in version table: " + this.versionTable);
+                }
+                final String value = checksum.getKey() + ":"
+                        + checksum.getValue().substring(0, DEFERRED_CHECKSUM_LENGTH) + ":" + script;
+                if (value.length() > MAX_RESERVED_LENGTH) {
+                    throw new SQLException("Script name too long to store its deferred statements in the version table ("
+                            + MAX_RESERVED_LENGTH + " characters with the ordinal and the checksum): " + script);
+                }
+                statement.setInt(1, number++);
+                statement.setString(2, value);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Finds the deferred statements not executed yet.
+     * @param conn the open connection (not null)
+     * @return the script, ordinal and checksum of each deferred statement by reserved version number, in execution
+     * order
+     * @throws SQLException if unable to read the version table.
+     */
+    private NavigableMap<Integer, String[]> findDeferred(final Connection conn) throws SQLException {
+        final NavigableMap<Integer, String[]> deferred = new TreeMap<>();
+        try (PreparedStatement statement = conn.prepareStatement(this.findDeferredCmd)) {
+            statement.setInt(1, DEFERRED_NUMBER);
+            statement.setInt(2, LAST_RESERVED_NUMBER);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    final String value = result.getString(2);
+                    final String[] parts = value.split(":", 3);
+                    if (parts.length < 3 || parts[1].length() != DEFERRED_CHECKSUM_LENGTH) {
+                        throw new SQLException("Invalid deferred statement in version table: " + value);
+                    }
+                    deferred.put(result.getInt(1), new String[] {parts[2], parts[0], parts[1]});
+                }
+            }
+        }
+        return deferred;
+    }
+
+    /**
+     * Checks whether deferred statements are still to be executed.
+     * @param conn the open connection (not null)
+     * @return true if some deferred statements are still to be executed
+     */
+    private boolean hasDeferred(final Connection conn) {
+        try {
+            return !findDeferred(conn).isEmpty();
+        } catch (SQLException err) {
+            LOGGER.debug("Unable to read deferred statements: {}", err.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Executes the deferred statements in auto-commit mode, once the update committed, removing each of them from
+     * the version table once done. A failed statement is executed again by the next update, unless its script has
+     * been modified since.
+     * @param conn the open connection (not null)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @param control the listener, timeout and cancellation of the update (not null)
+     * @throws SQLException if a deferred statement fails.
+     * @throws IOException if unable to read the script of a deferred statement.
+     */
+    private void runDeferred(final Connection conn, final ScriptCache cache, final ExecutionControl control) throws SQLException, IOException {
+        final NavigableMap<Integer, String[]> deferred = findDeferred(conn);
+        if (deferred.isEmpty()) {
+            return;
+        }
+        conn.setAutoCommit(true);
+        final MigrationListener listener = control.getListener();
+        int remaining = deferred.size();
+        try (Statement statement = conn.createStatement()) {
+            control.register(statement);
+            try {
+                for (Map.Entry<Integer, String[]> entry : deferred.entrySet()) {
+                    final String script = entry.getValue()[0];
+                    final List<SqlStatement> statements = statements(script, cache);
+                    final int ordinal;
+                    try {
+                        ordinal = Integer.parseInt(entry.getValue()[1]);
+                    } catch (NumberFormatException err) {
+                        throw new SQLException("Invalid deferred statement in version table: " + entry.getValue()[1], err);
+                    }
+                    if (ordinal < 1 || ordinal > statements.size()) {
+                        throw new SQLException("Missing deferred statement " + ordinal + " of script: " + script);
+                    }
+                    final SqlStatement next = statements.get(ordinal - 1);
+                    if (!ScriptChecksum.of(next.getSql()).startsWith(entry.getValue()[2])) {
+                        throw new SQLException("Deferred statement " + ordinal + " of script " + script
+                                + " modified since it was deferred, at line " + next.getLine());
+                    }
+                    control.check();
+                    LOGGER.info("running deferred statement {}/{} at line {} of {}", deferred.size() - remaining + 1,
+                            deferred.size(), next.getLine(), script);
+                    final long start = System.nanoTime();
+                    try {
+                        statement.execute(next.getSql());
+                    } catch (SQLException err) {
+                        throw DataSourceUtils.failure(next.getSql(), next.getLine(), err);
+                    }
+                    setReserved(conn, entry.getKey(), null);
+                    remaining--;
+                    if (listener != null) {
+                        listener.deferredStatementExecuted(this.scripts.path(script), next.getLine(), next.getSql(),
+                                remaining, Duration.ofNanos(System.nanoTime() - start));
+                    }
+                }
+            } finally {
+                control.unregister(statement);
+            }
+        }
+    }
+
+    /**
+     * Adds the checksum and script version columns to the version table if missing. Called before the update
+     * transaction is open, as some databases commit the pending updates with any DDL statement, or just after the
+     * version table is created.
+     * @param conn the open connection (not null)
+     * @param schema the schema to update (null for the default schema of the connection)
+     * @throws SQLException if unable to add the columns due to some SQL errors.
+     */
+    private void addChecksumColumn(final Connection conn, final String schema) throws SQLException {
+        for (String column : List.of(CHECKSUM_COLUMN, SCRIPT_VERSION_COLUMN)) {
+            if (!hasColumn(conn, schema, column)) {
+                LOGGER.info("adding {} column to versions table...", column);
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute(String.format(ADD_COLUMN, this.versionTable, column));
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies that the scripts already applied have not been modified, storing the checksum of the scripts applied
+     * before the checksums were verified. A script whose version is the one stored with its checksum is not read.
+     * @param conn the open connection (not null)
+     * @param cache the scripts already read during the current run (null to read the scripts from the files)
+     * @throws SQLException if an applied script has been modified or if unable to read the checksums.
+     * @throws IOException if unable to read an applied script.
+     */
+    private void verifyChecksums(final Connection conn, final ScriptCache cache) throws SQLException, IOException {
+        try (PreparedStatement statement = conn.prepareStatement(this.findAppliedCmd);
+             PreparedStatement checksums = conn.prepareStatement(this.updateChecksumCmd);
+             PreparedStatement versions = conn.prepareStatement(this.updateScriptVersionCmd)) {
+            statement.setInt(1, LAST_RESERVED_NUMBER);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    final String script = result.getString(2);
+                    final String expected = result.getString(3);
+                    final String version = scriptVersion(script);
+                    if (expected != null && version != null && version.equals(result.getString(4))) {
+                        continue;
+                    }
+                    final String actual = cache == null ? ScriptParser.checksum(this.scripts, script, this.mapScripts)
+                            : cache.checksum(this.scripts, script, this.mapScripts);
+                    if (expected == null) {
+                        setChecksum(checksums, result.getInt(1), actual, version);
+                    } else if (!expected.equals(actual)) {
+                        throw new SQLException("Applied script has been modified: " + script);
+                    } else if (version != null) {
+                        versions.setString(1, version);
+                        versions.setInt(2, result.getInt(1));
+                        versions.execute();
                     }
-                    do {
-                        DataSourceUtils.execute(conn, this.scriptDir.resolve(result.getString(2)));
-                        setVersion(conn, result.getInt(1));
-                    } while (result.next());
                 }
             }
         }
     }
 
     /**
-     * Updates the current database version.
+     * Gives the version of a script to store with its checksum.
+     * @param script the name of the script (not null)
+     * @return the version of the script, null if the script source has no versions or if it is too long to be stored
+     * @throws IOException if unable to read the version of the script
+     */
+    private String scriptVersion(final String script) throws IOException {
+        final String version = this.scripts.version(script);
+        return version.isEmpty() || version.length() > MAX_CHECKSUM_LENGTH ? null : version;
+    }
+
+    /**
+     * Checks if the version table has the given column.
      * @param conn the open connection (not null)
+     * @param schema the schema to update (null for the default schema of the connection)
+     * @param column the name of the column (not null)
+     * @return true if the column exists
+     * @throws SQLException if unable to read database metadata.
+     */
+    private boolean hasColumn(final Connection conn, final String schema, final String column) throws SQLException {
+        try (ResultSet columns = conn.getMetaData().getColumns(null, schema, this.versionTable, null)) {
+            while (columns.next()) {
+                if (column.equalsIgnoreCase(columns.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stores the checksum of an applied script.
+     * @param statement the prepared statement storing the checksums, reused for all the versions (not null)
+     * @param version the version of the database once the script applied
+     * @param checksum the checksum of the script (not null)
+     * @param scriptVersion the version of the script read to compute the checksum (null if unknown)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     */
+    private static void setChecksum(final PreparedStatement statement, final int version, final String checksum,
+                                    final String scriptVersion) throws SQLException {
+        statement.setString(1, checksum);
+        statement.setString(2, scriptVersion);
+        statement.setInt(3, version);
+        statement.execute();
+    }
+
+    /**
+     * Updates the current database version, writing only the rows of the old and the new versions.
+     * @param statement the prepared statement moving the active flag, reused for all the versions (not null)
+     * @param current the current version number
      * @param version the new version number
      * @throws SQLException if unable to update database due to some SQL errors.
      */
-    private void setVersion(final Connection conn, final int version) throws SQLException {
-        try (PreparedStatement statement = conn.prepareStatement(this.enableVersionCmd)) {
-            statement.setInt(1, version);
-            statement.execute();
+    private static void setVersion(final PreparedStatement statement, final int current, final int version) throws SQLException {
+        statement.setInt(1, version);
+        statement.setInt(2, current);
+        statement.setInt(3, version);
+        statement.execute();
+    }
+
+    /**
+     * Stores the fingerprint of the scripts applied.
+     * @param conn the open connection (not null)
+     * @param fingerprint the fingerprint of the script directory (not null)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     */
+    private void setFingerprint(final Connection conn, final String fingerprint) throws SQLException {
+        setReserved(conn, FINGERPRINT_NUMBER, fingerprint);
+    }
+
+    /**
+     * Reads a reserved row of the version table.
+     * @param conn the open connection (not null)
+     * @param number the reserved version number
+     * @return the value stored in the row or null if the row is missing
+     * @throws SQLException if unable to read database due to some SQL errors.
+     */
+    private String findReserved(final Connection conn, final int number) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(this.findReservedCmd)) {
+            statement.setInt(1, number);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getString(1) : null;
+            }
         }
-        try (PreparedStatement statement = conn.prepareStatement(this.disableOtherVersionsCmd)) {
-            statement.setInt(1, version);
+    }
+
+    /**
+     * Stores a reserved row of the version table.
+     * @param conn the open connection (not null)
+     * @param number the reserved version number
+     * @param value the value to store (null to remove the row)
+     * @throws SQLException if unable to update database due to some SQL errors.
+     */
+    private void setReserved(final Connection conn, final int number, final String value) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(this.deleteReservedCmd)) {
+            statement.setInt(1, number);
             statement.execute();
         }
+        if (value != null) {
+            try (PreparedStatement statement = conn.prepareStatement(this.insertReservedCmd)) {
+                statement.setInt(1, number);
+                statement.setString(2, value);
+                statement.execute();
+            }
+        }
     }
 
 }
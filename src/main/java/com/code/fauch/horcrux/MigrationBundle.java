@@ -0,0 +1,410 @@
+package com.code.fauch.horcrux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The <code>MigrationBundle</code> class holds all the SQL scripts of a <code>Migration</code>, validated and already
+ * split into statements at build time.
+ * <p>
+ * {@link #compile(ScriptSource)} reads and checks the <code>.sql</code> scripts of a source: directives of the
+ * statements, version chain of <code>versions.properties</code> or <code>populate.sql</code> referencing existing
+ * scripts. {@link #write(Path)} stores the
+ * result in a compressed binary file, with the hash of each script and the fingerprint of the source.
+ * </p>
+ * <p>
+ * The bundle is built by the project holding the scripts, not by this library: its build runs {@link #main(String[])}
+ * once the resources are copied, with horcrux and slf4j on the class path, for instance in the
+ * <code>process-classes</code> phase with the <code>java</code> goal of the <code>exec-maven-plugin</code>:
+ * </p>
+ * <pre>
+ * &lt;plugin&gt;
+ *     &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;
+ *     &lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *     &lt;executions&gt;
+ *         &lt;execution&gt;
+ *             &lt;phase&gt;process-classes&lt;/phase&gt;
+ *             &lt;goals&gt;&lt;goal&gt;java&lt;/goal&gt;&lt;/goals&gt;
+ *             &lt;configuration&gt;
+ *                 &lt;mainClass&gt;com.code.fauch.horcrux.MigrationBundle&lt;/mainClass&gt;
+ *                 &lt;arguments&gt;
+ *                     &lt;argument&gt;src/main/sql&lt;/argument&gt;
+ *                     &lt;argument&gt;${project.build.outputDirectory}/migration.bundle&lt;/argument&gt;
+ *                 &lt;/arguments&gt;
+ *             &lt;/configuration&gt;
+ *         &lt;/execution&gt;
+ *     &lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ * <p>
+ * or from any other build tool with:
+ * </p>
+ * <pre>
+ *     java -cp horcrux.jar:slf4j-api.jar com.code.fauch.horcrux.MigrationBundle src/main/sql target/classes/migration.bundle
+ * </pre>
+ * <p>
+ * At startup, the bundle read by {@link #read(InputStream)} is given to <code>Migration.Builder.withScripts(...)</code>:
+ * the scripts are neither listed nor parsed again and the fingerprint is the one computed at build time.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public final class MigrationBundle implements ScriptSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationBundle.class);
+
+    /**
+     * The first bytes of a bundle ("HCXB").
+     */
+    private static final int MAGIC = 0x48435842;
+
+    /**
+     * The version of the bundle format.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * The extension of the scripts kept in a bundle.
+     */
+    private static final String EXTENSION = ".sql";
+
+    /**
+     * The fingerprint of the source of the scripts.
+     */
+    private final String fingerprint;
+
+    /**
+     * The scripts by name, sorted.
+     */
+    private final NavigableMap<String, Script> scripts;
+
+    /**
+     * The script of each version declared by <code>versions.properties</code> or <code>populate.sql</code> (null for
+     * a version without script).
+     */
+    private final NavigableMap<Integer, String> versions;
+
+    /**
+     * True if the versions are given by the version manifest <code>versions.properties</code>.
+     */
+    private final boolean manifest;
+
+    /**
+     * A script of the bundle.
+     */
+    private static final class Script {
+
+        /**
+         * The checksum of the statements of the script.
+         */
+        private final String hash;
+
+        /**
+         * The statements of the script.
+         */
+        private final List<SqlStatement> statements;
+
+        /**
+         * Constructor.
+         * @param hash the hash of the statements (not null)
+         * @param statements the statements (not null)
+         */
+        private Script(final String hash, final List<SqlStatement> statements) {
+            this.hash = hash;
+            this.statements = Collections.unmodifiableList(statements);
+        }
+
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fingerprint the fingerprint of the source of the scripts (not null)
+     * @param scripts the scripts by name (not null)
+     * @param versions the script of each version (not null)
+     * @param manifest true if the versions are given by the version manifest
+     */
+    private MigrationBundle(final String fingerprint, final NavigableMap<String, Script> scripts,
+                            final NavigableMap<Integer, String> versions, final boolean manifest) {
+        this.fingerprint = fingerprint;
+        this.scripts = scripts;
+        this.versions = versions;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Reads, splits and validates all the <code>.sql</code> scripts of a source.
+     *
+     * @param source the source of the scripts (not null)
+     * @return the bundle
+     * @throws IOException if unable to read the scripts or if a script is invalid
+     */
+    public static MigrationBundle compile(final ScriptSource source) throws IOException {
+        Objects.requireNonNull(source, "source is mandatory");
+        final NavigableMap<String, Script> scripts = new TreeMap<>();
+        for (String name : source.list()) {
+            if (name.endsWith(EXTENSION)) {
+                final List<SqlStatement> statements = ScriptParser.parse(source, name, false);
+                validate(name, statements);
+                scripts.put(name, new Script(ScriptChecksum.of(statements), statements));
+            }
+        }
+        final NavigableMap<Integer, String> manifest = VersionChain.read(source);
+        final Script populate = scripts.get(VersionChain.POPULATE);
+        final NavigableMap<Integer, String> versions = manifest != null ? manifest
+                : populate == null ? new TreeMap<>() : VersionChain.parse(populate.statements);
+        for (Map.Entry<Integer, String> version : versions.entrySet()) {
+            if (version.getValue() != null && !scripts.containsKey(version.getValue())) {
+                throw new IOException("Missing script of version " + version.getKey() + ": " + version.getValue());
+            }
+        }
+        return new MigrationBundle(Fingerprint.compute(source), scripts, versions, manifest != null);
+    }
+
+    /**
+     * Reads a bundle written by {@link #write(Path)}.
+     *
+     * @param file the path of the bundle (not null)
+     * @return the bundle
+     * @throws IOException if unable to read the bundle
+     */
+    public static MigrationBundle read(final Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(Objects.requireNonNull(file, "file is mandatory"))) {
+            return read(input);
+        }
+    }
+
+    /**
+     * Reads a bundle written by {@link #write(Path)}, typically a resource of the classpath.
+     *
+     * @param input the stream of the bundle, not closed (not null)
+     * @return the bundle
+     * @throws IOException if unable to read the bundle
+     */
+    public static MigrationBundle read(final InputStream input) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Objects.requireNonNull(input, "input is mandatory"))));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a migration bundle");
+        }
+        final int format = data.readInt();
+        if (format != FORMAT) {
+            throw new IOException("Unsupported migration bundle format " + format + ", expected " + FORMAT
+                    + ": build the bundle again with this version of horcrux");
+        }
+        final String fingerprint = data.readUTF();
+        final boolean manifest = data.readBoolean();
+        final NavigableMap<Integer, String> versions = new TreeMap<>();
+        for (int i = data.readInt(); i > 0; i--) {
+            final int number = data.readInt();
+            versions.put(number, data.readBoolean() ? data.readUTF() : null);
+        }
+        final NavigableMap<String, Script> scripts = new TreeMap<>();
+        for (int i = data.readInt(); i > 0; i--) {
+            final String name = data.readUTF();
+            final String hash = data.readUTF();
+            final int size = data.readInt();
+            final List<SqlStatement> statements = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                final int line = data.readInt();
+                final String directive = data.readBoolean() ? data.readUTF() : null;
+                final byte[] sql = new byte[data.readInt()];
+                data.readFully(sql);
+                statements.add(new SqlStatement(new String(sql, StandardCharsets.UTF_8), line, directive));
+            }
+            scripts.put(name, new Script(hash, statements));
+        }
+        return new MigrationBundle(fingerprint, scripts, versions, manifest);
+    }
+
+    /**
+     * Writes the bundle in a file.
+     *
+     * @param file the path of the bundle (not null)
+     * @throws IOException if unable to write the bundle
+     */
+    public void write(final Path file) throws IOException {
+        try (OutputStream output = Files.newOutputStream(Objects.requireNonNull(file, "file is mandatory"))) {
+            write(output);
+        }
+    }
+
+    /**
+     * Writes the bundle.
+     *
+     * @param output the stream of the bundle, not closed (not null)
+     * @throws IOException if unable to write the bundle
+     */
+    public void write(final OutputStream output) throws IOException {
+        final GZIPOutputStream zip = new GZIPOutputStream(Objects.requireNonNull(output, "output is mandatory"));
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(zip));
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT);
+        data.writeUTF(this.fingerprint);
+        data.writeBoolean(this.manifest);
+        data.writeInt(this.versions.size());
+        for (Map.Entry<Integer, String> version : this.versions.entrySet()) {
+            data.writeInt(version.getKey());
+            data.writeBoolean(version.getValue() != null);
+            if (version.getValue() != null) {
+                data.writeUTF(version.getValue());
+            }
+        }
+        data.writeInt(this.scripts.size());
+        for (Map.Entry<String, Script> script : this.scripts.entrySet()) {
+            data.writeUTF(script.getKey());
+            data.writeUTF(script.getValue().hash);
+            data.writeInt(script.getValue().statements.size());
+            for (SqlStatement statement : script.getValue().statements) {
+                data.writeInt(statement.getLine());
+                data.writeBoolean(statement.getDirective() != null);
+                if (statement.getDirective() != null) {
+                    data.writeUTF(statement.getDirective());
+                }
+                final byte[] sql = statement.getSql().getBytes(StandardCharsets.UTF_8);
+                data.writeInt(sql.length);
+                data.write(sql);
+            }
+        }
+        data.flush();
+        zip.finish();
+    }
+
+    /**
+     * @return the fingerprint of the source the bundle was compiled from.
+     */
+    public String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * @return the script of each version declared by <code>versions.properties</code> or <code>populate.sql</code>
+     * (null for a version without script).
+     */
+    public NavigableMap<Integer, String> getVersions() {
+        return Collections.unmodifiableNavigableMap(this.versions);
+    }
+
+    /**
+     * @return the script of each version declared by <code>versions.properties</code> or null if the scripts have
+     * no version manifest.
+     */
+    NavigableMap<Integer, String> getManifest() {
+        return this.manifest ? getVersions() : null;
+    }
+
+    /**
+     * Gives the checksum of the statements of a script, the one stored by <code>Migration</code> for each applied
+     * script.
+     *
+     * @param name the name of the script (not null)
+     * @return the SHA-256 hash as 64 hexadecimal chars, or null if the script is not in the bundle
+     */
+    public String getHash(final String name) {
+        final Script script = this.scripts.get(name);
+        return script == null ? null : script.hash;
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(this.scripts.keySet());
+    }
+
+    /**
+     * Opens a script, written back from its statements.
+     */
+    @Override
+    public InputStream open(final String name) throws IOException {
+        final StringBuilder content = new StringBuilder();
+        for (SqlStatement statement : statements(name)) {
+            if (statement.getDirective() != null) {
+                content.append("-- ").append(statement.getDirective()).append('\n');
+            }
+            content.append(statement.getSql()).append(";\n");
+        }
+        return new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gives the statements of a script.
+     *
+     * @param name the name of the script (not null)
+     * @return the statements of the script
+     * @throws NoSuchFileException if the script is not in the bundle
+     */
+    List<SqlStatement> statements(final String name) throws NoSuchFileException {
+        final Script script = this.scripts.get(name);
+        if (script == null) {
+            throw new NoSuchFileException(name);
+        }
+        return script.statements;
+    }
+
+    /**
+     * Compiles the scripts of a directory into a bundle.
+     *
+     * @param args the path of the script directory and the path of the bundle
+     * @throws IOException if unable to read the scripts, if a script is invalid or if unable to write the bundle
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: MigrationBundle <script directory> <bundle file>");
+        }
+        final MigrationBundle bundle = compile(ScriptSource.directory(Paths.get(args[0])));
+        final Path file = Paths.get(args[1]);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        bundle.write(file);
+        LOGGER.info("{} scripts and {} versions written to {}", bundle.scripts.size(), bundle.versions.size(), file);
+    }
+
+    /**
+     * Checks the directives of the statements of a script.
+     *
+     * @param name the name of the script (not null)
+     * @param statements the statements of the script (not null)
+     * @throws IOException if a directive is invalid
+     */
+    private static void validate(final String name, final List<SqlStatement> statements) throws IOException {
+        for (SqlStatement statement : statements) {
+            if (ChunkedStatement.isChunked(statement.getDirective())) {
+                try {
+                    new ChunkedStatement(statement.getSql(), statement.getDirective());
+                } catch (SQLException err) {
+                    throw new IOException("Invalid statement at line " + statement.getLine() + " of " + name + ": "
+                            + err.getMessage(), err);
+                }
+            } else if (statement.getDirective() != null && !ParallelPhase.isParallel(statement.getDirective())
+                    && !ExecutionControl.isDeferred(statement.getDirective())) {
+                throw new IOException("Unknown directive at line " + statement.getLine() + " of " + name + ": "
+                        + statement.getDirective());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+package com.code.fauch.horcrux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The <code>MigrationExecutor</code> class updates many tenants concurrently with the same <code>Migration</code>.
+ * <p>
+ * A tenant is either a whole database (database-per-tenant) or a schema of a shared database (schema-per-tenant).
+ * The scripts are read and parsed once per run and shared by all the tenants, through the cache of the migration
+ * or a cache dedicated to the run if the migration has none. The failure of a tenant doesn't stop
+ * the others: each tenant gets its own <code>MigrationResult</code>.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public final class MigrationExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationExecutor.class);
+
+    /**
+     * The migration applied to each tenant.
+     */
+    private final Migration migration;
+
+    /**
+     * The maximum number of tenants updated at the same time.
+     */
+    private final int parallelism;
+
+    /**
+     * Option to specify whether the tenants should be updated by virtual threads or not.
+     */
+    private final boolean virtualThreads;
+
+    /**
+     * The maximum number of connections used at the same time from the same data source (0 for no limit).
+     */
+    private final int maxConnections;
+
+    /**
+     * The number of connections used at the same time to update a tenant.
+     */
+    private final int tenantConnections;
+
+    /**
+     * Builder to create and configure <code>MigrationExecutor</code> object.
+     *
+     * @author c.fauch
+     *
+     */
+    public static final class Builder {
+
+        /**
+         * The migration applied to each tenant.
+         */
+        private final Migration migration;
+
+        /**
+         * The parallelism option.
+         */
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * The virtual threads option.
+         */
+        private boolean virtualThreads = false;
+
+        /**
+         * The connections by data source option.
+         */
+        private int maxConnections = 0;
+
+        /**
+         * Constructor.
+         * @param migration the migration to apply to each tenant (not null)
+         */
+        public Builder(final Migration migration) {
+            this.migration = Objects.requireNonNull(migration, "migration is mandatory");
+        }
+
+        /**
+         * Specifies the maximum number of tenants updated at the same time.
+         * @param parallelism the number of tenants (the number of processors by default)
+         * @return this builder
+         */
+        public MigrationExecutor.Builder parallelism(final int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be strictly positive");
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Specifies whether the tenants should be updated by virtual threads instead of a pool of platform threads.
+         * Ignored if the JVM doesn't support virtual threads.
+         * @param option true to use virtual threads
+         * @return this builder
+         */
+        public MigrationExecutor.Builder virtualThreads(final boolean option) {
+            this.virtualThreads = option;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of connections used at the same time from the same data source. Each tenant
+         * being updated uses one connection, plus the extra connections of the parallel phases of the migration, and
+         * a tenant waiting for the connections of its data source doesn't prevent the tenants of the other data
+         * sources from being updated.
+         * @param max the number of connections (0 for no limit, which is the default)
+         * @return this builder
+         */
+        public MigrationExecutor.Builder maxConnections(final int max) {
+            if (max < 0) {
+                throw new IllegalArgumentException("max connections must not be negative");
+            }
+            this.maxConnections = max;
+            return this;
+        }
+
+        /**
+         * Build the <code>MigrationExecutor</code> object
+         * @return the corresponding <code>MigrationExecutor</code> instance
+         */
+        public MigrationExecutor build() {
+            final int connections = 1 + this.migration.getParallelConnections();
+            if (this.maxConnections > 0 && this.maxConnections < connections) {
+                throw new IllegalArgumentException("max connections must be at least " + connections
+                        + " to update a tenant with the parallel connections of the migration");
+            }
+            return new MigrationExecutor(this);
+        }
+
+    }
+
+    /**
+     * A tenant to update.
+     */
+    private static final class Tenant {
+
+        /**
+         * The name of the tenant.
+         */
+        private final String name;
+
+        /**
+         * The database of the tenant.
+         */
+        private final DataSource dataSource;
+
+        /**
+         * The schema of the tenant (null for the default schema).
+         */
+        private final String schema;
+
+        /**
+         * Constructor.
+         * @param name the name of the tenant (not null)
+         * @param dataSource the database of the tenant (not null)
+         * @param schema the schema of the tenant (null for the default schema)
+         */
+        private Tenant(final String name, final DataSource dataSource, final String schema) {
+            this.name = Objects.requireNonNull(name, "name is mandatory");
+            this.dataSource = Objects.requireNonNull(dataSource, "dataSource is mandatory");
+            this.schema = schema;
+        }
+
+    }
+
+    /**
+     * Constructor.
+     * @param builder the builder (not null)
+     */
+    private MigrationExecutor(final Builder builder) {
+        this.migration = builder.migration;
+        this.parallelism = builder.parallelism;
+        this.virtualThreads = builder.virtualThreads;
+        this.maxConnections = builder.maxConnections;
+        this.tenantConnections = 1 + builder.migration.getParallelConnections();
+    }
+
+    /**
+     * Updates the given databases, one per tenant.
+     * @param dataSources the database of each tenant by tenant name (not null)
+     * @return the result of each tenant, in the iteration order of the map
+     * @throws InterruptedException if interrupted while waiting for the updates.
+     */
+    public List<MigrationResult> update(final Map<String, DataSource> dataSources) throws InterruptedException {
+        final List<Tenant> tenants = new ArrayList<>(dataSources.size());
+        for (Map.Entry<String, DataSource> entry : dataSources.entrySet()) {
+            tenants.add(new Tenant(entry.getKey(), entry.getValue(), null));
+        }
+        return run(tenants);
+    }
+
+    /**
+     * Updates the given schemas of a database, one per tenant.
+     * @param dataSource the database shared by the tenants (not null)
+     * @param schemas the schema of each tenant, used as tenant name (not null)
+     * @return the result of each tenant, in the iteration order of the collection
+     * @throws InterruptedException if interrupted while waiting for the updates.
+     */
+    public List<MigrationResult> update(final DataSource dataSource, final Collection<String> schemas) throws InterruptedException {
+        final List<Tenant> tenants = new ArrayList<>(schemas.size());
+        for (String schema : schemas) {
+            tenants.add(new Tenant(schema, dataSource, Objects.requireNonNull(schema, "schema is mandatory")));
+        }
+        return run(tenants);
+    }
+
+    /**
+     * Updates the given tenants.
+     * @param tenants the tenants to update (not null)
+     * @return the result of each tenant, in the same order
+     * @throws InterruptedException if interrupted while waiting for the updates.
+     */
+    private List<MigrationResult> run(final List<Tenant> tenants) throws InterruptedException {
+        LOGGER.info("updating {} tenants...", tenants.size());
+        final ScriptCache cache = this.migration.getCache() == null ? new ScriptCache(Integer.MAX_VALUE) : this.migration.getCache();
+        final Semaphore running = new Semaphore(this.parallelism);
+        final Map<DataSource, Semaphore> connections = new IdentityHashMap<>();
+        if (this.maxConnections > 0) {
+            for (Tenant tenant : tenants) {
+                connections.computeIfAbsent(tenant.dataSource, key -> new Semaphore(this.maxConnections));
+            }
+        }
+        final ExecutorService executor = newExecutor(tenants.size());
+        try {
+            final List<Future<MigrationResult>> futures = new ArrayList<>(tenants.size());
+            for (Tenant tenant : tenants) {
+                futures.add(executor.submit(() -> update(tenant, cache, running, connections.get(tenant.dataSource))));
+            }
+            final List<MigrationResult> results = new ArrayList<>(tenants.size());
+            for (Future<MigrationResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException err) {
+                    throw new IllegalStateException("Unexpected error while updating tenant", err.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Updates a tenant, waiting for the connections of its data source then for a free slot, so that a tenant
+     * waiting for its data source doesn't hold the slot of a tenant of another data source.
+     * @param tenant the tenant to update (not null)
+     * @param cache the scripts read during the run (not null)
+     * @param running the slots of the tenants updated at the same time (not null)
+     * @param connections the connections of the data source of the tenant (null for no limit)
+     * @return the result of the tenant
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     */
+    private MigrationResult update(final Tenant tenant, final ScriptCache cache, final Semaphore running,
+                                   final Semaphore connections) throws InterruptedException {
+        if (connections != null) {
+            connections.acquire(this.tenantConnections);
+        }
+        try {
+            running.acquire();
+            try {
+                final long start = System.nanoTime();
+                Exception error = null;
+                try {
+                    this.migration.update(tenant.dataSource, tenant.schema, cache);
+                } catch (Exception err) {
+                    LOGGER.warn("Unable to update tenant {}: {}", tenant.name, err.getMessage());
+                    error = err;
+                }
+                return new MigrationResult(tenant.name, error, Duration.ofNanos(System.nanoTime() - start));
+            } finally {
+                running.release();
+            }
+        } finally {
+            if (connections != null) {
+                connections.release(this.tenantConnections);
+            }
+        }
+    }
+
+    /**
+     * Creates the executor running the updates.
+     * @param tenants the number of tenants to update
+     * @return a virtual thread per task executor if asked and supported, a pool of platform threads otherwise
+     */
+    private ExecutorService newExecutor(final int tenants) {
+        if (this.virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException err) {
+                LOGGER.info("virtual threads not supported, using platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, Math.min(this.parallelism, tenants)));
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.code.fauch.horcrux;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+
+/**
+ * The <code>MigrationListener</code> interface defines the events notified while updating a database.
+ * <p>
+ * All the methods do nothing by default. A listener given to a <code>Migration</code> used by a
+ * <code>MigrationExecutor</code> is notified by many threads at the same time and must be thread safe.
+ * When no listener is registered, no event is built and no time is measured.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public interface MigrationListener {
+
+    /**
+     * Notified when the update of a database starts.
+     * @param schema the updated schema (null for the default schema)
+     */
+    default void migrationStarted(final String schema) {
+    }
+
+    /**
+     * Notified when the migration lock is taken.
+     * @param waited the time spent waiting for the lock
+     */
+    default void lockAcquired(final Duration waited) {
+    }
+
+    /**
+     * Notified before executing a script.
+     * @param script the path of the script
+     */
+    default void scriptStarted(final Path script) {
+    }
+
+    /**
+     * Notified after executing a statement. The statements sent in the same JDBC batch share evenly the duration of
+     * the batch.
+     * @param script the path of the script
+     * @param ordinal the ordinal of the statement in the script (from 1)
+     * @param line the line of the script where the statement starts
+     * @param sql the SQL text of the statement
+     * @param rows the number of rows updated by the statement (-1 if unknown or if the statement is a query)
+     * @param duration the duration of the statement
+     */
+    default void statementExecuted(final Path script, final int ordinal, final int line, final String sql,
+                                   final long rows, final Duration duration) {
+    }
+
+    /**
+     * Notified after each chunk of a statement run by chunks (<code>-- horcrux:chunked</code> directive). The
+     * statement itself is notified once all its chunks done.
+     * @param script the path of the script
+     * @param ordinal the ordinal of the statement in the script (from 1)
+     * @param chunk the number of the chunk (from 1)
+     * @param rows the number of rows updated by the chunk
+     * @param duration the duration of the chunk
+     */
+    default void chunkExecuted(final Path script, final int ordinal, final int chunk, final long rows,
+                               final Duration duration) {
+    }
+
+    /**
+     * Notified after a parallel phase (<code>-- horcrux:parallel</code> directive) run on extra connections. Each
+     * statement of the phase is notified before, with its own duration.
+     * @param script the path of the script
+     * @param statements the number of statements of the phase
+     * @param duration the wall-clock duration of the phase
+     * @param saved the wall-clock time saved, that is the total duration of the statements minus the duration of
+     *              the phase
+     */
+    default void parallelPhaseExecuted(final Path script, final int statements, final Duration duration,
+                                       final Duration saved) {
+    }
+
+    /**
+     * Notified after a statement deferred after the commit (<code>-- horcrux:deferred</code> directive) has been
+     * executed, in auto-commit mode.
+     * @param script the path of the script
+     * @param line the line of the script where the statement starts
+     * @param sql the SQL text of the statement
+     * @param remaining the number of deferred statements still to execute
+     * @param duration the duration of the statement
+     */
+    default void deferredStatementExecuted(final Path script, final int line, final String sql, final int remaining,
+                                           final Duration duration) {
+    }
+
+    /**
+     * Notified after executing a script successfully.
+     * @param script the path of the script
+     * @param statements the number of statements of the script
+     * @param duration the duration of the script
+     */
+    default void scriptFinished(final Path script, final int statements, final Duration duration) {
+    }
+
+    /**
+     * Notified when an update failed due to a transient error is about to be retried, once rolled back.
+     * @param attempt the number of the failed attempt (from 1)
+     * @param delay the time waited before retrying
+     * @param cause the transient error
+     */
+    default void retried(final int attempt, final Duration delay, final SQLException cause) {
+    }
+
+    /**
+     * Notified after committing the updates.
+     * @param duration the duration of the commit
+     */
+    default void committed(final Duration duration) {
+    }
+
+    /**
+     * Notified after rolling back the updates.
+     * @param cause the error that caused the rollback
+     */
+    default void rolledBack(final Exception cause) {
+    }
+
+    /**
+     * Notified when the update of a database ends.
+     * @param schema the updated schema (null for the default schema)
+     * @param duration the duration of the update
+     * @param error the error raised by the update (null if succeeded)
+     */
+    default void migrationFinished(final String schema, final Duration duration, final Exception error) {
+    }
+
+}
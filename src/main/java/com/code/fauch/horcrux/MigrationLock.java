@@ -0,0 +1,94 @@
+package com.code.fauch.horcrux;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * The <code>MigrationLock</code> interface defines the lock preventing several nodes from updating the same
+ * database at the same time.
+ * <p>
+ * <code>Migration</code> calls {@link #tryAcquire(Connection)} with an auto-commit connection until the lock is
+ * taken, waiting with a bounded backoff between two attempts. The lock is released once the migration transaction
+ * is committed or rolled back, and renewed before each commit of the migration.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public interface MigrationLock {
+
+    /**
+     * A lock taken by the current node.
+     */
+    interface Handle {
+
+        /**
+         * Releases the lock.
+         * @throws SQLException if unable to release the lock due to some SQL errors.
+         */
+        void release() throws SQLException;
+
+        /**
+         * Renews the lock before each commit of the migration, in the committed transaction. Does nothing by
+         * default, for the locks that can't be lost while the node is alive.
+         * @throws SQLException if the lock has been lost or due to some SQL errors.
+         */
+        default void renew() throws SQLException {
+        }
+
+    }
+
+    /**
+     * Tries once to take the lock.
+     * @param conn the open connection, in auto-commit mode (not null)
+     * @return the taken lock or null if the lock is held by another node
+     * @throws SQLException if unable to take the lock due to some SQL errors.
+     */
+    Handle tryAcquire(Connection conn) throws SQLException;
+
+    /**
+     * Creates a lock stored in a single row table, created if needed. Works with any database.
+     * A lock held for more than 10 minutes is considered abandoned by a dead node and can be taken again.
+     * @param table the name of the lock table (not null)
+     * @return the lock
+     */
+    static MigrationLock table(final String table) {
+        return table(table, TableMigrationLock.DEFAULT_LEASE);
+    }
+
+    /**
+     * Creates a lock stored in a single row table, created if needed. Works with any database.
+     * <p>
+     * The lease starts again at each commit of the migration, so it must be longer than the longest transaction
+     * (the whole update in <code>SINGLE</code> mode). A node whose lease expired and whose lock has been taken by
+     * another node fails at its next commit and rolls back. The lease is measured with the clocks of the nodes,
+     * that must be synchronized.
+     * </p>
+     * @param table the name of the lock table (not null)
+     * @param lease the duration after which a lock still held is considered abandoned (not null)
+     * @return the lock
+     */
+    static MigrationLock table(final String table, final Duration lease) {
+        return new TableMigrationLock(table, lease);
+    }
+
+    /**
+     * Creates a lock based on PostgreSQL session advisory locks.
+     * @param key the key of the advisory lock
+     * @return the lock
+     */
+    static MigrationLock advisory(final long key) {
+        return new AdvisoryMigrationLock(key);
+    }
+
+    /**
+     * Creates a lock shared only by the migrations of the current JVM. Useful with in-memory databases.
+     * @param name the name of the lock (not null)
+     * @return the lock
+     */
+    static MigrationLock local(final String name) {
+        return new LocalMigrationLock(Objects.requireNonNull(name, "name is mandatory"));
+    }
+
+}
@@ -0,0 +1,235 @@
+package com.code.fauch.horcrux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The <code>MigrationPlan</code> class describes the scripts to apply to update a database, in order.
+ * <p>
+ * When a baseline script is declared for a version and the number of pending scripts up to this version exceeds the
+ * baseline threshold, the baseline script replaces all of them. The plan tells how many scripts and statements
+ * are saved that way.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public final class MigrationPlan {
+
+    /**
+     * A script to apply.
+     */
+    public static final class Step {
+
+        /**
+         * The version of the database once the script applied.
+         */
+        private final int version;
+
+        /**
+         * The name of the script in the script directory.
+         */
+        private final String script;
+
+        /**
+         * True if the script is a baseline replacing older scripts.
+         */
+        private final boolean baseline;
+
+        /**
+         * The number of statements of the script (-1 if unknown).
+         */
+        private final int statements;
+
+        /**
+         * The duration of the script estimated from earlier runs (null if unknown).
+         */
+        private final Duration estimate;
+
+        /**
+         * Constructor.
+         * @param version the version of the database once the script applied
+         * @param script the name of the script (not null)
+         * @param baseline true if the script is a baseline
+         * @param statements the number of statements of the script (-1 if unknown)
+         */
+        Step(final int version, final String script, final boolean baseline, final int statements) {
+            this(version, script, baseline, statements, null);
+        }
+
+        /**
+         * Constructor.
+         * @param version the version of the database once the script applied
+         * @param script the name of the script (not null)
+         * @param baseline true if the script is a baseline
+         * @param statements the number of statements of the script (-1 if unknown)
+         * @param estimate the duration of the script estimated from earlier runs (null if unknown)
+         */
+        Step(final int version, final String script, final boolean baseline, final int statements,
+             final Duration estimate) {
+            this.version = version;
+            this.script = Objects.requireNonNull(script, "script is mandatory");
+            this.baseline = baseline;
+            this.statements = statements;
+            this.estimate = estimate;
+        }
+
+        /**
+         * @return the version of the database once the script applied.
+         */
+        public int getVersion() {
+            return this.version;
+        }
+
+        /**
+         * @return the name of the script in the script directory.
+         */
+        public String getScript() {
+            return this.script;
+        }
+
+        /**
+         * @return true if the script is a baseline replacing older scripts.
+         */
+        public boolean isBaseline() {
+            return this.baseline;
+        }
+
+        /**
+         * @return the number of statements of the script or -1 if unknown.
+         */
+        public int getStatements() {
+            return this.statements;
+        }
+
+        /**
+         * @return the duration of the script estimated from earlier runs or null if unknown.
+         */
+        public Duration getEstimatedDuration() {
+            return this.estimate;
+        }
+
+        @Override
+        public String toString() {
+            return "v" + this.version + ": " + this.script + (this.baseline ? " (baseline)" : "")
+                    + (this.statements < 0 ? "" : ", " + this.statements + " statements")
+                    + (this.estimate == null ? "" : ", ~" + this.estimate.toMillis() + " ms");
+        }
+
+    }
+
+    /**
+     * True if the database is empty and has to be created by <code>schema.sql</code>.
+     */
+    private final boolean createSchema;
+
+    /**
+     * The scripts to apply, in order.
+     */
+    private final List<Step> steps;
+
+    /**
+     * The pending scripts replaced by a baseline.
+     */
+    private final List<Step> replaced;
+
+    /**
+     * Constructor.
+     * @param createSchema true if the database has to be created by <code>schema.sql</code>
+     * @param steps the scripts to apply (not null)
+     * @param replaced the pending scripts replaced by a baseline (not null)
+     */
+    MigrationPlan(final boolean createSchema, final List<Step> steps, final List<Step> replaced) {
+        this.createSchema = createSchema;
+        this.steps = List.copyOf(steps);
+        this.replaced = List.copyOf(replaced);
+    }
+
+    /**
+     * @return true if the database is empty and has to be created by <code>schema.sql</code>.
+     */
+    public boolean isCreateSchema() {
+        return this.createSchema;
+    }
+
+    /**
+     * @return the scripts to apply, in order.
+     */
+    public List<Step> getSteps() {
+        return this.steps;
+    }
+
+    /**
+     * @return the pending scripts replaced by a baseline.
+     */
+    public List<Step> getReplaced() {
+        return this.replaced;
+    }
+
+    /**
+     * Estimates the duration of the scripts to apply from earlier runs.
+     * @return the sum of the estimated durations of the scripts or null if the duration of a script is unknown
+     */
+    public Duration getEstimatedDuration() {
+        Duration total = Duration.ZERO;
+        for (Step step : this.steps) {
+            if (step.getEstimatedDuration() == null) {
+                return null;
+            }
+            total = total.plus(step.getEstimatedDuration());
+        }
+        return total;
+    }
+
+    /**
+     * @return true if there is nothing to apply.
+     */
+    public boolean isEmpty() {
+        return !this.createSchema && this.steps.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder plan = new StringBuilder();
+        if (this.createSchema) {
+            plan.append("create schema: schema.sql").append(System.lineSeparator());
+        }
+        for (Step step : this.steps) {
+            plan.append(step).append(System.lineSeparator());
+        }
+        if (!this.replaced.isEmpty()) {
+            plan.append("baseline replaces ").append(this.replaced.size()).append(" scripts");
+            final int replacedStatements = count(this.replaced);
+            final int baselineStatements = this.steps.get(0).getStatements();
+            if (replacedStatements >= 0 && baselineStatements >= 0) {
+                plan.append(" (").append(replacedStatements - baselineStatements).append(" statements saved)");
+            }
+            plan.append(System.lineSeparator());
+        }
+        final Duration estimate = getEstimatedDuration();
+        if (!this.steps.isEmpty() && estimate != null) {
+            plan.append("estimated duration: ").append(estimate.toMillis()).append(" ms").append(System.lineSeparator());
+        }
+        if (isEmpty()) {
+            plan.append("database is up to date").append(System.lineSeparator());
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Counts the statements of the given steps.
+     * @param steps the steps (not null)
+     * @return the number of statements or -1 if unknown
+     */
+    private static int count(final List<Step> steps) {
+        int count = 0;
+        for (Step step : steps) {
+            if (step.getStatements() < 0) {
+                return -1;
+            }
+            count += step.getStatements();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,349 @@
+package com.code.fauch.horcrux;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Properties;
+
+/**
+ * The <code>MigrationRecorder</code> class is a thread safe <code>MigrationListener</code> keeping in memory the
+ * statistics of the updates: duration of each script, number of statements and rows, slowest statements, lock
+ * waits, commits and rollbacks. Use {@link #report()} to get a summary.
+ *
+ * @author c.fauch
+ */
+public final class MigrationRecorder implements MigrationListener {
+
+    /**
+     * The default number of slowest statements kept.
+     */
+    private static final int DEFAULT_SLOWEST = 10;
+
+    /**
+     * The maximum length of the SQL text kept for the slowest statements.
+     */
+    private static final int MAX_SQL_LENGTH = 120;
+
+    /**
+     * The number of slowest statements kept.
+     */
+    private final int slowestCount;
+
+    /**
+     * The statistics of each script, in execution order.
+     */
+    private final Map<Path, ScriptStats> scripts = new LinkedHashMap<>();
+
+    /**
+     * The slowest statements, the fastest of them first.
+     */
+    private final PriorityQueue<StatementStats> slowest = new PriorityQueue<>(Comparator.comparing(s -> s.duration));
+
+    private long migrations = 0;
+    private long failures = 0;
+    private long statements = 0;
+    private long rows = 0;
+    private long commits = 0;
+    private long rollbacks = 0;
+    private Duration migrationTime = Duration.ZERO;
+    private Duration lockWaitTime = Duration.ZERO;
+    private Duration commitTime = Duration.ZERO;
+    private Duration parallelTimeSaved = Duration.ZERO;
+    private long retries = 0;
+    private Duration retryWaitTime = Duration.ZERO;
+
+    /**
+     * Statistics of a script.
+     */
+    private static final class ScriptStats {
+        private long runs = 0;
+        private long statements = 0;
+        private long rows = 0;
+        private Duration duration = Duration.ZERO;
+    }
+
+    /**
+     * An executed statement.
+     */
+    private static final class StatementStats {
+
+        private final Path script;
+        private final int line;
+        private final String sql;
+        private final Duration duration;
+
+        private StatementStats(final Path script, final int line, final String sql, final Duration duration) {
+            this.script = script;
+            this.line = line;
+            this.sql = sql.length() > MAX_SQL_LENGTH ? sql.substring(0, MAX_SQL_LENGTH) + "..." : sql;
+            this.duration = duration;
+        }
+
+    }
+
+    /**
+     * Constructor of a recorder keeping the 10 slowest statements.
+     */
+    public MigrationRecorder() {
+        this(DEFAULT_SLOWEST);
+    }
+
+    /**
+     * Constructor.
+     * @param slowest the number of slowest statements to keep
+     */
+    public MigrationRecorder(final int slowest) {
+        if (slowest < 0) {
+            throw new IllegalArgumentException("slowest must not be negative");
+        }
+        this.slowestCount = slowest;
+    }
+
+    @Override
+    public synchronized void lockAcquired(final Duration waited) {
+        this.lockWaitTime = this.lockWaitTime.plus(waited);
+    }
+
+    @Override
+    public synchronized void statementExecuted(final Path script, final int ordinal, final int line, final String sql,
+                                               final long rows, final Duration duration) {
+        this.statements++;
+        final ScriptStats stats = this.scripts.computeIfAbsent(script, key -> new ScriptStats());
+        stats.statements++;
+        if (rows > 0) {
+            this.rows += rows;
+            stats.rows += rows;
+        }
+        if (this.slowestCount > 0) {
+            if (this.slowest.size() < this.slowestCount) {
+                this.slowest.add(new StatementStats(script, line, sql, duration));
+            } else if (this.slowest.peek().duration.compareTo(duration) < 0) {
+                this.slowest.poll();
+                this.slowest.add(new StatementStats(script, line, sql, duration));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void scriptFinished(final Path script, final int statements, final Duration duration) {
+        final ScriptStats stats = this.scripts.computeIfAbsent(script, key -> new ScriptStats());
+        stats.runs++;
+        stats.duration = stats.duration.plus(duration);
+    }
+
+    @Override
+    public synchronized void parallelPhaseExecuted(final Path script, final int statements, final Duration duration,
+                                                   final Duration saved) {
+        this.parallelTimeSaved = this.parallelTimeSaved.plus(saved);
+    }
+
+    @Override
+    public synchronized void retried(final int attempt, final Duration delay, final SQLException cause) {
+        this.retries++;
+        this.retryWaitTime = this.retryWaitTime.plus(delay);
+    }
+
+    @Override
+    public synchronized void committed(final Duration duration) {
+        this.commits++;
+        this.commitTime = this.commitTime.plus(duration);
+    }
+
+    @Override
+    public synchronized void rolledBack(final Exception cause) {
+        this.rollbacks++;
+    }
+
+    @Override
+    public synchronized void migrationFinished(final String schema, final Duration duration, final Exception error) {
+        this.migrations++;
+        if (error != null) {
+            this.failures++;
+        }
+        this.migrationTime = this.migrationTime.plus(duration);
+    }
+
+    /**
+     * @return the number of finished updates.
+     */
+    public synchronized long getMigrations() {
+        return this.migrations;
+    }
+
+    /**
+     * @return the number of failed updates.
+     */
+    public synchronized long getFailures() {
+        return this.failures;
+    }
+
+    /**
+     * @return the number of executed statements.
+     */
+    public synchronized long getStatements() {
+        return this.statements;
+    }
+
+    /**
+     * @return the number of rows updated by the executed statements.
+     */
+    public synchronized long getRows() {
+        return this.rows;
+    }
+
+    /**
+     * @return the wall-clock time saved by running the parallel phases on extra connections.
+     */
+    public synchronized Duration getParallelTimeSaved() {
+        return this.parallelTimeSaved;
+    }
+
+    /**
+     * @return the number of updates retried after a transient error.
+     */
+    public synchronized long getRetries() {
+        return this.retries;
+    }
+
+    /**
+     * @return the total time spent waiting before retrying updates.
+     */
+    public synchronized Duration getRetryWaitTime() {
+        return this.retryWaitTime;
+    }
+
+    /**
+     * @return the number of committed updates.
+     */
+    public synchronized long getCommits() {
+        return this.commits;
+    }
+
+    /**
+     * @return the number of rolled back updates.
+     */
+    public synchronized long getRollbacks() {
+        return this.rollbacks;
+    }
+
+    /**
+     * Gives the total time spent executing the given script.
+     * @param script the path of the script (not null)
+     * @return the duration or zero if the script has not been executed
+     */
+    public synchronized Duration getScriptTime(final Path script) {
+        final ScriptStats stats = this.scripts.get(script);
+        return stats == null ? Duration.ZERO : stats.duration;
+    }
+
+    /**
+     * Gives the average time spent executing the given script, to estimate the next runs. When the script has not
+     * been executed with this path, the runs of a script with the same file name are used, such as the runs recorded
+     * on another host.
+     * @param script the path of the script (not null)
+     * @return the average duration or null if the script has not been executed
+     */
+    public synchronized Duration getAverageScriptTime(final Path script) {
+        ScriptStats stats = this.scripts.get(script);
+        if (stats == null || stats.runs == 0) {
+            stats = null;
+            for (Map.Entry<Path, ScriptStats> entry : this.scripts.entrySet()) {
+                if (entry.getValue().runs > 0 && Objects.equals(entry.getKey().getFileName(), script.getFileName())) {
+                    stats = entry.getValue();
+                }
+            }
+        }
+        return stats == null ? null : stats.duration.dividedBy(stats.runs);
+    }
+
+    /**
+     * Writes the number of runs and the time spent executing each script, so that the next updates can be
+     * estimated by another process with {@link #readTimings(Path)}.
+     * @param file the path of the properties file (not null)
+     * @throws IOException if unable to write the file
+     */
+    public void writeTimings(final Path file) throws IOException {
+        final Properties timings = new Properties();
+        synchronized (this) {
+            for (Map.Entry<Path, ScriptStats> entry : this.scripts.entrySet()) {
+                if (entry.getValue().runs > 0) {
+                    timings.setProperty(entry.getKey().toString(),
+                            entry.getValue().runs + "," + entry.getValue().duration.toNanos());
+                }
+            }
+        }
+        try (Writer writer = Files.newBufferedWriter(Objects.requireNonNull(file, "file is mandatory"), StandardCharsets.UTF_8)) {
+            timings.store(writer, "horcrux script timings: runs,nanoseconds");
+        }
+    }
+
+    /**
+     * Reads the timings written by {@link #writeTimings(Path)}.
+     * @param file the path of the properties file (not null)
+     * @return a recorder with the number of runs and the time spent executing each script
+     * @throws IOException if unable to read the file
+     */
+    public static MigrationRecorder readTimings(final Path file) throws IOException {
+        final Properties timings = new Properties();
+        try (Reader reader = Files.newBufferedReader(Objects.requireNonNull(file, "file is mandatory"), StandardCharsets.UTF_8)) {
+            timings.load(reader);
+        }
+        final MigrationRecorder recorder = new MigrationRecorder();
+        for (String script : timings.stringPropertyNames()) {
+            final String[] values = timings.getProperty(script).split(",");
+            try {
+                final ScriptStats stats = new ScriptStats();
+                stats.runs = Long.parseLong(values[0].trim());
+                stats.duration = Duration.ofNanos(Long.parseLong(values[1].trim()));
+                recorder.scripts.put(Paths.get(script), stats);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException err) {
+                throw new IOException("Invalid timing of " + script + ": " + timings.getProperty(script), err);
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * Builds a summary of the recorded updates.
+     * @return the summary, one line per item
+     */
+    public synchronized String report() {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("migrations: %d (%d failed) in %d ms, lock wait %d ms, %d commits in %d ms, %d rollbacks, %d retries after %d ms%n",
+                this.migrations, this.failures, this.migrationTime.toMillis(), this.lockWaitTime.toMillis(),
+                this.commits, this.commitTime.toMillis(), this.rollbacks, this.retries, this.retryWaitTime.toMillis()));
+        report.append(String.format("statements: %d, rows: %d, parallel time saved: %d ms%n", this.statements,
+                this.rows, this.parallelTimeSaved.toMillis()));
+        for (Map.Entry<Path, ScriptStats> entry : this.scripts.entrySet()) {
+            final ScriptStats stats = entry.getValue();
+            report.append(String.format("script %s: %d runs, %d statements, %d rows in %d ms%n", entry.getKey(),
+                    stats.runs, stats.statements, stats.rows, stats.duration.toMillis()));
+        }
+        final List<StatementStats> sorted = new ArrayList<>(this.slowest);
+        sorted.sort(Comparator.comparing((StatementStats s) -> s.duration).reversed());
+        for (StatementStats stats : sorted) {
+            report.append(String.format("slow statement %s:%d in %.3f ms: %s%n", stats.script, stats.line,
+                    stats.duration.toNanos() / 1e6, stats.sql));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.code.fauch.horcrux;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * The <code>MigrationResult</code> class describes the outcome of the update of one tenant by a
+ * <code>MigrationExecutor</code>.
+ *
+ * @author c.fauch
+ */
+public final class MigrationResult {
+
+    /**
+     * The name of the tenant.
+     */
+    private final String tenant;
+
+    /**
+     * The error raised by the update (null if succeeded).
+     */
+    private final Exception error;
+
+    /**
+     * The duration of the update.
+     */
+    private final Duration duration;
+
+    /**
+     * Constructor.
+     * @param tenant the name of the tenant (not null)
+     * @param error the error raised by the update (null if succeeded)
+     * @param duration the duration of the update (not null)
+     */
+    MigrationResult(final String tenant, final Exception error, final Duration duration) {
+        this.tenant = Objects.requireNonNull(tenant, "tenant is mandatory");
+        this.error = error;
+        this.duration = Objects.requireNonNull(duration, "duration is mandatory");
+    }
+
+    /**
+     * @return the name of the tenant.
+     */
+    public String getTenant() {
+        return this.tenant;
+    }
+
+    /**
+     * @return true if the tenant has been updated.
+     */
+    public boolean isSuccess() {
+        return this.error == null;
+    }
+
+    /**
+     * @return the error raised by the update or null if succeeded.
+     */
+    public Exception getError() {
+        return this.error;
+    }
+
+    /**
+     * @return the duration of the update.
+     */
+    public Duration getDuration() {
+        return this.duration;
+    }
+
+    @Override
+    public String toString() {
+        return this.tenant + ": " + (this.error == null ? "updated" : "failed (" + this.error.getMessage() + ")")
+                + " in " + this.duration.toMillis() + " ms";
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.code.fauch.horcrux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Objects;
+
+/**
+ * The <code>MigrationTemplate</code> class sets up empty databases from a snapshot of a migrated database.
+ * <p>
+ * The first database is migrated as usual, then dumped into a snapshot named after the fingerprint of the scripts and
+ * the options of the migration shaping the database (version table, schema creation, checksums...). The following
+ * databases are restored from this snapshot instead of replaying <code>schema.sql</code> and the whole upgrade chain,
+ * until the scripts or the options change. Only empty databases are set up. By default the snapshots are H2 scripts, written by <code>SCRIPT TO</code>
+ * and restored by <code>RUNSCRIPT FROM</code>.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public final class MigrationTemplate {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationTemplate.class);
+
+    /**
+     * The default SQL command to dump a database into a file.
+     */
+    private static final String DUMP = "SCRIPT TO '%s'";
+
+    /**
+     * The default SQL command to restore a database from a file.
+     */
+    private static final String RESTORE = "RUNSCRIPT FROM '%s'";
+
+    /**
+     * The extension of the snapshot files.
+     */
+    private static final String EXTENSION = ".sql";
+
+    /**
+     * The migration of the databases.
+     */
+    private final Migration migration;
+
+    /**
+     * The directory of the snapshots.
+     */
+    private final Path dir;
+
+    /**
+     * The SQL command to dump a database, with the path of the file as parameter.
+     */
+    private final String dumpCmd;
+
+    /**
+     * The SQL command to restore a database, with the path of the file as parameter.
+     */
+    private final String restoreCmd;
+
+    /**
+     * Builder to create and configure <code>MigrationTemplate</code> object.
+     *
+     * @author c.fauch
+     *
+     */
+    public static final class Builder {
+
+        /**
+         * The migration of the databases.
+         */
+        private final Migration migration;
+
+        /**
+         * The directory of the snapshots.
+         */
+        private final Path dir;
+
+        /**
+         * The dump command.
+         */
+        private String dumpCmd = DUMP;
+
+        /**
+         * The restore command.
+         */
+        private String restoreCmd = RESTORE;
+
+        /**
+         * Constructor.
+         * @param migration the migration of the databases (not null)
+         * @param dir the directory of the snapshots, created if needed (not null)
+         */
+        public Builder(final Migration migration, final Path dir) {
+            this.migration = Objects.requireNonNull(migration, "migration is mandatory");
+            this.dir = Objects.requireNonNull(dir, "dir is mandatory");
+        }
+
+        /**
+         * Specifies the SQL command dumping the whole database into a file.
+         * @param sql the command, with <code>%s</code> for the path of the file (<code>SCRIPT TO '%s'</code> by
+         * default)
+         * @return this builder
+         */
+        public MigrationTemplate.Builder dumpCommand(final String sql) {
+            this.dumpCmd = Objects.requireNonNull(sql, "sql is mandatory");
+            return this;
+        }
+
+        /**
+         * Specifies the SQL command restoring a database from a file written by the dump command.
+         * @param sql the command, with <code>%s</code> for the path of the file (<code>RUNSCRIPT FROM '%s'</code>
+         * by default)
+         * @return this builder
+         */
+        public MigrationTemplate.Builder restoreCommand(final String sql) {
+            this.restoreCmd = Objects.requireNonNull(sql, "sql is mandatory");
+            return this;
+        }
+
+        /**
+         * Build the template.
+         * @return the new template.
+         */
+        public MigrationTemplate build() {
+            return new MigrationTemplate(this);
+        }
+
+    }
+
+    /**
+     * Constructor.
+     * @param builder the builder (not null)
+     */
+    private MigrationTemplate(final Builder builder) {
+        this.migration = builder.migration;
+        this.dir = builder.dir;
+        this.dumpCmd = builder.dumpCmd;
+        this.restoreCmd = builder.restoreCmd;
+    }
+
+    /**
+     * Sets up the given empty database: restores it from the snapshot of the current scripts if any, otherwise
+     * migrates it and takes the snapshot.
+     * @param dataSource the given empty database (not null)
+     * @return true if the database has been restored from the snapshot, false if it has been migrated
+     * @throws SQLException if the database is not empty or if unable to set up database due to some SQL errors.
+     * @throws IOException if unable to set up database due to some file reading issues.
+     */
+    public boolean update(final DataSource dataSource) throws SQLException, IOException {
+        checkEmpty(Objects.requireNonNull(dataSource, "dataSource is mandatory"));
+        final Path snapshot = getSnapshot();
+        if (Files.isRegularFile(snapshot)) {
+            LOGGER.info("restoring database from {}...", snapshot);
+            run(dataSource, this.restoreCmd, snapshot);
+            return true;
+        }
+        this.migration.update(dataSource);
+        Files.createDirectories(this.dir);
+        final Path tmp = Files.createTempFile(this.dir, "snapshot", ".tmp");
+        try {
+            Files.delete(tmp);
+            run(dataSource, this.dumpCmd, tmp);
+            Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("database snapshot written to {}", snapshot);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return false;
+    }
+
+    /**
+     * @return the path of the snapshot of the current scripts and options, which may not exist yet.
+     * @throws IOException if unable to read the scripts.
+     */
+    public Path getSnapshot() throws IOException {
+        final MessageDigest digest = Fingerprint.newDigest();
+        digest.update(this.migration.getFingerprint().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(this.migration.describeOptions().getBytes(StandardCharsets.UTF_8));
+        return this.dir.resolve(Fingerprint.toHex(digest.digest()) + EXTENSION);
+    }
+
+    /**
+     * Checks that the given database has no table in the default schema of its connections.
+     * @param dataSource the database (not null)
+     * @throws SQLException if the database is not empty or if unable to read its metadata.
+     */
+    private static void checkEmpty(final DataSource dataSource) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             ResultSet tables = conn.getMetaData().getTables(conn.getCatalog(), conn.getSchema(), "%", null)) {
+            if (tables.next()) {
+                throw new SQLException("Database not empty, found table: " + tables.getString("TABLE_NAME"));
+            }
+        }
+    }
+
+    /**
+     * Runs a dump or restore command.
+     * @param dataSource the database (not null)
+     * @param cmd the command, with <code>%s</code> for the path of the file (not null)
+     * @param file the path of the file (not null)
+     * @throws SQLException if the command fails.
+     */
+    private static void run(final DataSource dataSource, final String cmd, final Path file) throws SQLException {
+        final String path = file.toAbsolutePath().toString().replace("'", "''");
+        try (Connection conn = dataSource.getConnection()) {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute(String.format(cmd, path));
+            }
+        }
+    }
+
+}
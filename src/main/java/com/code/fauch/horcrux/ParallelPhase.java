@@ -0,0 +1,175 @@
+package com.code.fauch.horcrux;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs consecutive independent statements concurrently, on extra connections of the updated database.
+ * <p>
+ * The statements are written after a <code>-- horcrux:parallel</code> directive, for instance index builds or
+ * backfills of distinct tables. Each extra connection runs its statements in auto-commit mode, and all of them are
+ * done before the next statement of the script is executed.
+ * </p>
+ */
+final class ParallelPhase {
+
+    /**
+     * The directive of a statement run in a parallel phase.
+     */
+    static final String DIRECTIVE = "horcrux:parallel";
+
+    /**
+     * Counter used to name the threads.
+     */
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    /**
+     * The updated database.
+     */
+    private final DataSource dataSource;
+
+    /**
+     * The updated schema (null for the default schema of the connections).
+     */
+    private final String schema;
+
+    /**
+     * The maximum number of extra connections.
+     */
+    private final int connections;
+
+    /**
+     * Constructor.
+     *
+     * @param dataSource the updated database (not null)
+     * @param schema the updated schema (null for the default schema of the connections)
+     * @param connections the maximum number of extra connections
+     */
+    ParallelPhase(final DataSource dataSource, final String schema, final int connections) {
+        this.dataSource = Objects.requireNonNull(dataSource, "dataSource is missing");
+        this.schema = schema;
+        this.connections = connections;
+    }
+
+    /**
+     * Tells whether the given directive declares a statement of a parallel phase.
+     *
+     * @param directive the directive (null if none)
+     * @return true if the statement can run concurrently with its neighbours of the same phase
+     */
+    static boolean isParallel(final String directive) {
+        return DIRECTIVE.equals(directive);
+    }
+
+    /**
+     * Runs the given statements concurrently and waits until all of them are done. Once a statement fails, the
+     * statements not started yet are not executed.
+     *
+     * @param sqls the statements (not null)
+     * @param lines the lines of the script where the statements start (not null)
+     * @param rows the number of rows updated by each statement, filled once done (-1 for a query)
+     * @param durations the duration of each statement in nanoseconds, filled once done
+     * @param control the timeout and cancellation of the statements (null for none)
+     * @return the duration of the whole phase
+     * @throws SQLException if one of the statements fails
+     */
+    Duration run(final List<String> sqls, final List<Integer> lines, final long[] rows, final long[] durations,
+                 final ExecutionControl control) throws SQLException {
+        final int workers = Math.min(this.connections, sqls.size());
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<SQLException> error = new AtomicReference<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(workers, task -> {
+            final Thread thread = new Thread(task, "horcrux-parallel-" + THREADS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long start = System.nanoTime();
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                results.add(executor.submit(() -> work(sqls, lines, rows, durations, next, error, control)));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            error.compareAndSet(null, new SQLException("Parallel phase interrupted", err));
+            executor.shutdownNow();
+        } catch (ExecutionException err) {
+            error.compareAndSet(null, new SQLException("Parallel phase failed", err.getCause()));
+        } finally {
+            executor.shutdown();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * Runs statements on an extra connection until all of them are started or one of them fails.
+     *
+     * @param sqls the statements (not null)
+     * @param lines the lines of the script where the statements start (not null)
+     * @param rows the number of rows updated by each statement
+     * @param durations the duration of each statement in nanoseconds
+     * @param next the index of the next statement to run (not null)
+     * @param error the first error raised (not null)
+     * @param control the timeout and cancellation of the statements (null for none)
+     */
+    private void work(final List<String> sqls, final List<Integer> lines, final long[] rows, final long[] durations,
+                      final AtomicInteger next, final AtomicReference<SQLException> error,
+                      final ExecutionControl control) {
+        int index = next.getAndIncrement();
+        if (index >= sqls.size() || error.get() != null) {
+            return;
+        }
+        try (Connection conn = this.dataSource.getConnection()) {
+            if (this.schema != null) {
+                conn.setSchema(this.schema);
+            }
+            conn.setAutoCommit(true);
+            try (Statement statement = conn.createStatement()) {
+                if (control != null) {
+                    control.register(statement);
+                }
+                try {
+                    while (index < sqls.size() && error.get() == null) {
+                        final long start = System.nanoTime();
+                        try {
+                            rows[index] = statement.execute(sqls.get(index)) ? -1 : statement.getUpdateCount();
+                        } catch (SQLException err) {
+                            error.compareAndSet(null, DataSourceUtils.failure(sqls.get(index), lines.get(index), err));
+                            return;
+                        }
+                        durations[index] = System.nanoTime() - start;
+                        if (control != null) {
+                            control.check();
+                        }
+                        index = next.getAndIncrement();
+                    }
+                } finally {
+                    if (control != null) {
+                        control.unregister(statement);
+                    }
+                }
+            }
+        } catch (SQLException err) {
+            error.compareAndSet(null, err);
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.code.fauch.horcrux;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The <code>RetryPolicy</code> class tells which failures of an update are transient and how long to wait before
+ * retrying.
+ * <p>
+ * A failure is transient if the SQLState of the <code>SQLException</code>, or of one of its causes, is one of the
+ * transient states: serialization failures and deadlocks (<code>40001</code>, <code>40P01</code>) and lock timeouts
+ * (<code>55P03</code>) by default. The delay doubles from one attempt to the next, up to the maximum delay, with a
+ * random jitter of half the delay, and no retry is done once the time budget is spent.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public final class RetryPolicy {
+
+    /**
+     * The default transient SQL states.
+     */
+    public static final Set<String> DEFAULT_TRANSIENT_STATES = Set.of("40001", "40P01", "55P03");
+
+    /**
+     * The maximum number of attempts.
+     */
+    private final int maxAttempts;
+
+    /**
+     * The delay before the first retry.
+     */
+    private final Duration initialDelay;
+
+    /**
+     * The maximum delay between two attempts.
+     */
+    private final Duration maxDelay;
+
+    /**
+     * The maximum time spent retrying, from the first failure.
+     */
+    private final Duration budget;
+
+    /**
+     * The transient SQL states.
+     */
+    private final Set<String> transientStates;
+
+    /**
+     * Builder to create and configure <code>RetryPolicy</code> object.
+     *
+     * @author c.fauch
+     *
+     */
+    public static final class Builder {
+
+        /**
+         * The maximum number of attempts option.
+         */
+        private int maxAttempts = 5;
+
+        /**
+         * The initial delay option.
+         */
+        private Duration initialDelay = Duration.ofMillis(100);
+
+        /**
+         * The maximum delay option.
+         */
+        private Duration maxDelay = Duration.ofSeconds(10);
+
+        /**
+         * The time budget option.
+         */
+        private Duration budget = Duration.ofMinutes(1);
+
+        /**
+         * The transient SQL states option.
+         */
+        private Set<String> transientStates = DEFAULT_TRANSIENT_STATES;
+
+        /**
+         * Constructor of a builder with the default options.
+         */
+        public Builder() {
+        }
+
+        /**
+         * Specifies the maximum number of attempts, the first one included (5 by default).
+         * @param attempts the number of attempts
+         * @return this builder
+         */
+        public RetryPolicy.Builder maxAttempts(final int attempts) {
+            if (attempts < 1) {
+                throw new IllegalArgumentException("attempts must be strictly positive");
+            }
+            this.maxAttempts = attempts;
+            return this;
+        }
+
+        /**
+         * Specifies the delay before the first retry (100 ms by default).
+         * @param delay the delay (not null)
+         * @return this builder
+         */
+        public RetryPolicy.Builder initialDelay(final Duration delay) {
+            if (Objects.requireNonNull(delay, "delay is mandatory").isNegative()) {
+                throw new IllegalArgumentException("delay must not be negative");
+            }
+            this.initialDelay = delay;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum delay between two attempts (10 seconds by default).
+         * @param delay the delay (not null)
+         * @return this builder
+         */
+        public RetryPolicy.Builder maxDelay(final Duration delay) {
+            if (Objects.requireNonNull(delay, "delay is mandatory").isNegative()) {
+                throw new IllegalArgumentException("delay must not be negative");
+            }
+            this.maxDelay = delay;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum time spent retrying, from the first failure (1 minute by default).
+         * @param budget the time budget (not null)
+         * @return this builder
+         */
+        public RetryPolicy.Builder budget(final Duration budget) {
+            if (Objects.requireNonNull(budget, "budget is mandatory").isNegative()) {
+                throw new IllegalArgumentException("budget must not be negative");
+            }
+            this.budget = budget;
+            return this;
+        }
+
+        /**
+         * Specifies the SQL states of the transient failures.
+         * @param states the SQL states (<code>DEFAULT_TRANSIENT_STATES</code> by default)
+         * @return this builder
+         */
+        public RetryPolicy.Builder transientStates(final String... states) {
+            this.transientStates = Set.of(Objects.requireNonNull(states, "states are mandatory"));
+            return this;
+        }
+
+        /**
+         * Build the policy.
+         * @return the new policy.
+         */
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+
+    }
+
+    /**
+     * Constructor.
+     * @param builder the builder (not null)
+     */
+    private RetryPolicy(final Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.initialDelay = builder.initialDelay;
+        this.maxDelay = builder.maxDelay;
+        this.budget = builder.budget;
+        this.transientStates = builder.transientStates;
+    }
+
+    /**
+     * Tells whether the given failure is transient.
+     * @param err the failure (not null)
+     * @return true if the SQLState of the failure or of one of its causes is a transient state
+     */
+    public boolean isTransient(final SQLException err) {
+        for (Throwable cause = err; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                for (SQLException next = (SQLException) cause; next != null; next = next.getNextException()) {
+                    if (next.getSQLState() != null && this.transientStates.contains(next.getSQLState())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the delay before retrying after the given failure.
+     * @param attempt the number of the failed attempt (from 1)
+     * @param err the failure (not null)
+     * @param elapsed the time spent since the first failure
+     * @return the delay or null if the failure is not transient or if the attempts or the time budget are spent
+     */
+    Duration nextDelay(final int attempt, final SQLException err, final Duration elapsed) {
+        if (attempt >= this.maxAttempts || !isTransient(err)) {
+            return null;
+        }
+        final long max = this.maxDelay.toMillis();
+        long backoff = this.initialDelay.toMillis();
+        for (int i = 1; i < attempt && backoff < max; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, max);
+        final Duration delay = Duration.ofMillis(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+        return elapsed.plus(delay).compareTo(this.budget) > 0 ? null : delay;
+    }
+
+}
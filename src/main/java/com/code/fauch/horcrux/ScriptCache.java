@@ -0,0 +1,276 @@
+package com.code.fauch.horcrux;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>ScriptCache</code> class keeps the statements of the scripts already read, so that the same script is
+ * read and parsed only once.
+ * <p>
+ * A script is identified by its source, its name and its version (the last modification time and the size of a
+ * file): a modified script is read again, while the scripts of the classpath are read only once.
+ * The cache holds at most <code>capacity</code> scripts and evicts the least recently used ones. It is thread safe
+ * and can be shared by many <code>Migration</code> objects through <code>Migration.Builder.cache(...)</code>; when
+ * many threads need the same script at the same time, only one of them reads it.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public final class ScriptCache {
+
+    /**
+     * The default maximum number of scripts in the cache.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The last part of the key of the checksum of a script.
+     */
+    private static final String CHECKSUM = "checksum";
+
+    /**
+     * The cached values by source and script name, in access order.
+     */
+    private final LinkedHashMap<List<Object>, CachedValue<?>> entries;
+
+    /**
+     * The number of lookups served by the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of lookups that had to read the files.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of scripts evicted from the cache.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cached value with the version of the scripts it was loaded from.
+     *
+     * @param <T> the type of the value
+     */
+    private static final class CachedValue<T> {
+
+        /**
+         * The version of the scripts.
+         */
+        private final String version;
+
+        /**
+         * The loading of the value.
+         */
+        private final FutureTask<T> value;
+
+        /**
+         * Constructor.
+         * @param version the version of the scripts (not null)
+         * @param loader the loader of the value (not null)
+         */
+        private CachedValue(final String version, final Callable<T> loader) {
+            this.version = version;
+            this.value = new FutureTask<>(loader);
+        }
+
+    }
+
+    /**
+     * Constructor of a cache holding at most <code>DEFAULT_CAPACITY</code> scripts.
+     */
+    public ScriptCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     * @param capacity the maximum number of scripts in the cache
+     */
+    public ScriptCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be strictly positive");
+        }
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<List<Object>, CachedValue<?>> eldest) {
+                if (size() > capacity) {
+                    ScriptCache.this.evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the number of lookups served by the cache.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to read the files.
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of scripts evicted from the cache.
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the number of scripts and directories in the cache.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Removes all the scripts from the cache.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Gives the statements of a script file, parsing it if needed.
+     *
+     * @param file the path of the script file (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the statements of the script
+     * @throws IOException if unable to read the script
+     */
+    List<SqlStatement> statements(final Path file, final boolean mapped) throws IOException {
+        final Path absolute = Objects.requireNonNull(file, "file is missing").toAbsolutePath();
+        return statements(ScriptSource.directory(absolute.getParent()), absolute.getFileName().toString(), mapped);
+    }
+
+    /**
+     * Gives the statements of a script of a source, parsing it if needed.
+     *
+     * @param source the source of the script (not null)
+     * @param name the name of the script (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the statements of the script
+     * @throws IOException if unable to read the script
+     */
+    List<SqlStatement> statements(final ScriptSource source, final String name, final boolean mapped) throws IOException {
+        return load(List.of(source, name), source.version(name), () -> ScriptParser.parse(source, name, mapped));
+    }
+
+    /**
+     * Gives the checksum of the statements of a script of a source, computing it if needed.
+     * The checksum is computed again as soon as the script is modified.
+     *
+     * @param source the source of the script (not null)
+     * @param name the name of the script (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the checksum of the script
+     * @throws IOException if unable to read the script
+     */
+    String checksum(final ScriptSource source, final String name, final boolean mapped) throws IOException {
+        return load(List.of(source, name, CHECKSUM), source.version(name), () -> ScriptParser.checksum(source, name, mapped));
+    }
+
+    /**
+     * Gives the fingerprint of a script directory, computing it if needed.
+     * The fingerprint is computed again as soon as a file of the directory is added, removed or modified.
+     *
+     * @param dir the path of the script directory (not null)
+     * @return the fingerprint of the directory
+     * @throws IOException if unable to read the directory
+     */
+    String fingerprint(final Path dir) throws IOException {
+        return fingerprint(ScriptSource.directory(dir));
+    }
+
+    /**
+     * Gives the fingerprint of the scripts of a source, computing it if needed.
+     * The fingerprint is computed again as soon as a script is added, removed or modified.
+     *
+     * @param source the source of the scripts (not null)
+     * @return the fingerprint of the scripts
+     * @throws IOException if unable to list the scripts
+     */
+    String fingerprint(final ScriptSource source) throws IOException {
+        final StringBuilder version = new StringBuilder();
+        for (String name : source.list()) {
+            String modified;
+            try {
+                modified = source.version(name);
+            } catch (IOException err) {
+                modified = "?";
+            }
+            version.append(name).append('/').append(modified).append(',');
+        }
+        return load(List.of(source), version.toString(), () -> Fingerprint.compute(source));
+    }
+
+    /**
+     * Gives the value of the given key, loading it in the calling thread if it is missing or outdated.
+     *
+     * @param key the source, followed by the name of the script for the statements or the checksum of a script
+     *            (not null)
+     * @param version the current version of the scripts (not null)
+     * @param loader the loader of the value (not null)
+     * @param <T> the type of the value
+     * @return the value
+     * @throws IOException if unable to load the value
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T load(final List<Object> key, final String version, final Callable<T> loader) throws IOException {
+        Objects.requireNonNull(key, "key is missing");
+        CachedValue<T> entry;
+        boolean loading = false;
+        synchronized (this) {
+            entry = (CachedValue<T>) this.entries.get(key);
+            if (entry == null || !entry.version.equals(version)) {
+                entry = new CachedValue<>(version, loader);
+                this.entries.put(key, entry);
+                loading = true;
+            }
+        }
+        if (loading) {
+            this.misses.incrementAndGet();
+            entry.value.run();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        try {
+            return entry.value.get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + key, err);
+        } catch (ExecutionException err) {
+            synchronized (this) {
+                this.entries.remove(key, entry);
+            }
+            if (err.getCause() instanceof IOException) {
+                throw (IOException) err.getCause();
+            }
+            if (err.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) err.getCause();
+            }
+            if (err.getCause() instanceof Error) {
+                throw (Error) err.getCause();
+            }
+            throw new IOException("Unable to load " + key, err.getCause());
+        }
+    }
+
+}
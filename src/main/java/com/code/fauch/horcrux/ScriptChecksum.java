@@ -0,0 +1,102 @@
+package com.code.fauch.horcrux;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Incremental checksum of the statements of a script.
+ * <p>
+ * Comments are not part of the statements and the whitespaces out of quotes are only kept, as one space, between two
+ * words, so that reformatting or commenting a script doesn't change its checksum.
+ * </p>
+ */
+final class ScriptChecksum {
+
+    /**
+     * The digest of the statements hashed so far.
+     */
+    private final MessageDigest digest = Fingerprint.newDigest();
+
+    /**
+     * The normalized statement, reused from one statement to the other.
+     */
+    private final StringBuilder normalized = new StringBuilder(256);
+
+    /**
+     * Computes the checksum of the given statements.
+     *
+     * @param statements the statements of the script (not null)
+     * @return the SHA-256 hash as 64 hexadecimal chars
+     */
+    static String of(final List<SqlStatement> statements) {
+        final ScriptChecksum checksum = new ScriptChecksum();
+        for (SqlStatement statement : statements) {
+            checksum.update(statement.getSql());
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Computes the checksum of a single statement.
+     *
+     * @param sql the SQL text of the statement, without comments (not null)
+     * @return the SHA-256 hash as 64 hexadecimal chars
+     */
+    static String of(final String sql) {
+        final ScriptChecksum checksum = new ScriptChecksum();
+        checksum.update(sql);
+        return checksum.getValue();
+    }
+
+    /**
+     * Adds a statement to the checksum.
+     *
+     * @param sql the SQL text of the statement, without comments (not null)
+     */
+    void update(final CharSequence sql) {
+        this.normalized.setLength(0);
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && isWordPart(c) && this.normalized.length() > 0
+                    && isWordPart(this.normalized.charAt(this.normalized.length() - 1))) {
+                this.normalized.append(' ');
+            }
+            space = false;
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            this.normalized.append(c);
+        }
+        this.digest.update(this.normalized.toString().getBytes(StandardCharsets.UTF_8));
+        this.digest.update((byte) 0);
+    }
+
+    /**
+     * Tells whether a char is part of a word (keyword, identifier or number) that can't be glued to the next word.
+     *
+     * @param c the char
+     * @return true if the char is part of a word
+     */
+    static boolean isWordPart(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * Gives the checksum of the statements added so far, and starts a new one.
+     *
+     * @return the SHA-256 hash as 64 hexadecimal chars
+     */
+    String getValue() {
+        return Fingerprint.toHex(this.digest.digest());
+    }
+
+}
@@ -0,0 +1,650 @@
+package com.code.fauch.horcrux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Streaming lexer splitting a SQL script into statements.
+ * <p>
+ * Statements are read incrementally, one call to {@link #next()} at a time, so that the memory used does not depend
+ * on the size of the script. The parser understands:
+ * <ul>
+ * <li>single quoted string literals, with doubled quotes and PostgreSQL <code>E'...'</code> backslash escapes,</li>
+ * <li>double quoted identifiers,</li>
+ * <li>PostgreSQL dollar quoted bodies (<code>$$ ... $$</code>, <code>$body$ ... $body$</code>),</li>
+ * <li><code>-- line</code> comments, anywhere in a line,</li>
+ * <li>nested <code>/* block *&#47;</code> comments.</li>
+ * </ul>
+ * Comments are dropped and the terminating semicolon is not part of the returned statement. A line comment written
+ * on its own line before a statement is a directive, given with the statement, if it starts with
+ * <code>horcrux:chunked</code>, <code>horcrux:parallel</code> or <code>horcrux:deferred</code>.
+ * </p>
+ */
+final class ScriptParser implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScriptParser.class);
+
+    /**
+     * Size of the buffer used when reading from a <code>Reader</code>.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The prefix of the line comments holding a directive.
+     */
+    static final String DIRECTIVE_PREFIX = "horcrux:";
+
+    /**
+     * The reader open on the script (null when parsing an in-memory buffer).
+     */
+    private final Reader reader;
+
+    /**
+     * The encoded bytes of the script (null when not parsing a byte buffer).
+     */
+    private final ByteBuffer bytes;
+
+    /**
+     * The decoder of the encoded bytes (null when not parsing a byte buffer).
+     */
+    private final CharsetDecoder decoder;
+
+    /**
+     * The chars read and not yet consumed.
+     */
+    private final CharBuffer buffer;
+
+    /**
+     * The statement being read, reused from one statement to the other.
+     */
+    private final StringBuilder statement = new StringBuilder(256);
+
+    /**
+     * The current line number.
+     */
+    private int line = 1;
+
+    /**
+     * The directive read before the statement being read (null if none).
+     */
+    private String directive = null;
+
+    /**
+     * True while only whitespaces have been read since the beginning of the current line.
+     */
+    private boolean lineStart = true;
+
+    /**
+     * True once the decoder has been flushed, at the end of the encoded bytes.
+     */
+    private boolean flushed = false;
+
+    /**
+     * The char read ahead and given back to the parser (-1 if none).
+     */
+    private int pushback = -1;
+
+    /**
+     * The checksum of the statements read so far (null if not computed).
+     */
+    private ScriptChecksum checksum = null;
+
+    /**
+     * Constructor to parse a script from a reader.
+     *
+     * @param reader the reader open on the script (not null)
+     */
+    ScriptParser(final Reader reader) {
+        this.reader = Objects.requireNonNull(reader, "reader is missing");
+        this.bytes = null;
+        this.decoder = null;
+        this.buffer = CharBuffer.allocate(BUFFER_SIZE);
+        this.buffer.flip();
+    }
+
+    /**
+     * Constructor to parse a script already in memory.
+     *
+     * @param content the content of the script (not null)
+     */
+    ScriptParser(final CharBuffer content) {
+        this.reader = null;
+        this.bytes = null;
+        this.decoder = null;
+        this.buffer = Objects.requireNonNull(content, "content is missing");
+    }
+
+    /**
+     * Constructor to parse encoded bytes, typically a memory mapped file.
+     * The bytes are decoded chunk by chunk while parsing, without copying the whole script.
+     *
+     * @param content the encoded content of the script (not null)
+     * @param charset the charset of the script (not null)
+     */
+    ScriptParser(final ByteBuffer content, final Charset charset) {
+        this.reader = null;
+        this.bytes = Objects.requireNonNull(content, "content is missing");
+        this.decoder = Objects.requireNonNull(charset, "charset is missing").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        this.buffer = CharBuffer.allocate(BUFFER_SIZE);
+        this.buffer.flip();
+    }
+
+    /**
+     * Opens a parser on an UTF-8 script file.
+     * <p>
+     * When <code>mapped</code> is true and the file is on the default file system, the file is memory mapped and
+     * decoded straight from the mapping. Otherwise (classpath resources inside a jar, files bigger than 2 GB, ...)
+     * the file is read through a stream reader.
+     * </p>
+     *
+     * @param file the path of the script file (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the parser open on the script
+     * @throws IOException if unable to open the script
+     */
+    static ScriptParser open(final Path file, final boolean mapped) throws IOException {
+        Objects.requireNonNull(file, "file is missing");
+        if (mapped && file.getFileSystem() == FileSystems.getDefault()) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size <= Integer.MAX_VALUE) {
+                    return new ScriptParser(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return new ScriptParser(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Opens a parser on an UTF-8 script of a source. The scripts of a directory are opened as files, so they can be
+     * memory mapped; the other scripts are streamed.
+     *
+     * @param source the source of the script (not null)
+     * @param name the name of the script (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the parser open on the script
+     * @throws IOException if unable to open the script
+     */
+    static ScriptParser open(final ScriptSource source, final String name, final boolean mapped) throws IOException {
+        Objects.requireNonNull(source, "source is missing");
+        if (source instanceof DirectoryScriptSource) {
+            return open(source.path(name), mapped);
+        }
+        return new ScriptParser(new InputStreamReader(source.open(name), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads all the statements of an UTF-8 script of a source. The statements of a <code>MigrationBundle</code> are
+     * given as they were split at build time.
+     *
+     * @param source the source of the script (not null)
+     * @param name the name of the script (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the statements of the script
+     * @throws IOException if unable to read the script
+     */
+    static List<SqlStatement> parse(final ScriptSource source, final String name, final boolean mapped) throws IOException {
+        if (source instanceof MigrationBundle) {
+            return ((MigrationBundle) source).statements(name);
+        }
+        try (ScriptParser parser = open(source, name, mapped)) {
+            return parse(parser);
+        }
+    }
+
+    /**
+     * Computes the checksum of the statements of an UTF-8 script of a source, reading them without keeping them.
+     * The checksums of a <code>MigrationBundle</code> are given as they were computed at build time.
+     *
+     * @param source the source of the script (not null)
+     * @param name the name of the script (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the SHA-256 hash as 64 hexadecimal chars
+     * @throws IOException if unable to read the script
+     */
+    static String checksum(final ScriptSource source, final String name, final boolean mapped) throws IOException {
+        if (source instanceof MigrationBundle) {
+            final String checksum = ((MigrationBundle) source).getHash(name);
+            if (checksum == null) {
+                throw new NoSuchFileException(name);
+            }
+            return checksum;
+        }
+        try (ScriptParser parser = open(source, name, mapped).withChecksum()) {
+            while (parser.next() != null) {
+                continue;
+            }
+            return parser.getChecksum();
+        }
+    }
+
+    /**
+     * Reads all the statements of an UTF-8 script file.
+     *
+     * @param file the path of the script file (not null)
+     * @param mapped true to memory map the file when possible
+     * @return the statements of the script
+     * @throws IOException if unable to read the script
+     */
+    static List<SqlStatement> parse(final Path file, final boolean mapped) throws IOException {
+        try (ScriptParser parser = open(file, mapped)) {
+            return parse(parser);
+        }
+    }
+
+    /**
+     * Reads all the remaining statements of a script.
+     *
+     * @param parser the parser open on the script (not null)
+     * @return the statements of the script
+     * @throws IOException if unable to read the script
+     */
+    private static List<SqlStatement> parse(final ScriptParser parser) throws IOException {
+        final List<SqlStatement> statements = new ArrayList<>();
+        SqlStatement next;
+        while ((next = parser.next()) != null) {
+            statements.add(next);
+        }
+        return statements;
+    }
+
+    /**
+     * Reads the next statement of the script.
+     *
+     * @return the next statement or null if the end of the script is reached.
+     * @throws IOException if unable to read the script
+     */
+    SqlStatement next() throws IOException {
+        this.statement.setLength(0);
+        int startLine = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            final char ch = (char) c;
+            if (ch == '-') {
+                final int n = read();
+                if (n == '-') {
+                    skipLineComment();
+                    this.lineStart = true;
+                    continue;
+                }
+                unread(n);
+            } else if (ch == '/') {
+                final int n = read();
+                if (n == '*') {
+                    skipBlockComment();
+                    this.lineStart = false;
+                    continue;
+                }
+                unread(n);
+            } else if (ch == ';') {
+                this.lineStart = false;
+                if (startLine > 0) {
+                    return emit(startLine);
+                }
+                continue;
+            }
+            this.lineStart = ch == '\n' || this.lineStart && Character.isWhitespace(ch);
+            if (startLine == 0) {
+                if (Character.isWhitespace(ch)) {
+                    continue;
+                }
+                startLine = this.line;
+            }
+            switch (ch) {
+                case '\'':
+                    quoted(ch, isEscapeString());
+                    break;
+                case '"':
+                    quoted(ch, false);
+                    break;
+                case '$':
+                    dollar();
+                    break;
+                default:
+                    this.statement.append(ch);
+            }
+        }
+        return startLine > 0 ? emit(startLine) : null;
+    }
+
+    /**
+     * @return the current line number.
+     */
+    int getLine() {
+        return this.line;
+    }
+
+    /**
+     * Computes the checksum of the statements while reading them, in the same pass.
+     *
+     * @return this parser
+     */
+    ScriptParser withChecksum() {
+        if (this.checksum == null) {
+            this.checksum = new ScriptChecksum();
+        }
+        return this;
+    }
+
+    /**
+     * Gives the checksum of the statements read so far, once the end of the script is reached.
+     *
+     * @return the SHA-256 hash as 64 hexadecimal chars
+     * @throws IllegalStateException if the checksum is not computed
+     */
+    String getChecksum() {
+        if (this.checksum == null) {
+            throw new IllegalStateException("Checksum not computed");
+        }
+        return this.checksum.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.reader != null) {
+            this.reader.close();
+        }
+    }
+
+    /**
+     * Builds the statement read so far.
+     *
+     * @param startLine the line where the statement starts
+     * @return the statement
+     */
+    private SqlStatement emit(final int startLine) {
+        int end = this.statement.length();
+        while (end > 0 && Character.isWhitespace(this.statement.charAt(end - 1))) {
+            end--;
+        }
+        final SqlStatement statement = new SqlStatement(this.statement.substring(0, end), startLine, this.directive);
+        this.directive = null;
+        if (this.checksum != null) {
+            this.checksum.update(statement.getSql());
+        }
+        return statement;
+    }
+
+    /**
+     * Reads a quoted string literal or identifier; the opening quote is not read yet.
+     *
+     * @param quote the quote char
+     * @param backslash true if backslash escapes the next char
+     * @throws IOException if unable to read the script
+     */
+    private void quoted(final char quote, final boolean backslash) throws IOException {
+        this.statement.append(quote);
+        int c;
+        while ((c = read()) >= 0) {
+            this.statement.append((char) c);
+            if (backslash && c == '\\') {
+                final int n = read();
+                if (n < 0) {
+                    return;
+                }
+                this.statement.append((char) n);
+            } else if (c == quote) {
+                final int n = read();
+                if (n != quote) {
+                    unread(n);
+                    return;
+                }
+                this.statement.append((char) n);
+            }
+        }
+    }
+
+    /**
+     * Reads a dollar quoted body if the <code>$</code> just read opens one.
+     *
+     * @throws IOException if unable to read the script
+     */
+    private void dollar() throws IOException {
+        final int open = this.statement.length();
+        this.statement.append('$');
+        if (open > 0 && isIdentifierPart(this.statement.charAt(open - 1))) {
+            return;
+        }
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == '$') {
+                this.statement.append('$');
+                dollarBody(open, this.statement.length() - open);
+                return;
+            }
+            if (!isIdentifierPart((char) c) || this.statement.length() == open + 1 && Character.isDigit(c)) {
+                unread(c);
+                return;
+            }
+            this.statement.append((char) c);
+        }
+    }
+
+    /**
+     * Reads a dollar quoted body up to its closing tag.
+     *
+     * @param open the position of the opening tag in the statement
+     * @param length the length of the tag
+     * @throws IOException if unable to read the script
+     */
+    private void dollarBody(final int open, final int length) throws IOException {
+        final int bodyStart = open + length;
+        int c;
+        while ((c = read()) >= 0) {
+            this.statement.append((char) c);
+            final int end = this.statement.length();
+            if (c == '$' && end - bodyStart >= length && endsWithTag(open, length)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tells whether the statement ends with the given dollar tag.
+     *
+     * @param open the position of the opening tag in the statement
+     * @param length the length of the tag
+     * @return true if the statement ends with the tag
+     */
+    private boolean endsWithTag(final int open, final int length) {
+        final int from = this.statement.length() - length;
+        for (int i = 0; i < length; i++) {
+            if (this.statement.charAt(from + i) != this.statement.charAt(open + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips a line comment, the leading <code>--</code> being already read. A comment written on its own line before
+     * a statement is kept as directive if it starts with a known directive, any other <code>horcrux:</code> comment
+     * is ignored with a warning.
+     *
+     * @throws IOException if unable to read the script
+     */
+    private void skipLineComment() throws IOException {
+        if (this.statement.length() > 0 || !this.lineStart) {
+            int c;
+            while ((c = read()) >= 0 && c != '\n') {
+                // skip
+            }
+            if (this.statement.length() > 0) {
+                this.statement.append('\n');
+            }
+            return;
+        }
+        final StringBuilder comment = new StringBuilder();
+        int c;
+        while ((c = read()) >= 0 && c != '\n') {
+            if (comment.length() <= DIRECTIVE_PREFIX.length() || comment.indexOf(DIRECTIVE_PREFIX) == 0) {
+                comment.append((char) c);
+            }
+            if (comment.length() == 1 && Character.isWhitespace(c)) {
+                comment.setLength(0);
+            }
+        }
+        if (comment.indexOf(DIRECTIVE_PREFIX) == 0) {
+            final String found = comment.toString().trim();
+            if (isDirective(found)) {
+                this.directive = found;
+            } else {
+                LOGGER.warn("Ignoring unknown directive at line {}: {}", c < 0 ? this.line : this.line - 1, found);
+            }
+        }
+    }
+
+    /**
+     * Tells whether the given comment is a known directive.
+     *
+     * @param comment the comment starting with <code>horcrux:</code> (not null)
+     * @return true if the comment is a directive of the chunked, parallel or deferred statements
+     */
+    private static boolean isDirective(final String comment) {
+        return ChunkedStatement.isChunked(comment) || ParallelPhase.isParallel(comment)
+                || ExecutionControl.isDeferred(comment);
+    }
+
+    /**
+     * Skips a block comment, possibly nested, the leading <code>/*</code> being already read.
+     *
+     * @throws IOException if unable to read the script
+     */
+    private void skipBlockComment() throws IOException {
+        int depth = 1;
+        int c;
+        while (depth > 0 && (c = read()) >= 0) {
+            if (c == '/') {
+                final int n = read();
+                if (n == '*') {
+                    depth++;
+                } else {
+                    unread(n);
+                }
+            } else if (c == '*') {
+                final int n = read();
+                if (n == '/') {
+                    depth--;
+                } else {
+                    unread(n);
+                }
+            }
+        }
+        if (this.statement.length() > 0) {
+            this.statement.append(' ');
+        }
+    }
+
+    /**
+     * Tells whether the quote to read opens a PostgreSQL escape string (<code>E'...'</code>).
+     *
+     * @return true if backslash escapes are enabled in the string to read
+     */
+    private boolean isEscapeString() {
+        final int length = this.statement.length();
+        if (length == 0) {
+            return false;
+        }
+        final char prefix = this.statement.charAt(length - 1);
+        return (prefix == 'E' || prefix == 'e') && (length == 1 || !isIdentifierPart(this.statement.charAt(length - 2)));
+    }
+
+    /**
+     * Reads the next char of the script.
+     *
+     * @return the next char or -1 if the end of the script is reached.
+     * @throws IOException if unable to read the script
+     */
+    private int read() throws IOException {
+        if (this.pushback >= 0) {
+            final int c = this.pushback;
+            this.pushback = -1;
+            return c;
+        }
+        if (!this.buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        final char c = this.buffer.get();
+        if (c == '\n') {
+            this.line++;
+        }
+        return c;
+    }
+
+    /**
+     * Refills the buffer from the reader or the encoded bytes.
+     *
+     * @return false if the end of the script is reached.
+     * @throws IOException if unable to read or decode the script
+     */
+    private boolean fill() throws IOException {
+        if (this.reader != null) {
+            this.buffer.clear();
+            int n;
+            do {
+                n = this.reader.read(this.buffer);
+            } while (n == 0);
+            this.buffer.flip();
+            return n > 0;
+        }
+        if (this.decoder != null && !this.flushed) {
+            this.buffer.clear();
+            final CoderResult result = this.decoder.decode(this.bytes, this.buffer, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isUnderflow()) {
+                this.decoder.flush(this.buffer);
+                this.flushed = true;
+            }
+            this.buffer.flip();
+            return this.buffer.hasRemaining();
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a char read ahead.
+     *
+     * @param c the char (ignored if negative)
+     */
+    private void unread(final int c) {
+        if (c >= 0) {
+            this.pushback = c;
+        }
+    }
+
+    /**
+     * Tells whether the given char can be part of an unquoted identifier.
+     *
+     * @param c the char
+     * @return true if it is a letter, a digit or an underscore
+     */
+    static boolean isIdentifierPart(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.code.fauch.horcrux;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads and parses scripts on a background thread, in order, at most <code>depth</code> scripts ahead of the script
+ * being executed.
+ * <p>
+ * The scripts are given back in the same order by {@link #next()}. An error while reading a script is raised when
+ * this script is asked for, so the scripts before it are executed as usual.
+ * </p>
+ */
+final class ScriptPrefetcher implements Closeable {
+
+    /**
+     * The number of the prefetching threads.
+     */
+    private static final AtomicLong THREADS = new AtomicLong();
+
+    /**
+     * The source of the scripts.
+     */
+    private final ScriptSource source;
+
+    /**
+     * The names of the scripts not yet submitted.
+     */
+    private final Iterator<String> names;
+
+    /**
+     * The cache of the scripts already read (null to read the scripts from the source).
+     */
+    private final ScriptCache cache;
+
+    /**
+     * True to memory map the files when possible.
+     */
+    private final boolean mapped;
+
+    /**
+     * The thread reading the scripts.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The scripts submitted and not yet given back, in order.
+     */
+    private final Deque<Future<List<SqlStatement>>> pending = new ArrayDeque<>();
+
+    /**
+     * Constructor.
+     *
+     * @param source the source of the scripts (not null)
+     * @param names the names of the scripts to read, in execution order (not null)
+     * @param depth the maximum number of scripts read in advance
+     * @param cache the cache of the scripts already read (null to read the scripts from the source)
+     * @param mapped true to memory map the files when possible
+     */
+    ScriptPrefetcher(final ScriptSource source, final List<String> names, final int depth, final ScriptCache cache,
+                     final boolean mapped) {
+        this.source = Objects.requireNonNull(source, "source is missing");
+        this.names = Objects.requireNonNull(names, "names are missing").iterator();
+        this.cache = cache;
+        this.mapped = mapped;
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            final Thread thread = new Thread(task, "horcrux-prefetch-" + THREADS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < Math.max(1, depth); i++) {
+            submit();
+        }
+    }
+
+    /**
+     * Gives the statements of the next script, waiting for them if needed.
+     *
+     * @return the statements of the next script
+     * @throws IOException if unable to read the script
+     */
+    List<SqlStatement> next() throws IOException {
+        final Future<List<SqlStatement>> next = this.pending.poll();
+        if (next == null) {
+            throw new IllegalStateException("No more script to read");
+        }
+        submit();
+        try {
+            return next.get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading script", err);
+        } catch (ExecutionException err) {
+            if (err.getCause() instanceof IOException) {
+                throw (IOException) err.getCause();
+            }
+            if (err.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) err.getCause();
+            }
+            if (err.getCause() instanceof Error) {
+                throw (Error) err.getCause();
+            }
+            throw new IOException("Unable to read script", err.getCause());
+        }
+    }
+
+    /**
+     * Stops reading the scripts.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Submits the reading of the next script, if any.
+     */
+    private void submit() {
+        if (this.names.hasNext()) {
+            final String name = this.names.next();
+            this.pending.add(this.executor.submit(() -> this.cache == null
+                    ? ScriptParser.parse(this.source, name, this.mapped)
+                    : this.cache.statements(this.source, name, this.mapped)));
+        }
+    }
+
+}
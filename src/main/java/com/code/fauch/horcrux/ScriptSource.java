@@ -0,0 +1,123 @@
+package com.code.fauch.horcrux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The <code>ScriptSource</code> interface defines where the scripts of a <code>Migration</code> are read from:
+ * <code>schema.sql</code>, <code>populate.sql</code> and the migration scripts, identified by their name.
+ * <p>
+ * {@link #directory(Path)} reads the scripts from a directory, {@link #classpath(ClassLoader, String)} streams them
+ * from the classpath, jars included, without extracting them, and {@link #memory(Map)} gives them from memory.
+ * The names of the scripts are only listed to compute the fingerprint of the scripts; the classpath source reads
+ * them from the index file <code>horcrux.index</code> written at build time by {@link #writeIndex(Path)}, so that
+ * no resource is scanned at startup.
+ * </p>
+ *
+ * @author c.fauch
+ */
+public interface ScriptSource {
+
+    /**
+     * The name of the index file listing the scripts of a classpath source.
+     */
+    String INDEX = "horcrux.index";
+
+    /**
+     * Lists the names of all the scripts of the source.
+     * @return the names, sorted
+     * @throws IOException if unable to list the scripts
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * Opens a script.
+     * @param name the name of the script (not null)
+     * @return the stream of the UTF-8 content of the script
+     * @throws java.nio.file.NoSuchFileException if the script doesn't exist
+     * @throws IOException if unable to open the script
+     */
+    InputStream open(String name) throws IOException;
+
+    /**
+     * Gives the version of a script, changing each time the script is modified, so that the cached statements of a
+     * modified script are read again.
+     * @param name the name of the script (not null)
+     * @return the version of the script, or an empty string if the script can't be modified (the default)
+     * @throws IOException if unable to read the version of the script
+     */
+    default String version(final String name) throws IOException {
+        return "";
+    }
+
+    /**
+     * Gives the path identifying a script in the logs and in the events of the listeners.
+     * @param name the name of the script (not null)
+     * @return the path of the script (relative if the script isn't a file)
+     */
+    default Path path(final String name) {
+        return Paths.get(name);
+    }
+
+    /**
+     * Creates a source reading the scripts of a directory.
+     * @param dir the path of the directory (not null)
+     * @return the source
+     */
+    static ScriptSource directory(final Path dir) {
+        return new DirectoryScriptSource(dir);
+    }
+
+    /**
+     * Creates a source streaming the scripts from the classpath, through the class loader of the current thread or
+     * the class loader of this library.
+     * @param root the resource directory of the scripts, without leading slash (empty for the root)
+     * @return the source
+     */
+    static ScriptSource classpath(final String root) {
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return classpath(loader == null ? ScriptSource.class.getClassLoader() : loader, root);
+    }
+
+    /**
+     * Creates a source streaming the scripts from the classpath.
+     * @param loader the class loader of the scripts (not null)
+     * @param root the resource directory of the scripts, without leading slash (empty for the root)
+     * @return the source
+     */
+    static ScriptSource classpath(final ClassLoader loader, final String root) {
+        return new ClasspathScriptSource(loader, root);
+    }
+
+    /**
+     * Creates a source giving the scripts from memory.
+     * @param scripts the content of each script by name (not null)
+     * @return the source
+     */
+    static ScriptSource memory(final Map<String, String> scripts) {
+        return new MemoryScriptSource(scripts);
+    }
+
+    /**
+     * Writes the index file <code>horcrux.index</code> of a script directory, listing all its scripts. Run it at
+     * build time on the directory packaged in the classpath.
+     * @param dir the path of the script directory (not null)
+     * @return the path of the index file
+     * @throws IOException if unable to list the scripts or to write the index
+     */
+    static Path writeIndex(final Path dir) throws IOException {
+        final StringBuilder index = new StringBuilder();
+        for (String name : directory(dir).list()) {
+            index.append(name).append('\n');
+        }
+        return Files.write(dir.resolve(INDEX),
+                index.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.code.fauch.horcrux;
+
+import java.util.Objects;
+
+/**
+ * A statement read from a SQL script.
+ */
+final class SqlStatement {
+
+    /**
+     * The SQL text of the statement, without comments nor terminating semicolon.
+     */
+    private final String sql;
+
+    /**
+     * The line of the script where the statement starts (from 1).
+     */
+    private final int line;
+
+    /**
+     * The <code>-- horcrux:...</code> directive written just before the statement (null if none).
+     */
+    private final String directive;
+
+    /**
+     * Constructor.
+     *
+     * @param sql the SQL text of the statement (not null)
+     * @param line the line of the script where the statement starts
+     */
+    SqlStatement(final String sql, final int line) {
+        this(sql, line, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sql the SQL text of the statement (not null)
+     * @param line the line of the script where the statement starts
+     * @param directive the directive written just before the statement (null if none)
+     */
+    SqlStatement(final String sql, final int line, final String directive) {
+        this.sql = Objects.requireNonNull(sql, "sql is missing");
+        this.line = line;
+        this.directive = directive;
+    }
+
+    /**
+     * @return the SQL text of the statement.
+     */
+    String getSql() {
+        return this.sql;
+    }
+
+    /**
+     * @return the line of the script where the statement starts.
+     */
+    int getLine() {
+        return this.line;
+    }
+
+    /**
+     * @return the directive written just before the statement, without the leading <code>--</code>, or null if none.
+     */
+    String getDirective() {
+        return this.directive;
+    }
+
+    @Override
+    public String toString() {
+        return this.line + ": " + this.sql;
+    }
+
+}
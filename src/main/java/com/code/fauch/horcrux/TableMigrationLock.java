@@ -0,0 +1,162 @@
+package com.code.fauch.horcrux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Migration lock stored in the single row of a lock table.
+ */
+final class TableMigrationLock implements MigrationLock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TableMigrationLock.class);
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS %s (id INT PRIMARY KEY, holder VARCHAR(64), since BIGINT)";
+    private static final String SELECT_ROW = "SELECT id FROM %s WHERE id = 1";
+    private static final String INSERT_ROW = "INSERT INTO %s (id, holder, since) VALUES (1, NULL, 0)";
+    private static final String TAKE_LOCK = "UPDATE %s SET holder = ?, since = ? WHERE id = 1 AND (holder IS NULL OR since < ?)";
+    private static final String RENEW_LOCK = "UPDATE %s SET since = ? WHERE id = 1 AND holder = ?";
+    private static final String RELEASE_LOCK = "UPDATE %s SET holder = NULL WHERE id = 1 AND holder = ?";
+
+    /**
+     * The default duration after which a lock still held is considered abandoned.
+     */
+    static final Duration DEFAULT_LEASE = Duration.ofMinutes(10);
+
+    /**
+     * The name of the lock table.
+     */
+    private final String table;
+
+    /**
+     * The duration after which a lock still held is considered abandoned.
+     */
+    private final Duration lease;
+
+    /**
+     * Constructor.
+     * @param table the name of the lock table (not null)
+     * @param lease the duration after which a lock still held is considered abandoned (not null)
+     */
+    TableMigrationLock(final String table, final Duration lease) {
+        this.table = Objects.requireNonNull(table, "table is mandatory");
+        this.lease = Objects.requireNonNull(lease, "lease is mandatory");
+    }
+
+    @Override
+    public Handle tryAcquire(final Connection conn) throws SQLException {
+        final String owner = UUID.randomUUID().toString();
+        int taken;
+        try {
+            taken = take(conn, owner);
+        } catch (SQLException err) {
+            LOGGER.debug("Unable to take migration lock, creating lock table: {}", err.getMessage());
+            if (!createTable(conn)) {
+                return null;
+            }
+            taken = 0;
+        }
+        if (taken == 0 && createRow(conn)) {
+            taken = take(conn, owner);
+        }
+        if (taken == 0) {
+            return null;
+        }
+        return new Handle() {
+
+            @Override
+            public void release() throws SQLException {
+                try (PreparedStatement statement = conn.prepareStatement(String.format(RELEASE_LOCK, table))) {
+                    statement.setString(1, owner);
+                    statement.execute();
+                }
+            }
+
+            @Override
+            public void renew() throws SQLException {
+                TableMigrationLock.this.renew(conn, owner);
+            }
+
+        };
+    }
+
+    /**
+     * Starts the lease of the lock again.
+     * @param conn the open connection (not null)
+     * @param owner the identifier of the owner of the lock (not null)
+     * @throws SQLException if the lock has been taken by another node or due to some SQL errors.
+     */
+    private void renew(final Connection conn, final String owner) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(String.format(RENEW_LOCK, this.table))) {
+            statement.setLong(1, System.currentTimeMillis());
+            statement.setString(2, owner);
+            if (statement.executeUpdate() == 0) {
+                throw new SQLException("Migration lock lost: held for more than " + this.lease
+                        + " and taken by another node");
+            }
+        }
+    }
+
+    /**
+     * Takes the lock if it is free or abandoned.
+     * @param conn the open connection (not null)
+     * @param owner the identifier of the new owner of the lock (not null)
+     * @return the number of updated rows (1 if the lock is taken)
+     * @throws SQLException if unable to take the lock due to some SQL errors.
+     */
+    private int take(final Connection conn, final String owner) throws SQLException {
+        final long now = System.currentTimeMillis();
+        try (PreparedStatement statement = conn.prepareStatement(String.format(TAKE_LOCK, this.table))) {
+            statement.setString(1, owner);
+            statement.setLong(2, now);
+            statement.setLong(3, now - this.lease.toMillis());
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Creates the lock table if missing.
+     * @param conn the open connection (not null)
+     * @return false if the table couldn't be created, by lack of rights or because another node is creating it
+     */
+    private boolean createTable(final Connection conn) {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(String.format(CREATE_TABLE, this.table));
+            return true;
+        } catch (SQLException err) {
+            LOGGER.debug("Unable to create lock table: {}", err.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Inserts the lock row if missing.
+     * @param conn the open connection (not null)
+     * @return true if the row has been inserted
+     * @throws SQLException if unable to read the lock table due to some SQL errors.
+     */
+    private boolean createRow(final Connection conn) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(String.format(SELECT_ROW, this.table))) {
+            try (ResultSet result = statement.executeQuery()) {
+                if (result.next()) {
+                    return false;
+                }
+            }
+        }
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(String.format(INSERT_ROW, this.table));
+            return true;
+        } catch (SQLException err) {
+            LOGGER.debug("Lock row inserted by another node: {}", err.getMessage());
+            return false;
+        }
+    }
+
+}
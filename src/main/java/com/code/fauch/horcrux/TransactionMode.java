@@ -0,0 +1,34 @@
+package com.code.fauch.horcrux;
+
+/**
+ * The <code>TransactionMode</code> enumeration defines how the updates of a <code>Migration</code> are committed.
+ *
+ * @author c.fauch
+ */
+public enum TransactionMode {
+
+    /**
+     * Everything is applied in one transaction: <code>schema.sql</code> or <code>populate.sql</code> and all the
+     * pending scripts. Any failure rolls back the whole update. The statements declared with
+     * <code>-- horcrux:chunked</code> are still run by chunks, without committing them.
+     */
+    SINGLE,
+
+    /**
+     * <code>schema.sql</code> or <code>populate.sql</code> is committed first, then each script is committed
+     * with the new version of the database. A failure rolls back the failing script only and the next update
+     * starts from the last committed script. Each chunk of the statements declared with
+     * <code>-- horcrux:chunked</code> is committed on its own, with its last key stored in the version table
+     * (in a reserved row numbered <code>Integer.MIN_VALUE + 2</code>) so that the next update resumes from there.
+     */
+    PER_SCRIPT,
+
+    /**
+     * Same as <code>PER_SCRIPT</code>, with a commit every <code>checkpointInterval</code> statements inside each
+     * script. The number of statements committed is stored in the version table (in a reserved row numbered
+     * <code>Integer.MIN_VALUE + 1</code>) and the next update skips them. A script must not be modified while it
+     * has a pending checkpoint.
+     */
+    CHECKPOINT
+
+}
@@ -0,0 +1,98 @@
+package com.code.fauch.horcrux;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Utility class reading the version chain declared by the version manifest <code>versions.properties</code>, or by
+ * <code>populate.sql</code> without running it.
+ */
+final class VersionChain {
+
+    /**
+     * The script declaring the versions.
+     */
+    static final String POPULATE = "populate.sql";
+
+    /**
+     * The version manifest, giving the script of each version: <code>2=upgrate_to_v2.sql</code>, with an empty
+     * script for a version without script.
+     */
+    static final String MANIFEST = "versions.properties";
+
+    /**
+     * The <code>VALUES</code> keyword of a statement of <code>populate.sql</code>.
+     */
+    private static final Pattern VALUES = Pattern.compile("\\bVALUES\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The version and the script given by a row following the <code>VALUES</code> keyword or the previous row:
+     * <code>(2, 'v2.sql')</code>, with any other column after the script.
+     */
+    private static final Pattern VERSION = Pattern.compile(
+            "\\G\\s*,?\\s*\\(\\s*(-?\\d+)\\s*,\\s*(NULL|'((?:[^']|'')*)')(?:[^')]|'(?:[^']|'')*')*\\)",
+            Pattern.CASE_INSENSITIVE);
+
+    private VersionChain() {
+    }
+
+    /**
+     * Reads the version manifest of a source.
+     *
+     * @param source the source of the scripts (not null)
+     * @return the script of each version (null for a version without script), or null if the source has no manifest
+     * @throws IOException if unable to read the manifest or if a version is not a number
+     */
+    static NavigableMap<Integer, String> read(final ScriptSource source) throws IOException {
+        final Properties manifest = new Properties();
+        try (Reader reader = new InputStreamReader(source.open(MANIFEST), StandardCharsets.UTF_8)) {
+            manifest.load(reader);
+        } catch (NoSuchFileException err) {
+            return null;
+        }
+        final NavigableMap<Integer, String> versions = new TreeMap<>();
+        for (String version : manifest.stringPropertyNames()) {
+            final String script = manifest.getProperty(version).trim();
+            try {
+                versions.put(Integer.parseInt(version.trim()), script.isEmpty() ? null : script);
+            } catch (NumberFormatException err) {
+                throw new IOException("Invalid version in " + MANIFEST + ": " + version, err);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Reads the versions declared by the statements of <code>populate.sql</code>, the ones giving the version
+     * number then the script in each row of their <code>VALUES</code>. The other statements are ignored.
+     *
+     * @param statements the statements of <code>populate.sql</code> (not null)
+     * @return the script of each version (null for a version without script)
+     */
+    static NavigableMap<Integer, String> parse(final List<SqlStatement> statements) {
+        final NavigableMap<Integer, String> versions = new TreeMap<>();
+        for (SqlStatement statement : statements) {
+            final Matcher values = VALUES.matcher(statement.getSql());
+            if (!values.find()) {
+                continue;
+            }
+            final Matcher version = VERSION.matcher(statement.getSql());
+            version.region(values.end(), statement.getSql().length());
+            while (version.find()) {
+                versions.put(Integer.parseInt(version.group(1)),
+                        version.group(3) == null ? null : version.group(3).replace("''", "'"));
+            }
+        }
+        return versions;
+    }
+
+}
@@ -21,7 +21,9 @@
  * Creates a directory with following files:
  * <ul>
  * <li><code>schema.sql</code>: with database definitions and eventually some predefined records</li>
- * <li><code>populate.sql</code>: with all known versions</li>
+ * <li><code>populate.sql</code>: with all known versions, or <code>versions.properties</code> mapping each version to
+ * its script (<code>2=upgrate_to_v2.sql</code>, empty for none). The manifest is preferred: its versions are
+ * compared to the version table and only the missing or changed ones are written, in JDBC batches.</li>
  * <li>all scripts to apply to update the database
  * </ul>
  * </p>
@@ -39,16 +41,144 @@
  * Use the builder <code>Migration.Builder</code> to build a new <code>Migration</code> object.
  * <ul>
  * <li><code>withScripts(...)</code> specifies the path of the directory containing migration scripts,
- * <code>schema.sql</code> and <code>populate.sql</code>. 
- * By default the directory used is the root folder of the application.</li>
+ * <code>schema.sql</code> and <code>populate.sql</code>, or any <code>ScriptSource</code>:
+ * <code>ScriptSource.classpath("db")</code> streams the scripts of a resource directory straight from the jars and
+ * <code>ScriptSource.memory(scripts)</code> gives them from memory.
+ * By default the scripts are read from the directory holding the root of the classpath.</li>
  * <li><code>versionTable("HORCRUX_VERSIONS")</code> specifies the name of the table containing all database
  * versions and their corresponding migration script.</li>
  * <li><code>createSchema(true)</code> specifies to apply the script <code>schema.sql</code> if the database is
  * empty.</li>
  * <li><code>runUpdates(true)</code> specifies to apply the migration scripts if the database is too old.</li>
+ * <li><code>batchSize(500)</code> specifies to send consecutive DML statements to the database in JDBC batches
+ * of at most 500 statements.</li>
+ * <li><code>mapScripts(true)</code> specifies to memory map the script files instead of reading them through a
+ * stream, which speeds up the loading of very large scripts.</li>
+ * <li><code>checkFingerprint(true)</code> specifies to store a hash of the script directory in the version table
+ * (in a reserved row numbered <code>Integer.MIN_VALUE</code>) and to skip the whole update while it is
+ * unchanged.</li>
+ * <li><code>verifyChecksums(true)</code> specifies to store the checksum of each applied script in a
+ * <code>checksum</code> column of the version table and to fail the update when an applied script has been
+ * modified since. Comments and whitespaces are ignored. The modification time and size of each script file are
+ * stored in a <code>script_version</code> column so that the unmodified files are not hashed again.</li>
+ * <li><code>lock(MigrationLock.table("HORCRUX_LOCK"))</code> specifies to take a lock before updating the database
+ * so that only one node updates it while the others wait. <code>MigrationLock.advisory(key)</code> uses PostgreSQL
+ * advisory locks and <code>MigrationLock.local(name)</code> a lock of the current JVM.</li>
+ * <li><code>cache(new ScriptCache(64))</code> specifies to keep the statements of the last 64 scripts read, so that
+ * they are not read nor parsed again by the next updates. The cache can be shared by many migrations.</li>
+ * <li><code>listener(new MigrationRecorder())</code> specifies the listener notified of the duration of each script
+ * and each statement; <code>MigrationRecorder.report()</code> gives a summary with the slowest statements.</li>
+ * <li><code>baseline(300, "schema_v300.sql")</code> declares a script bringing any older database straight to
+ * version 300, applied instead of the pending scripts when there are more than <code>baselineThreshold(10)</code>
+ * of them.</li>
+ * <li><code>transactionMode(TransactionMode.PER_SCRIPT)</code> specifies to commit each script on its own, so that
+ * a failed update keeps the scripts already applied; <code>TransactionMode.CHECKPOINT</code> also commits every
+ * <code>checkpointInterval(1000)</code> statements inside the scripts and the next update resumes from the last
+ * checkpoint.</li>
+ * <li><code>prefetch(2)</code> specifies to read and parse the next 2 migration scripts on a background thread
+ * while the current one is executed.</li>
+ * <li><code>queryTimeout(Duration.ofMinutes(10))</code> specifies the maximum execution time of each statement.</li>
+ * <li><code>retry(new RetryPolicy.Builder().build())</code> specifies to roll back and retry an update failed due to
+ * a transient error (SQLState <code>40001</code>, <code>40P01</code> or <code>55P03</code> by default), waiting with
+ * a jittered exponential backoff within a time budget. The retried unit is the whole update, the failed script or the
+ * statements since the last checkpoint, depending on the transaction mode. <code>getRetryCount()</code> and
+ * <code>getRetryWaitTime()</code> report the retries.</li>
  * <li><code>build()</code>creates the <code>Migration</code>.</li>
  * </ul>
  * Then, apply <code>Migration.update(DataSource)</code> to update the given database.
+ * <code>Migration.updateAsync(DataSource)</code> updates it in background, with a virtual thread when the JVM
+ * supports them, and returns a <code>CompletableFuture</code>: cancelling the future cancels the running statement
+ * and rolls back the uncommitted updates. An additional <code>MigrationListener</code> can be given to follow the
+ * progress of the update.
+ * </p>
+ * <p>
+ * <code>Migration.plan(DataSource)</code> lists the scripts that would be applied and their number of statements,
+ * through a read-only connection and without running <code>populate.sql</code>.
+ * <code>plan(dataSource, MigrationRecorder.readTimings(file))</code> also estimates their duration from the timings
+ * of earlier runs, written by <code>MigrationRecorder.writeTimings(file)</code>.
+ * </p>
+ * <h3>Scripts packaged in a jar</h3>
+ * <p>
+ * The scripts of a classpath source are read through the class loader, without extracting them. They are only
+ * listed to compute the fingerprint: call <code>ScriptSource.writeIndex(dir)</code> at build time to write the
+ * <code>horcrux.index</code> file listing the scripts of the directory packaged in the jar, since the resources of a
+ * jar can't be listed.
+ * </p>
+ * <h3>Precompiled scripts</h3>
+ * <p>
+ * <code>MigrationBundle.compile(source).write(file)</code>, or its <code>main</code> method run from the build,
+ * validates the scripts and stores them already split into statements, with their hashes, the version chain of
+ * <code>populate.sql</code> and the fingerprint of the scripts. <code>withScripts(MigrationBundle.read(input))</code>
+ * then updates the database without reading nor parsing the SQL files.
+ * </p>
+ * <h3>Chunked statements</h3>
+ * <pre>
+ *        -- horcrux:chunked key=id size=10000 pause=100
+ *        UPDATE big_table SET status = 'ACTIVE' WHERE status IS NULL;
+ * </pre>
+ * <p>
+ * An <code>UPDATE</code> or <code>DELETE</code> statement preceded by the <code>horcrux:chunked</code> directive is
+ * run in chunks of <code>size</code> rows in <code>key</code> order, pausing <code>pause</code> milliseconds between
+ * two chunks. With <code>TransactionMode.PER_SCRIPT</code> or <code>TransactionMode.CHECKPOINT</code>, each chunk is
+ * committed with its last key and a failed update resumes after the last committed chunk. The last key is stored in
+ * the <code>script</code> column of the version table with the version and the ordinal of the statement, so the
+ * update fails before committing a chunk whose key doesn't fit in 64 characters.
+ * </p>
+ * <h3>Parallel statements</h3>
+ * <pre>
+ *        -- horcrux:parallel
+ *        CREATE INDEX IF NOT EXISTS idx_users_name ON users(name);
+ *        -- horcrux:parallel
+ *        CREATE INDEX IF NOT EXISTS idx_orders_date ON orders(created);
+ * </pre>
+ * <p>
+ * With <code>parallelConnections(4)</code> and <code>TransactionMode.PER_SCRIPT</code> or
+ * <code>TransactionMode.CHECKPOINT</code>, consecutive statements of a migration script preceded by the
+ * <code>horcrux:parallel</code> directive run concurrently on at most 4 extra connections of the data source, and all
+ * of them are done before the next statement. The statements executed before are committed first with a checkpoint,
+ * and each parallel statement is committed on its own: they must be independent of each other. The time saved is
+ * logged and notified to the listener. Without extra connections, or with <code>TransactionMode.SINGLE</code>, they
+ * run one after the other in the transaction of the update like any other statement.
+ * </p>
+ * <h3>Deferred statements</h3>
+ * <pre>
+ *        -- horcrux:deferred
+ *        CREATE INDEX CONCURRENTLY idx_orders_date ON orders(created);
+ * </pre>
+ * <p>
+ * A statement preceded by the <code>horcrux:deferred</code> directive is not executed with its script: it is recorded
+ * in the version table, in reserved rows, and executed in auto-commit mode once the update committed. Each deferred
+ * statement is removed from the version table once done, so that a failed or interrupted one is executed again by
+ * the next update. The row keeps the ordinal and the checksum of the statement with the name of its script, that
+ * must fit in 64 characters, and the next update fails rather than running another statement if the script has
+ * been modified in between. The listener is notified of each of them with the number of deferred statements
+ * remaining.
+ * </p>
+ * <h3>Updating many tenants</h3>
+ * <pre>
+ *        final MigrationExecutor executor = new MigrationExecutor.Builder(migration)
+ *             .parallelism(32)
+ *             .maxConnections(8)
+ *             .build();
+ *        final List&lt;MigrationResult&gt; results = executor.update(dataSourcesByTenant);
+ * </pre>
+ * <p>
+ * <code>MigrationExecutor</code> applies the same <code>Migration</code> to many databases, or with
+ * <code>update(dataSource, schemas)</code> to many schemas of the same database, at most <code>parallelism</code>
+ * tenants at a time and at most <code>maxConnections</code> tenants at a time per data source. The scripts are read
+ * once per run and each tenant gets its own <code>MigrationResult</code>.
+ * </p>
+ * <h3>Template databases</h3>
+ * <pre>
+ *        final MigrationTemplate template = new MigrationTemplate.Builder(migration, Paths.get("target/templates"))
+ *             .build();
+ *        template.update(ds);
+ * </pre>
+ * <p>
+ * <code>MigrationTemplate</code> sets up many empty databases, typically for tests or ephemeral environments: the
+ * first one is migrated and dumped into a snapshot named after the fingerprint of the scripts, the next ones are
+ * restored from this snapshot. The migrations are only replayed when the scripts change. The snapshots are H2 scripts
+ * by default, <code>dumpCommand(...)</code> and <code>restoreCommand(...)</code> adapt them to other databases.
  * </p>
  * <h3>Example with in memory H2</h3>
  * <pre>
@@ -0,0 +1,222 @@
+package com.code.fauch.horcrux;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+public class DataSourceUtilsTest {
+
+    private static final String SCRIPT = String.join("\n",
+            "-- a table",
+            "CREATE TABLE IF NOT EXISTS pets (",
+            "    id INT PRIMARY KEY,",
+            "    name VARCHAR(64)",
+            ");",
+            "INSERT INTO pets (id, name) VALUES (1, 'Hedwig');",
+            "INSERT INTO pets (id, name) VALUES (2, 'Crookshanks');",
+            "INSERT INTO pets (id, name) VALUES (3, 'Scabbers');",
+            "UPDATE pets SET name = 'Pettigrew' WHERE id = 3;",
+            "CREATE INDEX IF NOT EXISTS pets_name ON pets(name);",
+            "DELETE FROM pets WHERE id = 2;"
+    );
+
+    @Test
+    public void testBatchedExecution() throws SQLException, IOException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:utils1;DB_CLOSE_DELAY=1", "harry", "");
+        try (Connection conn = ds.getConnection()) {
+            DataSourceUtils.execute(conn, new ScriptParser(new StringReader(SCRIPT))::next,
+                    new DataSourceUtils.Options().batchSize(2));
+        }
+        Assertions.assertEquals(2, count(ds, "SELECT COUNT(*) FROM pets"));
+        Assertions.assertEquals(1, count(ds, "SELECT COUNT(*) FROM pets WHERE name = 'Pettigrew'"));
+    }
+
+    @Test
+    public void testBatchedFailureNamesStatement() throws SQLException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:utils2;DB_CLOSE_DELAY=1", "harry", "");
+        final String script = SCRIPT + "\nINSERT INTO pets (id, name) VALUES (4, 'Fang');\nINSERT INTO pets (id, name) VALUES (1, 'Nagini');\n";
+        try (Connection conn = ds.getConnection()) {
+            final SQLException err = Assertions.assertThrows(SQLException.class,
+                    () -> DataSourceUtils.execute(conn, new ScriptParser(new StringReader(script))::next,
+                            new DataSourceUtils.Options().batchSize(10)));
+            Assertions.assertTrue(err.getMessage().contains("line 13"), err.getMessage());
+            Assertions.assertTrue(err.getMessage().contains("'Nagini'"), err.getMessage());
+        }
+    }
+
+    @Test
+    public void testListenedStatements() throws SQLException, IOException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:utils3;DB_CLOSE_DELAY=1", "harry", "");
+        final List<Integer> ordinals = new ArrayList<>();
+        final List<Long> rows = new ArrayList<>();
+        final MigrationListener listener = new MigrationListener() {
+            @Override
+            public void statementExecuted(final Path script, final int ordinal, final int line, final String sql,
+                                          final long count, final Duration duration) {
+                ordinals.add(ordinal);
+                rows.add(count);
+            }
+        };
+        final List<SqlStatement> statements = new ArrayList<>();
+        try (ScriptParser parser = new ScriptParser(new StringReader(SCRIPT))) {
+            SqlStatement next;
+            while ((next = parser.next()) != null) {
+                statements.add(next);
+            }
+        }
+        try (Connection conn = ds.getConnection()) {
+            Assertions.assertEquals(7, DataSourceUtils.execute(conn, DataSourceUtils.Statements.of(statements),
+                    new DataSourceUtils.Options().batchSize(2).listener(listener, Path.of("script.sql"))));
+        }
+        Assertions.assertEquals(List.of(1, 2, 3, 4, 5, 6, 7), ordinals);
+        Assertions.assertEquals(List.of(1L, 1L, 1L, 1L), rows.subList(1, 5));
+        Assertions.assertEquals(1L, rows.get(6));
+    }
+
+    @Test
+    public void testCheckpointedStatements() throws SQLException, IOException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:utils4;DB_CLOSE_DELAY=1", "harry", "");
+        final List<Integer> checkpoints = new ArrayList<>();
+        try (Connection conn = ds.getConnection()) {
+            try (PreparedStatement statement = conn.prepareStatement("CREATE TABLE pets (id INT PRIMARY KEY, name VARCHAR(64))")) {
+                statement.execute();
+            }
+            conn.setAutoCommit(false);
+            final int statements = DataSourceUtils.execute(conn, new ScriptParser(new StringReader(SCRIPT))::next,
+                    new DataSourceUtils.Options().batchSize(2).checkpoint(1, 2, count -> {
+                        checkpoints.add(count);
+                        conn.commit();
+                    }));
+            conn.commit();
+            Assertions.assertEquals(7, statements);
+        }
+        Assertions.assertEquals(List.of(2, 4, 6), checkpoints);
+        Assertions.assertEquals(2, count(ds, "SELECT COUNT(*) FROM pets"));
+    }
+
+    @Test
+    public void testDeferredStatementInParallelPhase() throws SQLException, IOException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:utils7;DB_CLOSE_DELAY=1", "harry", "");
+        final String script = String.join("\n",
+                "-- horcrux:parallel",
+                "INSERT INTO pets VALUES (1, 'Hedwig');",
+                "-- horcrux:deferred",
+                "INSERT INTO pets VALUES (2, 'Crookshanks');",
+                "-- horcrux:parallel",
+                "INSERT INTO pets VALUES (3, 'Scabbers');",
+                "-- horcrux:parallel",
+                "INSERT INTO pets VALUES (4, 'Fawkes');");
+        final List<Integer> ordinals = new ArrayList<>();
+        final MigrationListener listener = new MigrationListener() {
+            @Override
+            public void statementExecuted(final Path script, final int ordinal, final int line, final String sql,
+                                          final long count, final Duration duration) {
+                ordinals.add(ordinal);
+            }
+        };
+        final ExecutionControl control = new ExecutionControl(null, Duration.ZERO);
+        control.setParallelPhase(new ParallelPhase(ds, null, 2));
+        final List<Integer> checkpoints = new ArrayList<>();
+        try (Connection conn = ds.getConnection()) {
+            try (PreparedStatement statement = conn.prepareStatement("CREATE TABLE pets (id INT PRIMARY KEY, name VARCHAR(64))")) {
+                statement.execute();
+            }
+            conn.setAutoCommit(false);
+            Assertions.assertEquals(4, DataSourceUtils.execute(conn, new ScriptParser(new StringReader(script))::next,
+                    new DataSourceUtils.Options().listener(listener, Path.of("script.sql")).control(control)
+                            .checkpoint(0, 0, count -> {
+                                checkpoints.add(count);
+                                conn.commit();
+                            })));
+            conn.commit();
+        }
+        Assertions.assertEquals(List.of(1, 3, 4), ordinals);
+        Assertions.assertEquals(List.of(2, 4), checkpoints);
+        Assertions.assertEquals(Set.of(2), control.takeDeferred().keySet());
+        Assertions.assertEquals(3, count(ds, "SELECT COUNT(*) FROM pets"));
+    }
+
+    @Test
+    public void testChunkedStatement() throws SQLException, IOException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:utils5;DB_CLOSE_DELAY=1", "harry", "");
+        final String script = String.join("\n",
+                "CREATE TABLE pets (id INT PRIMARY KEY, name VARCHAR(64));",
+                "INSERT INTO pets VALUES (1, 'Hedwig'), (2, 'Crookshanks'), (3, 'Scabbers'), (4, 'Fawkes'), (5, 'Trevor');",
+                "-- horcrux:chunked key=id size=2",
+                "UPDATE pets SET name = UPPER(name) WHERE name <> 'Fawkes';");
+        final List<Integer> chunks = new ArrayList<>();
+        final MigrationListener listener = new MigrationListener() {
+            @Override
+            public void chunkExecuted(final Path script, final int ordinal, final int chunk, final long rows,
+                                      final Duration duration) {
+                chunks.add(chunk);
+            }
+        };
+        try (Connection conn = ds.getConnection()) {
+            Assertions.assertEquals(3, DataSourceUtils.execute(conn, new ScriptParser(new StringReader(script))::next,
+                    new DataSourceUtils.Options().listener(listener, Path.of("script.sql"))));
+        }
+        Assertions.assertEquals(List.of(1, 2, 3), chunks);
+        Assertions.assertEquals(4, count(ds, "SELECT COUNT(*) FROM pets WHERE name = UPPER(name)"));
+        Assertions.assertEquals(1, count(ds, "SELECT COUNT(*) FROM pets WHERE name = 'Fawkes'"));
+    }
+
+    @Test
+    public void testCancelledExecution() throws SQLException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:utils6;DB_CLOSE_DELAY=1", "harry", "");
+        final ExecutionControl control = new ExecutionControl(null, Duration.ofSeconds(10));
+        final MigrationListener listener = new MigrationListener() {
+            @Override
+            public void statementExecuted(final Path script, final int ordinal, final int line, final String sql,
+                                          final long count, final Duration duration) {
+                if (ordinal == 2) {
+                    control.cancel();
+                }
+            }
+        };
+        try (Connection conn = ds.getConnection()) {
+            final SQLException err = Assertions.assertThrows(SQLException.class, () -> DataSourceUtils.execute(conn,
+                    new ScriptParser(new StringReader(SCRIPT))::next,
+                    new DataSourceUtils.Options().listener(listener, Path.of("script.sql")).control(control)));
+            Assertions.assertTrue(err.getMessage().contains("cancelled"), err.getMessage());
+        }
+        Assertions.assertEquals(1, count(ds, "SELECT COUNT(*) FROM pets"));
+    }
+
+    @Test
+    public void testBatchable() {
+        Assertions.assertTrue(DataSourceUtils.isBatchable("INSERT INTO pets VALUES (1, 'Hedwig');"));
+        Assertions.assertTrue(DataSourceUtils.isBatchable(" merge into pets KEY(id) VALUES (1, 'Hedwig');"));
+        Assertions.assertFalse(DataSourceUtils.isBatchable("CREATE TABLE pets (id INT);"));
+        Assertions.assertFalse(DataSourceUtils.isBatchable("SELECT * FROM pets;"));
+        Assertions.assertFalse(DataSourceUtils.isBatchable("INSERT INTO pets VALUES (1, 'Hedwig') RETURNING id;"));
+        Assertions.assertFalse(DataSourceUtils.isBatchable("insert into pets values (1, 'Hedwig')\nreturning id;"));
+        Assertions.assertTrue(DataSourceUtils.isBatchable("UPDATE pets SET returning_owner = TRUE;"));
+        Assertions.assertTrue(DataSourceUtils.isBatchable("INSERT INTO pets VALUES (1, 'returning');"));
+    }
+
+    static int count(final DataSource ds, final String query) throws SQLException {
+        try (Connection conn = ds.getConnection()) {
+            try (PreparedStatement statement = conn.prepareStatement(query)) {
+                try (ResultSet result = statement.executeQuery()) {
+                    result.next();
+                    return result.getInt(1);
+                }
+            }
+        }
+    }
+
+}
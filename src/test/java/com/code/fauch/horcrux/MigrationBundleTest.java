@@ -0,0 +1,96 @@
+package com.code.fauch.horcrux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+public class MigrationBundleTest {
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testWriteAndRead() throws URISyntaxException, IOException {
+        final Path scripts = Paths.get(getClass().getResource("/dataset/v3").toURI());
+        final Path file = this.folder.resolve("migration.bundle");
+        MigrationBundle.compile(ScriptSource.directory(scripts)).write(file);
+        final MigrationBundle bundle = MigrationBundle.read(file);
+        Assertions.assertEquals(List.of("populate.sql", "schema.sql", "upgrate_to_v2.sql", "upgrate_to_v3.sql"), bundle.list());
+        Assertions.assertEquals(Fingerprint.compute(scripts), bundle.getFingerprint());
+        Assertions.assertEquals(3, bundle.getVersions().size());
+        Assertions.assertNull(bundle.getVersions().get(1));
+        Assertions.assertEquals("upgrate_to_v3.sql", bundle.getVersions().get(3));
+        Assertions.assertEquals(ScriptParser.parse(scripts.resolve("schema.sql"), false).size(),
+                bundle.statements("schema.sql").size());
+        Assertions.assertEquals(64, bundle.getHash("upgrate_to_v2.sql").length());
+        Assertions.assertNull(bundle.getHash("missing.sql"));
+    }
+
+    @Test
+    public void testManifest() throws IOException {
+        final ScriptSource source = ScriptSource.memory(Map.of(
+                "versions.properties", "1=\n2=upgrate_to_v2.sql\n",
+                "upgrate_to_v2.sql", "UPDATE HORCRUX_USERS SET profile = 'user';"));
+        final Path file = this.folder.resolve("migration.bundle");
+        MigrationBundle.compile(source).write(file);
+        final MigrationBundle bundle = MigrationBundle.read(file);
+        Assertions.assertEquals(2, bundle.getManifest().size());
+        Assertions.assertNull(bundle.getManifest().get(1));
+        Assertions.assertEquals("upgrate_to_v2.sql", bundle.getManifest().get(2));
+        Assertions.assertNull(MigrationBundle.compile(ScriptSource.memory(Map.of())).getManifest());
+        Assertions.assertThrows(IOException.class, () -> MigrationBundle.compile(ScriptSource.memory(Map.of(
+                "versions.properties", "2=upgrate_to_v2.sql\n"))));
+    }
+
+    @Test
+    public void testMultiRowPopulate() throws IOException {
+        final ScriptSource source = ScriptSource.memory(Map.of(
+                "populate.sql", "INSERT INTO HORCRUX_VERSIONS (number, script) VALUES (1, NULL),\n"
+                        + "    (2, 'upgrate_to_v2.sql'), (3, 'upgrate_to_v3.sql');",
+                "upgrate_to_v2.sql", "UPDATE HORCRUX_USERS SET profile = 'user';",
+                "upgrate_to_v3.sql", "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);"));
+        final MigrationBundle bundle = MigrationBundle.compile(source);
+        Assertions.assertEquals(3, bundle.getVersions().size());
+        Assertions.assertNull(bundle.getVersions().get(1));
+        Assertions.assertEquals("upgrate_to_v2.sql", bundle.getVersions().get(2));
+        Assertions.assertEquals("upgrate_to_v3.sql", bundle.getVersions().get(3));
+    }
+
+    @Test
+    public void testMissingVersionScript() {
+        final ScriptSource source = ScriptSource.memory(Map.of("populate.sql",
+                "MERGE INTO HORCRUX_VERSIONS (number, script) KEY(number) VALUES(2, 'upgrate_to_v2.sql');"));
+        Assertions.assertThrows(IOException.class, () -> MigrationBundle.compile(source));
+    }
+
+    @Test
+    public void testInvalidDirective() {
+        final ScriptSource source = ScriptSource.memory(Map.of("upgrate_to_v2.sql",
+                "-- horcrux:chunked size=10\nUPDATE HORCRUX_USERS SET profile = 'user';"));
+        Assertions.assertThrows(IOException.class, () -> MigrationBundle.compile(source));
+    }
+
+    @Test
+    public void testUnsupportedFormat() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            data.writeInt(0x48435842);
+            data.writeInt(2);
+        }
+        final IOException err = Assertions.assertThrows(IOException.class,
+                () -> MigrationBundle.read(new ByteArrayInputStream(bytes.toByteArray())));
+        Assertions.assertTrue(err.getMessage().contains("format 2"), err.getMessage());
+    }
+
+}
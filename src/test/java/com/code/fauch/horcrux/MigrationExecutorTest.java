@@ -0,0 +1,84 @@
+package com.code.fauch.horcrux;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MigrationExecutorTest {
+
+    @Test
+    public void testDatabasePerTenant() throws URISyntaxException, InterruptedException, SQLException {
+        final Map<String, DataSource> tenants = new LinkedHashMap<>();
+        for (int i = 0; i < 6; i++) {
+            tenants.put("tenant" + i, JdbcConnectionPool.create("jdbc:h2:mem:tenant" + i + ";DB_CLOSE_DELAY=1", "harry", ""));
+        }
+        final MigrationExecutor executor = new MigrationExecutor.Builder(migration())
+                .parallelism(3)
+                .virtualThreads(true)
+                .build();
+        final List<MigrationResult> results = executor.update(tenants);
+        Assertions.assertEquals(6, results.size());
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertEquals("tenant" + i, results.get(i).getTenant());
+            Assertions.assertTrue(results.get(i).isSuccess(), results.get(i).toString());
+            Assertions.assertEquals(3, DataSourceUtilsTest.count(tenants.get("tenant" + i),
+                    "SELECT number FROM horcrux_versions WHERE active IS TRUE"));
+        }
+    }
+
+    @Test
+    public void testSchemaPerTenant() throws URISyntaxException, InterruptedException, SQLException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:schemas;DB_CLOSE_DELAY=1", "harry", "");
+        try (Connection conn = ds.getConnection()) {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("CREATE SCHEMA TENANT1");
+                statement.execute("CREATE SCHEMA TENANT2");
+            }
+        }
+        final MigrationExecutor executor = new MigrationExecutor.Builder(migration())
+                .parallelism(4)
+                .maxConnections(2)
+                .build();
+        final List<MigrationResult> results = executor.update(ds, List.of("TENANT1", "TENANT2", "MISSING"));
+        Assertions.assertTrue(results.get(0).isSuccess(), results.get(0).toString());
+        Assertions.assertTrue(results.get(1).isSuccess(), results.get(1).toString());
+        Assertions.assertFalse(results.get(2).isSuccess());
+        Assertions.assertNotNull(results.get(2).getError());
+        Assertions.assertEquals(3, DataSourceUtilsTest.count(ds, "SELECT number FROM TENANT1.horcrux_versions WHERE active IS TRUE"));
+        Assertions.assertEquals(3, DataSourceUtilsTest.count(ds, "SELECT number FROM TENANT2.horcrux_versions WHERE active IS TRUE"));
+    }
+
+    @Test
+    public void testMaxConnectionsWithParallelConnections() throws URISyntaxException {
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .parallelConnections(2)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new MigrationExecutor.Builder(migration).maxConnections(2).build());
+        Assertions.assertNotNull(new MigrationExecutor.Builder(migration).maxConnections(3).build());
+    }
+
+    private Migration migration() throws URISyntaxException {
+        return new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.code.fauch.horcrux;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+
+public class MigrationLockTest {
+
+    @Test
+    public void testTableLock() throws SQLException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:lock1;DB_CLOSE_DELAY=1", "harry", "");
+        final MigrationLock lock = MigrationLock.table("HORCRUX_LOCK");
+        try (Connection first = ds.getConnection(); Connection second = ds.getConnection()) {
+            final MigrationLock.Handle handle = lock.tryAcquire(first);
+            Assertions.assertNotNull(handle);
+            Assertions.assertNull(lock.tryAcquire(second));
+            handle.release();
+            final MigrationLock.Handle other = lock.tryAcquire(second);
+            Assertions.assertNotNull(other);
+            other.release();
+        }
+    }
+
+    @Test
+    public void testAbandonedTableLock() throws SQLException, InterruptedException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:lock2;DB_CLOSE_DELAY=1", "harry", "");
+        final MigrationLock lock = MigrationLock.table("HORCRUX_LOCK", Duration.ZERO);
+        try (Connection first = ds.getConnection(); Connection second = ds.getConnection()) {
+            Assertions.assertNotNull(lock.tryAcquire(first));
+            Thread.sleep(10);
+            Assertions.assertNotNull(lock.tryAcquire(second));
+        }
+    }
+
+    @Test
+    public void testRenewedTableLock() throws SQLException, InterruptedException {
+        final DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:lock3;DB_CLOSE_DELAY=1", "harry", "");
+        final MigrationLock lock = MigrationLock.table("HORCRUX_LOCK", Duration.ofMillis(200));
+        try (Connection first = ds.getConnection(); Connection second = ds.getConnection()) {
+            final MigrationLock.Handle handle = lock.tryAcquire(first);
+            Assertions.assertNotNull(handle);
+            Thread.sleep(150);
+            handle.renew();
+            Thread.sleep(150);
+            Assertions.assertNull(lock.tryAcquire(second));
+            Thread.sleep(100);
+            Assertions.assertNotNull(lock.tryAcquire(second));
+            Assertions.assertThrows(SQLException.class, handle::renew);
+        }
+    }
+
+    @Test
+    public void testLocalLock() throws SQLException {
+        final MigrationLock.Handle handle = MigrationLock.local("test").tryAcquire(null);
+        Assertions.assertNotNull(handle);
+        Assertions.assertNull(MigrationLock.local("test").tryAcquire(null));
+        Assertions.assertNotNull(MigrationLock.local("other").tryAcquire(null));
+        handle.release();
+        Assertions.assertNotNull(MigrationLock.local("test").tryAcquire(null));
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.code.fauch.horcrux;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class MigrationTemplateTest {
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testRestoreFromSnapshot() throws URISyntaxException, SQLException, IOException {
+        final Path scripts = Files.createDirectory(this.folder.resolve("scripts"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(getClass().getResource("/dataset/v3").toURI()))) {
+            for (Path file : files) {
+                Files.copy(file, scripts.resolve(file.getFileName()));
+            }
+        }
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(scripts)
+                .build();
+        final MigrationTemplate template = new MigrationTemplate.Builder(migration, this.folder.resolve("templates"))
+                .build();
+        final DataSource first = JdbcConnectionPool.create("jdbc:h2:mem:first;DB_CLOSE_DELAY=-1", "harry", "");
+        Assertions.assertFalse(template.update(first));
+        Assertions.assertTrue(Files.isRegularFile(template.getSnapshot()));
+        final DataSource second = JdbcConnectionPool.create("jdbc:h2:mem:second;DB_CLOSE_DELAY=-1", "harry", "");
+        Assertions.assertTrue(template.update(second));
+        Assertions.assertEquals(3, getCurrentVersion(second));
+        Assertions.assertEquals(count(first, "horcrux_versions"), count(second, "horcrux_versions"));
+        Assertions.assertEquals(count(first, "horcrux_users"), count(second, "horcrux_users"));
+        final Path snapshot = template.getSnapshot();
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), "\nUPDATE HORCRUX_USERS SET profile = profile;",
+                StandardOpenOption.APPEND);
+        Assertions.assertNotEquals(snapshot, template.getSnapshot());
+        final DataSource third = JdbcConnectionPool.create("jdbc:h2:mem:third;DB_CLOSE_DELAY=-1", "harry", "");
+        Assertions.assertFalse(template.update(third));
+        Assertions.assertEquals(3, getCurrentVersion(third));
+    }
+
+    @Test
+    public void testSnapshotDependsOnOptions() throws URISyntaxException, IOException {
+        final Path scripts = Paths.get(getClass().getResource("/dataset/v3").toURI());
+        final Path dir = this.folder.resolve("templates");
+        final MigrationTemplate template = new MigrationTemplate.Builder(new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(scripts)
+                .build(), dir).build();
+        final MigrationTemplate checked = new MigrationTemplate.Builder(new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .verifyChecksums(true)
+                .withScripts(scripts)
+                .build(), dir).build();
+        Assertions.assertNotEquals(template.getSnapshot(), checked.getSnapshot());
+    }
+
+    @Test
+    public void testRefuseNonEmptyDatabase() throws URISyntaxException, SQLException, IOException {
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        final MigrationTemplate template = new MigrationTemplate.Builder(migration, this.folder.resolve("templates"))
+                .build();
+        final DataSource first = JdbcConnectionPool.create("jdbc:h2:mem:empty;DB_CLOSE_DELAY=-1", "harry", "");
+        Assertions.assertFalse(template.update(first));
+        final DataSource used = JdbcConnectionPool.create("jdbc:h2:mem:used;DB_CLOSE_DELAY=-1", "harry", "");
+        try (Connection conn = used.getConnection()) {
+            try (PreparedStatement statement = conn.prepareStatement("CREATE TABLE HORCRUX_PETS (id INT)")) {
+                statement.execute();
+            }
+        }
+        final SQLException err = Assertions.assertThrows(SQLException.class, () -> template.update(used));
+        Assertions.assertTrue(err.getMessage().contains("HORCRUX_PETS"), err.getMessage());
+    }
+
+    private static int getCurrentVersion(final DataSource ds) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            try(PreparedStatement statement = conn.prepareStatement("SELECT number FROM horcrux_versions WHERE active IS TRUE")) {
+                try (ResultSet result = statement.executeQuery()) {
+                    return result.next() ? result.getInt(1) : -1;
+                }
+            }
+        }
+    }
+
+    private static int count(final DataSource ds, final String table) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            try(PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM " + table)) {
+                try (ResultSet result = statement.executeQuery()) {
+                    result.next();
+                    return result.getInt(1);
+                }
+            }
+        }
+    }
+
+}
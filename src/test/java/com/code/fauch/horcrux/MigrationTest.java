@@ -9,15 +9,29 @@ import javax.sql.DataSource;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.sql.*;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MigrationTest {
 
+    private static final AtomicInteger TRANSIENT_FAILURES = new AtomicInteger();
+
     @TempDir
     public Path folder;
 
@@ -148,6 +162,145 @@ public class MigrationTest {
         migration.update(ds);
         Assertions.assertEquals(3, getCurrentVersion(ds));
         checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        Assertions.assertEquals(1, countActiveVersions(ds));
+    }
+
+    @Test
+    public void testSeveralActiveVersionsRepaired() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final DataSource ds = JdbcConnectionPool.create(
+                String.format("jdbc:h2:%s", this.folder.resolve("yo")),
+                "harry",
+                ""
+        );
+        execute(ds, "INSERT INTO HORCRUX_VERSIONS (number, script, active) VALUES (0, NULL, TRUE)");
+        Assertions.assertEquals(2, countActiveVersions(ds));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(1, countActiveVersions(ds));
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+    }
+
+    @Test
+    public void testV1ToV3ClasspathUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .checkFingerprint(true)
+                .withScripts(ScriptSource.classpath("dataset/v3"))
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        Assertions.assertEquals(Fingerprint.compute(Paths.get(getClass().getResource("/dataset/v3").toURI())),
+                findFingerprint(ds));
+    }
+
+    @Test
+    public void testV1ToV3ManifestUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.delete(scripts.resolve("populate.sql"));
+        Files.writeString(scripts.resolve("versions.properties"), String.join("\n",
+                "# version=script",
+                "1=",
+                "2=upgrate_to_v2.sql",
+                "3=upgrate_to_v3.sql"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(scripts)
+                .build();
+        Assertions.assertEquals(2, migration.plan(ds).getSteps().size());
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        final int versions = countVersions(ds);
+        execute(ds, "UPDATE horcrux_versions SET script = 'old.sql' WHERE number = 2");
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(versions, countVersions(ds));
+        Assertions.assertEquals("upgrate_to_v2.sql", findScript(ds, 2));
+        Assertions.assertNull(findScript(ds, 1));
+    }
+
+    @Test
+    public void testPlanMultiRowPopulate() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("populate.sql"), String.join("\n",
+                "MERGE INTO HORCRUX_VERSIONS (number, script) KEY(number) VALUES",
+                "    (1, NULL), (2, 'upgrate_to_v2.sql'), (3, 'upgrate_to_v3.sql');"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(scripts)
+                .build();
+        final MigrationPlan plan = migration.plan(ds);
+        Assertions.assertEquals(2, plan.getSteps().size(), plan.toString());
+        Assertions.assertEquals("upgrate_to_v2.sql", plan.getSteps().get(0).getScript());
+        Assertions.assertEquals("upgrate_to_v3.sql", plan.getSteps().get(1).getScript());
+        Assertions.assertEquals(1, getCurrentVersion(ds));
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+    }
+
+    @Test
+    public void testV1ToV3BundleUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path bundle = this.folder.resolve("migration.bundle");
+        MigrationBundle.compile(ScriptSource.directory(Paths.get(getClass().getResource("/dataset/v3").toURI()))).write(bundle);
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .checkFingerprint(true)
+                .withScripts(MigrationBundle.read(bundle))
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        Assertions.assertEquals(Fingerprint.compute(Paths.get(getClass().getResource("/dataset/v3").toURI())),
+                findFingerprint(ds));
     }
 
     @Test
@@ -192,14 +345,881 @@ public class MigrationTest {
         checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
     }
 
-    private static int getCurrentVersion(final DataSource ds) throws SQLException {
-        try(Connection conn = ds.getConnection()) {
-            try(PreparedStatement statement = conn.prepareStatement("SELECT number FROM horcrux_versions WHERE active IS TRUE")) {
-                try (ResultSet result = statement.executeQuery()) {
-                    if (result.next()) {
-                        return result.getInt(1);
-                    }
-                    return -1;
+    @Test
+    public void testV1ToV3BatchedUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .batchSize(100)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+    }
+
+    @Test
+    public void testV1ToV3MappedUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .mapScripts(true)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+    }
+
+    @Test
+    public void testV1ToV3PrefetchedUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .prefetch(1)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+    }
+
+    @Test
+    public void testFingerprintSkipsUpToDateDatabase() throws URISyntaxException, SQLException, IOException {
+        final Path scripts = copyScripts("/dataset/v3");
+        final DataSource ds = JdbcConnectionPool.create(
+                "jdbc:h2:mem:fingerprint;DB_CLOSE_DELAY=1",
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .checkFingerprint(true)
+                .withScripts(scripts)
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        execute(ds, "INSERT INTO horcrux_versions (number, script) VALUES (4, 'missing.sql')");
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        execute(ds, "DELETE FROM horcrux_versions WHERE number = 4");
+        Files.writeString(scripts.resolve("populate.sql"), "NOT VALID SQL;");
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Files.copy(Paths.get(getClass().getResource("/dataset/v3/populate.sql").toURI()), scripts.resolve("populate.sql"),
+                StandardCopyOption.REPLACE_EXISTING);
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+    }
+
+    @Test
+    public void testModifiedAppliedScript() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final DataSource ds = JdbcConnectionPool.create(
+                String.format("jdbc:h2:%s", this.folder.resolve("yo")),
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .verifyChecksums(true)
+                .withScripts(scripts)
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Files.writeString(scripts.resolve("upgrate_to_v2.sql"), String.join("\n",
+                "-- reformatted",
+                "CREATE TABLE IF NOT EXISTS HORCRUX_USERS (id UUID PRIMARY KEY, name VARCHAR(64), profile VARCHAR(32));"));
+        migration.update(ds);
+        Files.writeString(scripts.resolve("upgrate_to_v2.sql"), String.join("\n",
+                "CREATE TABLE IF NOT EXISTS HORCRUX_USERS (id UUID PRIMARY KEY, name VARCHAR(128), profile VARCHAR(32));"));
+        final SQLException err = Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertTrue(err.getMessage().contains("upgrate_to_v2.sql"), err.getMessage());
+    }
+
+    @Test
+    public void testUnmodifiedScriptNotHashedAgain() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final DataSource ds = JdbcConnectionPool.create(
+                String.format("jdbc:h2:%s", this.folder.resolve("yo")),
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .verifyChecksums(true)
+                .withScripts(scripts)
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(1, DataSourceUtilsTest.count(ds,
+                "SELECT COUNT(*) FROM HORCRUX_VERSIONS WHERE number = 2 AND script_version IS NOT NULL"));
+        execute(ds, "UPDATE HORCRUX_VERSIONS SET checksum = 'stale' WHERE number = 2");
+        migration.update(ds);
+        Files.setLastModifiedTime(scripts.resolve("upgrate_to_v2.sql"), FileTime.fromMillis(0));
+        final SQLException err = Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertTrue(err.getMessage().contains("upgrate_to_v2.sql"), err.getMessage());
+    }
+
+    @Test
+    public void testChecksumColumnAddedBeforeTransaction() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final DataSource ds = JdbcConnectionPool.create(
+                String.format("jdbc:h2:%s", this.folder.resolve("yo")),
+                "harry",
+                ""
+        );
+        execute(ds, "CREATE TABLE HORCRUX_PETS (id INT PRIMARY KEY)");
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v2.sql"), "INSERT INTO HORCRUX_PETS (id) VALUES (1);");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), "INSERT INTO HORCRUX_MISSING (id) VALUES (1);");
+        final int versions = countVersions(ds);
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .verifyChecksums(true)
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(1, getCurrentVersion(ds));
+        Assertions.assertEquals(versions, countVersions(ds));
+        Assertions.assertEquals(0, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_PETS"));
+        checkTable(ds, "horcrux_versions".toUpperCase(), "NUMBER", "SCRIPT", "ACTIVE", "CHECKSUM", "SCRIPT_VERSION");
+    }
+
+    @Test
+    public void testConcurrentUpdatesWithLocalLock() throws Exception {
+        final DataSource ds = JdbcConnectionPool.create(
+                "jdbc:h2:mem:locallock;DB_CLOSE_DELAY=1",
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .checkFingerprint(true)
+                .lock(MigrationLock.local("locallock"))
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        updateConcurrently(migration, ds, 8);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertTrue(migration.getLockCount() >= 1);
+        Assertions.assertTrue(migration.getMaxLockWaitTime().compareTo(migration.getLockWaitTime()) <= 0);
+    }
+
+    @Test
+    public void testConcurrentUpdatesWithTableLock() throws Exception {
+        final DataSource ds = JdbcConnectionPool.create(
+                "jdbc:h2:mem:tablelock;DB_CLOSE_DELAY=1",
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .lock(MigrationLock.table("HORCRUX_LOCK"))
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        updateConcurrently(migration, ds, 8);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(8, migration.getLockCount());
+    }
+
+    @Test
+    public void testSharedScriptCache() throws URISyntaxException, SQLException, IOException {
+        final ScriptCache cache = new ScriptCache();
+        for (int i = 0; i < 3; i++) {
+            final DataSource ds = JdbcConnectionPool.create(
+                    "jdbc:h2:mem:cached" + i + ";DB_CLOSE_DELAY=1",
+                    "harry",
+                    ""
+            );
+            final Migration migration = new Migration.Builder()
+                    .versionTable("horcrux_versions".toUpperCase())
+                    .createSchema(true)
+                    .runUpdates(true)
+                    .cache(cache)
+                    .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                    .build();
+            migration.update(ds);
+            Assertions.assertEquals(3, getCurrentVersion(ds));
+        }
+        Assertions.assertEquals(1, cache.getMisses());
+        Assertions.assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testRecordedUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = Paths.get(getClass().getResource("/dataset/v3").toURI());
+        final MigrationRecorder recorder = new MigrationRecorder();
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .listener(recorder)
+                .withScripts(scripts)
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(1, recorder.getMigrations());
+        Assertions.assertEquals(0, recorder.getFailures());
+        Assertions.assertEquals(1, recorder.getCommits());
+        Assertions.assertEquals(5, recorder.getStatements());
+        Assertions.assertTrue(recorder.getRows() >= 3);
+        Assertions.assertTrue(recorder.report().contains("upgrate_to_v3.sql"), recorder.report());
+        Assertions.assertFalse(recorder.getScriptTime(scripts.resolve("populate.sql")).isZero());
+    }
+
+    @Test
+    public void testEstimatedPlan() throws URISyntaxException, SQLException, IOException {
+        final Path scripts = Paths.get(getClass().getResource("/dataset/v3").toURI());
+        final MigrationRecorder recorder = new MigrationRecorder();
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .listener(recorder)
+                .withScripts(scripts)
+                .build();
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), this.folder.resolve("first.mv.db"));
+        migration.update(JdbcConnectionPool.create(String.format("jdbc:h2:%s", this.folder.resolve("first")), "harry", ""));
+        final Path timings = this.folder.resolve("timings.properties");
+        recorder.writeTimings(timings);
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), this.folder.resolve("second.mv.db"));
+        final DataSource ds = JdbcConnectionPool.create(String.format("jdbc:h2:%s", this.folder.resolve("second")), "harry", "");
+        final int versions = countVersions(ds);
+        final MigrationPlan plan = migration.plan(ds, MigrationRecorder.readTimings(timings));
+        Assertions.assertEquals(2, plan.getSteps().size(), plan.toString());
+        Assertions.assertEquals("upgrate_to_v2.sql", plan.getSteps().get(0).getScript());
+        Assertions.assertEquals(recorder.getAverageScriptTime(scripts.resolve("upgrate_to_v3.sql")),
+                plan.getSteps().get(1).getEstimatedDuration());
+        Assertions.assertNotNull(plan.getEstimatedDuration());
+        Assertions.assertTrue(plan.toString().contains("estimated duration"), plan.toString());
+        Assertions.assertNull(migration.plan(ds).getEstimatedDuration());
+        Assertions.assertEquals(1, getCurrentVersion(ds));
+        Assertions.assertEquals(versions, countVersions(ds));
+    }
+
+    @Test
+    public void testBaselineUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("baseline_v3.sql"), String.join("\n",
+                "CREATE TABLE IF NOT EXISTS HORCRUX_USERS (",
+                "    id UUID PRIMARY KEY,",
+                "    name VARCHAR(64),",
+                "    profile VARCHAR(32),",
+                "    email VARCHAR(32)",
+                ");"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .baseline(3, "baseline_v3.sql")
+                .baselineThreshold(1)
+                .withScripts(scripts)
+                .build();
+        final MigrationPlan plan = migration.plan(ds);
+        Assertions.assertEquals(1, plan.getSteps().size(), plan.toString());
+        Assertions.assertTrue(plan.getSteps().get(0).isBaseline());
+        Assertions.assertEquals(2, plan.getReplaced().size());
+        Assertions.assertTrue(plan.toString().contains("1 statements saved"), plan.toString());
+        Assertions.assertEquals(1, getCurrentVersion(ds));
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        Assertions.assertTrue(migration.plan(ds).isEmpty());
+    }
+
+    @Test
+    public void testPerScriptTransactions() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "INSERT INTO HORCRUX_MISSING (id) VALUES (1);",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.PER_SCRIPT)
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(2, getCurrentVersion(ds));
+        execute(ds, "CREATE TABLE HORCRUX_MISSING (id INT)");
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);",
+                "INSERT INTO HORCRUX_USERS (id, name) VALUES (RANDOM_UUID(), 'harry');",
+                "INSERT INTO HORCRUX_USERS (id, name) VALUES (RANDOM_UUID(), 'ron');",
+                "INSERT INTO HORCRUX_MISSING (id) VALUES (1);"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.CHECKPOINT)
+                .checkpointInterval(2)
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(2, getCurrentVersion(ds));
+        Assertions.assertEquals(1, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_USERS"));
+        execute(ds, "CREATE TABLE HORCRUX_MISSING (id INT)");
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(2, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_USERS"));
+        Assertions.assertEquals(0, DataSourceUtilsTest.count(ds,
+                "SELECT COUNT(*) FROM HORCRUX_VERSIONS WHERE number = " + Migration.CHECKPOINT_NUMBER));
+    }
+
+    @Test
+    public void testCheckpointAfterDeferredStatement() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);",
+                "INSERT INTO HORCRUX_USERS (id, name) VALUES (RANDOM_UUID(), 'harry');",
+                "-- horcrux:deferred",
+                "CREATE INDEX idx_users_name ON HORCRUX_USERS(name);",
+                "INSERT INTO HORCRUX_USERS (id, name) VALUES (RANDOM_UUID(), 'ron');",
+                "INSERT INTO HORCRUX_MISSING (id) VALUES (1);"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.CHECKPOINT)
+                .checkpointInterval(3)
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(2, getCurrentVersion(ds));
+        Assertions.assertEquals(1, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_USERS"));
+        execute(ds, "CREATE TABLE HORCRUX_MISSING (id INT)");
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(2, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_USERS"));
+        Assertions.assertNull(findScript(ds, Migration.DEFERRED_NUMBER));
+    }
+
+    @Test
+    public void testResumeChunkedStatement() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "CREATE TABLE HORCRUX_PETS (id INT PRIMARY KEY, n INT, d INT);",
+                "INSERT INTO HORCRUX_PETS VALUES (1, 0, 1), (2, 0, 1), (3, 0, 1), (4, 0, 0), (5, 0, 1);",
+                "-- horcrux:chunked key=id size=2",
+                "UPDATE HORCRUX_PETS SET n = n + 10 / d;"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.PER_SCRIPT)
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(2, getCurrentVersion(ds));
+        Assertions.assertEquals(2, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_PETS WHERE n = 10"));
+        execute(ds, "UPDATE HORCRUX_PETS SET d = 1 WHERE id = 4");
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(5, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_PETS WHERE n = 10"));
+        Assertions.assertEquals(0, DataSourceUtilsTest.count(ds,
+                "SELECT COUNT(*) FROM HORCRUX_VERSIONS WHERE number = " + Migration.CHUNK_NUMBER));
+    }
+
+    @Test
+    public void testChunkKeyTooLong() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "CREATE TABLE HORCRUX_PETS (id VARCHAR(128) PRIMARY KEY, n INT);",
+                "INSERT INTO HORCRUX_PETS VALUES (REPEAT('a', 70), 0), (REPEAT('b', 70), 0);",
+                "-- horcrux:chunked key=id size=1",
+                "UPDATE HORCRUX_PETS SET n = 10;"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.PER_SCRIPT)
+                .withScripts(scripts)
+                .build();
+        final SQLException err = Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertTrue(err.getMessage().contains("too long"), err.getMessage());
+        Assertions.assertEquals(2, getCurrentVersion(ds));
+        Assertions.assertEquals(0, DataSourceUtilsTest.count(ds, "SELECT COUNT(*) FROM HORCRUX_PETS WHERE n = 10"));
+        Assertions.assertNull(findScript(ds, Migration.CHUNK_NUMBER));
+    }
+
+    @Test
+    public void testParallelPhase() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "CREATE TABLE HORCRUX_GROUPS (id INT PRIMARY KEY, name VARCHAR(32));",
+                "CREATE TABLE HORCRUX_ROLES (id INT PRIMARY KEY, name VARCHAR(32));",
+                "-- horcrux:parallel",
+                "CREATE INDEX IF NOT EXISTS idx_users_name ON HORCRUX_USERS(name);",
+                "-- horcrux:parallel",
+                "CREATE INDEX IF NOT EXISTS idx_groups_name ON HORCRUX_GROUPS(name);",
+                "-- horcrux:parallel",
+                "INSERT INTO HORCRUX_ROLES (id, name) VALUES (1, 'admin');",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);"));
+        final MigrationRecorder recorder = new MigrationRecorder();
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.PER_SCRIPT)
+                .parallelConnections(2)
+                .listener(recorder)
+                .withScripts(scripts)
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        try(Connection conn = ds.getConnection()) {
+            try (ResultSet found = conn.getMetaData().getIndexInfo(null, null, "HORCRUX_GROUPS", false, false)) {
+                boolean indexed = false;
+                while (found.next()) {
+                    indexed |= "IDX_GROUPS_NAME".equals(found.getString("INDEX_NAME"));
+                }
+                Assertions.assertTrue(indexed);
+            }
+            try (Statement statement = conn.createStatement();
+                 ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM HORCRUX_ROLES")) {
+                result.next();
+                Assertions.assertEquals(1, result.getInt(1));
+            }
+        }
+        Assertions.assertTrue(recorder.report().contains("parallel time saved"), recorder.report());
+    }
+
+    @Test
+    public void testDeferredStatementRetried() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);",
+                "-- horcrux:deferred",
+                "CREATE INDEX idx_groups_name ON HORCRUX_GROUPS(name);"));
+        final List<String> deferred = new ArrayList<>();
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .listener(new MigrationListener() {
+                    @Override
+                    public void deferredStatementExecuted(final Path script, final int line, final String sql,
+                                                          final int remaining, final Duration duration) {
+                        deferred.add(sql);
+                    }
+                })
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        Assertions.assertEquals("2:" + ScriptChecksum.of("CREATE INDEX idx_groups_name ON HORCRUX_GROUPS(name)")
+                .substring(0, Migration.DEFERRED_CHECKSUM_LENGTH) + ":upgrate_to_v3.sql",
+                findScript(ds, Migration.DEFERRED_NUMBER));
+        execute(ds, "CREATE TABLE HORCRUX_GROUPS (id INT PRIMARY KEY, name VARCHAR(32))");
+        migration.update(ds);
+        Assertions.assertEquals(List.of("CREATE INDEX idx_groups_name ON HORCRUX_GROUPS(name)"), deferred);
+        Assertions.assertNull(findScript(ds, Migration.DEFERRED_NUMBER));
+        migration.update(ds);
+        Assertions.assertEquals(1, deferred.size());
+    }
+
+    @Test
+    public void testModifiedDeferredStatement() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);",
+                "-- horcrux:deferred",
+                "CREATE INDEX idx_groups_name ON HORCRUX_GROUPS(name);"));
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);",
+                "DROP TABLE HORCRUX_USERS;"));
+        final SQLException err = Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertTrue(err.getMessage().contains("modified since it was deferred"), err.getMessage());
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        Assertions.assertNotNull(findScript(ds, Migration.DEFERRED_NUMBER));
+    }
+
+    @Test
+    public void testTransientFailureRetried() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        execute(ds, "CREATE ALIAS FAIL_ONCE FOR 'com.code.fauch.horcrux.MigrationTest.failOnce'");
+        TRANSIENT_FAILURES.set(0);
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "CALL FAIL_ONCE();",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);"));
+        final MigrationRecorder recorder = new MigrationRecorder();
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.PER_SCRIPT)
+                .retry(new RetryPolicy.Builder().initialDelay(Duration.ofMillis(10)).build())
+                .listener(recorder)
+                .withScripts(scripts)
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        checkTable(ds, "horcrux_users".toUpperCase(), "ID", "NAME", "PROFILE", "EMAIL");
+        Assertions.assertEquals(1, migration.getRetryCount());
+        Assertions.assertEquals(1, recorder.getRetries());
+        Assertions.assertEquals(1, recorder.getRollbacks());
+    }
+
+    @Test
+    public void testRetryAfterDeferredStatement() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        execute(ds, "CREATE ALIAS FAIL_ONCE FOR 'com.code.fauch.horcrux.MigrationTest.failOnce'");
+        TRANSIENT_FAILURES.set(0);
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), String.join("\n",
+                "-- horcrux:deferred",
+                "CREATE INDEX idx_users_name ON HORCRUX_USERS(name);",
+                "CALL FAIL_ONCE();",
+                "ALTER TABLE HORCRUX_USERS ADD email VARCHAR(32);"));
+        final List<String> deferred = new ArrayList<>();
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .transactionMode(TransactionMode.PER_SCRIPT)
+                .retry(new RetryPolicy.Builder().initialDelay(Duration.ofMillis(10)).build())
+                .listener(new MigrationListener() {
+                    @Override
+                    public void deferredStatementExecuted(final Path script, final int line, final String sql,
+                                                          final int remaining, final Duration duration) {
+                        deferred.add(sql);
+                    }
+                })
+                .withScripts(scripts)
+                .build();
+        migration.update(ds);
+        Assertions.assertEquals(1, migration.getRetryCount());
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(List.of("CREATE INDEX idx_users_name ON HORCRUX_USERS(name)"), deferred);
+        Assertions.assertNull(findScript(ds, Migration.DEFERRED_NUMBER));
+        Assertions.assertNull(findScript(ds, Migration.DEFERRED_NUMBER + 1));
+    }
+
+    @Test
+    public void testPermanentFailureNotRetried() throws URISyntaxException, SQLException, IOException {
+        final Path scripts = copyScripts("/dataset/v3");
+        Files.writeString(scripts.resolve("upgrate_to_v3.sql"), "NOT VALID SQL;");
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final DataSource ds = JdbcConnectionPool.create(
+                String.format("jdbc:h2:%s", this.folder.resolve("yo")),
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .retry(new RetryPolicy.Builder().build())
+                .withScripts(scripts)
+                .build();
+        Assertions.assertThrows(SQLException.class, () -> migration.update(ds));
+        Assertions.assertEquals(0, migration.getRetryCount());
+    }
+
+    public static int failOnce() throws SQLException {
+        if (TRANSIENT_FAILURES.getAndIncrement() == 0) {
+            throw new SQLException("Deadlock detected", "40001");
+        }
+        return 0;
+    }
+
+    @Test
+    public void testAsyncUpgrade() throws Exception {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .queryTimeout(Duration.ofSeconds(30))
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        final MigrationRecorder progress = new MigrationRecorder();
+        migration.updateAsync(ds, null, progress).get(30, TimeUnit.SECONDS);
+        Assertions.assertEquals(3, getCurrentVersion(ds));
+        Assertions.assertEquals(1, progress.getMigrations());
+        Assertions.assertEquals(1, progress.getCommits());
+    }
+
+    @Test
+    public void testCancelledAsyncUpgrade() throws URISyntaxException, SQLException, IOException {
+        final Path dbFile = this.folder.resolve("yo.mv.db");
+        Files.copy(Paths.get(getClass().getResource("/dataset/v1/v1.mv.db").toURI()), dbFile);
+        final String url = String.format("jdbc:h2:%s", this.folder.resolve("yo"));
+        final DataSource ds = JdbcConnectionPool.create(
+                url,
+                "harry",
+                ""
+        );
+        final Migration migration = new Migration.Builder()
+                .versionTable("horcrux_versions".toUpperCase())
+                .createSchema(true)
+                .runUpdates(true)
+                .withScripts(Paths.get(getClass().getResource("/dataset/v3").toURI()))
+                .build();
+        final AtomicReference<CompletableFuture<Void>> future = new AtomicReference<>();
+        final MigrationListener progress = new MigrationListener() {
+            @Override
+            public void scriptStarted(final Path script) {
+                if (script.getFileName().toString().startsWith("upgrate")) {
+                    future.get().cancel(true);
+                }
+            }
+        };
+        final List<Runnable> tasks = new ArrayList<>();
+        future.set(migration.updateAsync(ds, tasks::add, progress));
+        Assertions.assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        Assertions.assertTrue(future.get().isCancelled());
+        Assertions.assertEquals(1, getCurrentVersion(ds));
+    }
+
+    private static void updateConcurrently(final Migration migration, final DataSource ds, final int nodes) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(nodes);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                results.add(executor.submit(() -> {
+                    migration.update(ds);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Path copyScripts(final String resource) throws URISyntaxException, IOException {
+        final Path dir = Files.createDirectory(this.folder.resolve("scripts"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(getClass().getResource(resource).toURI()))) {
+            for (Path file : files) {
+                Files.copy(file, dir.resolve(file.getFileName()));
+            }
+        }
+        return dir;
+    }
+
+    private static void execute(final DataSource ds, final String sql) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            try(Statement statement = conn.createStatement()) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private static int getCurrentVersion(final DataSource ds) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            try(PreparedStatement statement = conn.prepareStatement("SELECT number FROM horcrux_versions WHERE active IS TRUE")) {
+                try (ResultSet result = statement.executeQuery()) {
+                    if (result.next()) {
+                        return result.getInt(1);
+                    }
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private static int countVersions(final DataSource ds) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            try(PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM horcrux_versions")) {
+                try (ResultSet result = statement.executeQuery()) {
+                    result.next();
+                    return result.getInt(1);
+                }
+            }
+        }
+    }
+
+    private static int countActiveVersions(final DataSource ds) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            try(PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM horcrux_versions WHERE active IS TRUE")) {
+                try (ResultSet result = statement.executeQuery()) {
+                    result.next();
+                    return result.getInt(1);
+                }
+            }
+        }
+    }
+
+    private static String findFingerprint(final DataSource ds) throws SQLException {
+        return findScript(ds, Migration.FINGERPRINT_NUMBER);
+    }
+
+    private static String findScript(final DataSource ds, final int number) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            try(PreparedStatement statement = conn.prepareStatement("SELECT script FROM horcrux_versions WHERE number = ?")) {
+                statement.setInt(1, number);
+                try (ResultSet result = statement.executeQuery()) {
+                    return result.next() ? result.getString(1) : null;
                 }
             }
         }
@@ -0,0 +1,55 @@
+package com.code.fauch.horcrux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.time.Duration;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testTransientStates() {
+        final RetryPolicy policy = new RetryPolicy.Builder().build();
+        Assertions.assertTrue(policy.isTransient(new SQLException("deadlock", "40P01")));
+        Assertions.assertTrue(policy.isTransient(new SQLException("wrapped", "90105", new SQLException("serialization", "40001"))));
+        final SQLException chained = new SQLException("batch", "22000");
+        chained.setNextException(new SQLException("lock timeout", "55P03"));
+        Assertions.assertTrue(policy.isTransient(chained));
+        Assertions.assertFalse(policy.isTransient(new SQLException("syntax", "42000")));
+        Assertions.assertFalse(policy.isTransient(new SQLException("no state")));
+        Assertions.assertTrue(new RetryPolicy.Builder().transientStates("HYT00").build()
+                .isTransient(new SQLException("timeout", "HYT00")));
+    }
+
+    @Test
+    public void testExponentialBackoff() {
+        final RetryPolicy policy = new RetryPolicy.Builder()
+                .maxAttempts(5)
+                .initialDelay(Duration.ofMillis(100))
+                .maxDelay(Duration.ofMillis(300))
+                .budget(Duration.ofSeconds(1))
+                .build();
+        final SQLException err = new SQLException("deadlock", "40001");
+        final Duration first = policy.nextDelay(1, err, Duration.ZERO);
+        Assertions.assertTrue(first.toMillis() >= 50 && first.toMillis() <= 100, first.toString());
+        final Duration second = policy.nextDelay(2, err, Duration.ZERO);
+        Assertions.assertTrue(second.toMillis() >= 100 && second.toMillis() <= 200, second.toString());
+        final Duration capped = policy.nextDelay(4, err, Duration.ZERO);
+        Assertions.assertTrue(capped.toMillis() >= 150 && capped.toMillis() <= 300, capped.toString());
+        Assertions.assertNull(policy.nextDelay(5, err, Duration.ZERO));
+        Assertions.assertNull(policy.nextDelay(1, err, Duration.ofSeconds(1)));
+        Assertions.assertNull(policy.nextDelay(1, new SQLException("syntax", "42000"), Duration.ZERO));
+    }
+
+    @Test
+    public void testNegativeDelay() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new RetryPolicy.Builder().initialDelay(Duration.ofMillis(-1)));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new RetryPolicy.Builder().maxDelay(Duration.ofMillis(-1)));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new RetryPolicy.Builder().budget(Duration.ofMillis(-1)));
+    }
+
+}
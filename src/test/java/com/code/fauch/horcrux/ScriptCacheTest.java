@@ -0,0 +1,69 @@
+package com.code.fauch.horcrux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+public class ScriptCacheTest {
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testHitsAndMisses() throws IOException {
+        final Path file = Files.writeString(this.folder.resolve("a.sql"), "SELECT 1; SELECT 2;");
+        final ScriptCache cache = new ScriptCache(8);
+        final List<SqlStatement> first = cache.statements(file, false);
+        Assertions.assertEquals(2, first.size());
+        Assertions.assertSame(first, cache.statements(file, true));
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testModifiedScript() throws IOException {
+        final Path file = Files.writeString(this.folder.resolve("a.sql"), "SELECT 1; SELECT 2;");
+        final ScriptCache cache = new ScriptCache(8);
+        Assertions.assertEquals(2, cache.statements(file, false).size());
+        Files.writeString(file, "SELECT 1;");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+        Assertions.assertEquals(1, cache.statements(file, false).size());
+        Assertions.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        final ScriptCache cache = new ScriptCache(2);
+        final Path a = Files.writeString(this.folder.resolve("a.sql"), "SELECT 1;");
+        final Path b = Files.writeString(this.folder.resolve("b.sql"), "SELECT 2;");
+        final Path c = Files.writeString(this.folder.resolve("c.sql"), "SELECT 3;");
+        cache.statements(a, false);
+        cache.statements(b, false);
+        cache.statements(a, false);
+        cache.statements(c, false);
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(1, cache.getEvictions());
+        cache.statements(a, false);
+        Assertions.assertEquals(2, cache.getHits());
+        cache.statements(b, false);
+        Assertions.assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testFingerprint() throws IOException {
+        Files.writeString(this.folder.resolve("a.sql"), "SELECT 1;");
+        final ScriptCache cache = new ScriptCache(8);
+        final String first = cache.fingerprint(this.folder);
+        Assertions.assertEquals(first, cache.fingerprint(this.folder));
+        Assertions.assertEquals(1, cache.getHits());
+        Files.writeString(this.folder.resolve("b.sql"), "SELECT 2;");
+        Assertions.assertNotEquals(first, cache.fingerprint(this.folder));
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.code.fauch.horcrux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScriptParserTest {
+
+    private static final String SCRIPT = String.join("\n",
+            "-- leading comment; with a semicolon",
+            "CREATE TABLE pets (id INT, name VARCHAR(64)); -- trailing comment;",
+            "INSERT INTO pets VALUES (1, 'semi;colon''s');",
+            "/* block /* nested; */ still comment; */ INSERT INTO \"odd;name\" VALUES (2);",
+            "CREATE FUNCTION f() RETURNS INT AS $body$",
+            "BEGIN",
+            "  RETURN 1; -- not the end",
+            "END;",
+            "$body$ LANGUAGE plpgsql;",
+            "SELECT $$a;b$$, E'it\\'s;', $1;",
+            ";;",
+            "SELECT 1"
+    );
+
+    @Test
+    public void testReaderSplitting() throws IOException {
+        check(new ScriptParser(new StringReader(SCRIPT)));
+    }
+
+    @Test
+    public void testBufferSplitting() throws IOException {
+        check(new ScriptParser(CharBuffer.wrap(SCRIPT)));
+    }
+
+    @Test
+    public void testByteBufferSplitting() throws IOException {
+        check(new ScriptParser(ByteBuffer.wrap(SCRIPT.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEmptyScript() throws IOException {
+        try (ScriptParser parser = new ScriptParser(new StringReader("-- nothing\n/* at all */\n  \n"))) {
+            Assertions.assertNull(parser.next());
+        }
+    }
+
+    @Test
+    public void testDirective() throws IOException {
+        final String script = String.join("\n",
+                "CREATE TABLE pets (id INT, name VARCHAR(64));",
+                "  -- horcrux:chunked key=id size=2",
+                "UPDATE pets SET name = UPPER(name); -- horcrux:deferred",
+                "SELECT 1;",
+                "-- horcrux:not a directive",
+                "SELECT 2;",
+                "/* a comment */ -- horcrux:parallel",
+                "SELECT 3;",
+                "-- horcrux:deferred",
+                "SELECT 4;");
+        try (ScriptParser parser = new ScriptParser(new StringReader(script))) {
+            Assertions.assertNull(parser.next().getDirective());
+            final SqlStatement update = parser.next();
+            Assertions.assertEquals("UPDATE pets SET name = UPPER(name)", update.getSql());
+            Assertions.assertEquals("horcrux:chunked key=id size=2", update.getDirective());
+            Assertions.assertNull(parser.next().getDirective());
+            Assertions.assertNull(parser.next().getDirective());
+            Assertions.assertNull(parser.next().getDirective());
+            Assertions.assertEquals("horcrux:deferred", parser.next().getDirective());
+        }
+    }
+
+    @Test
+    public void testChecksum() throws IOException {
+        final String checksum = checksum("CREATE TABLE pets (id INT, name VARCHAR(64));\nINSERT INTO pets VALUES (1, 'Hedwig  Owl');");
+        Assertions.assertEquals(checksum, checksum(String.join("\n",
+                "-- the pets",
+                "CREATE TABLE pets (",
+                "    id INT, /* key */",
+                "    name VARCHAR(64)",
+                ");",
+                "INSERT INTO pets VALUES (1, 'Hedwig  Owl');")));
+        Assertions.assertNotEquals(checksum, checksum("CREATE TABLE pets (id INT, name VARCHAR(64));\nINSERT INTO pets VALUES (1, 'Hedwig Owl');"));
+        Assertions.assertEquals(checksum, ScriptChecksum.of(List.of(
+                new SqlStatement("CREATE TABLE pets (id INT, name VARCHAR(64))", 1),
+                new SqlStatement("INSERT INTO pets VALUES (1, 'Hedwig  Owl')", 2))));
+    }
+
+    private static String checksum(final String script) throws IOException {
+        try (ScriptParser parser = new ScriptParser(new StringReader(script)).withChecksum()) {
+            while (parser.next() != null) {
+                continue;
+            }
+            return parser.getChecksum();
+        }
+    }
+
+    private static void check(final ScriptParser parser) throws IOException {
+        final List<SqlStatement> statements = new ArrayList<>();
+        try (parser) {
+            SqlStatement next;
+            while ((next = parser.next()) != null) {
+                statements.add(next);
+            }
+        }
+        Assertions.assertEquals(6, statements.size(), statements.toString());
+        Assertions.assertEquals("CREATE TABLE pets (id INT, name VARCHAR(64))", statements.get(0).getSql());
+        Assertions.assertEquals(2, statements.get(0).getLine());
+        Assertions.assertEquals("INSERT INTO pets VALUES (1, 'semi;colon''s')", statements.get(1).getSql());
+        Assertions.assertEquals(3, statements.get(1).getLine());
+        Assertions.assertEquals("INSERT INTO \"odd;name\" VALUES (2)", statements.get(2).getSql());
+        Assertions.assertEquals(4, statements.get(2).getLine());
+        Assertions.assertEquals("CREATE FUNCTION f() RETURNS INT AS $body$\nBEGIN\n  RETURN 1; -- not the end\nEND;\n$body$ LANGUAGE plpgsql",
+                statements.get(3).getSql());
+        Assertions.assertEquals(5, statements.get(3).getLine());
+        Assertions.assertEquals("SELECT $$a;b$$, E'it\\'s;', $1", statements.get(4).getSql());
+        Assertions.assertEquals("SELECT 1", statements.get(5).getSql());
+        Assertions.assertEquals(12, statements.get(5).getLine());
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.code.fauch.horcrux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public class ScriptPrefetcherTest {
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testScriptsInOrder() throws IOException {
+        Files.writeString(this.folder.resolve("a.sql"), "SELECT 1;");
+        Files.writeString(this.folder.resolve("b.sql"), "SELECT 1; SELECT 2;");
+        Files.writeString(this.folder.resolve("c.sql"), "SELECT 1; SELECT 2; SELECT 3;");
+        final ScriptSource source = ScriptSource.directory(this.folder);
+        try (ScriptPrefetcher prefetcher = new ScriptPrefetcher(source, List.of("a.sql", "b.sql", "c.sql"), 1, null, false)) {
+            Assertions.assertEquals(1, prefetcher.next().size());
+            Assertions.assertEquals(2, prefetcher.next().size());
+            Assertions.assertEquals(3, prefetcher.next().size());
+            Assertions.assertThrows(IllegalStateException.class, prefetcher::next);
+        }
+    }
+
+    @Test
+    public void testMissingScriptFailsInTurn() throws IOException {
+        final ScriptSource source = ScriptSource.memory(Map.of("a.sql", "SELECT 1;"));
+        final ScriptCache cache = new ScriptCache(8);
+        try (ScriptPrefetcher prefetcher = new ScriptPrefetcher(source, List.of("a.sql", "missing.sql"), 4, cache, true)) {
+            Assertions.assertEquals(1, prefetcher.next().size());
+            Assertions.assertThrows(IOException.class, prefetcher::next);
+        }
+        Assertions.assertEquals(1, cache.size());
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.code.fauch.horcrux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class ScriptSourceTest {
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testMemorySource() throws IOException {
+        final ScriptSource source = ScriptSource.memory(Map.of("b.sql", "SELECT 2;", "a.sql", "SELECT 1;"));
+        Assertions.assertEquals(List.of("a.sql", "b.sql"), source.list());
+        try (InputStream input = source.open("b.sql")) {
+            Assertions.assertEquals("SELECT 2;", new String(input.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        Assertions.assertThrows(NoSuchFileException.class, () -> source.open("c.sql"));
+    }
+
+    @Test
+    public void testDirectoryIndex() throws IOException {
+        Files.writeString(this.folder.resolve("b.sql"), "SELECT 2;");
+        Files.writeString(this.folder.resolve("a.sql"), "SELECT 1;");
+        final Path index = ScriptSource.writeIndex(this.folder);
+        Assertions.assertEquals("a.sql\nb.sql\n", Files.readString(index));
+        Assertions.assertEquals(List.of("a.sql", "b.sql"), ScriptSource.directory(this.folder).list());
+    }
+
+    @Test
+    public void testJarSource() throws IOException {
+        Files.writeString(this.folder.resolve("a.sql"), "SELECT 1; SELECT 2;");
+        Files.writeString(this.folder.resolve("b.sql"), "SELECT 3;");
+        ScriptSource.writeIndex(this.folder);
+        final Path jar = Files.createDirectory(this.folder.resolve("lib")).resolve("scripts.jar");
+        try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (String name : List.of("a.sql", "b.sql", ScriptSource.INDEX)) {
+                output.putNextEntry(new JarEntry("db/" + name));
+                Files.copy(this.folder.resolve(name), output);
+                output.closeEntry();
+            }
+        }
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {jar.toUri().toURL()}, null)) {
+            final ScriptSource source = ScriptSource.classpath(loader, "db");
+            Assertions.assertEquals(List.of("a.sql", "b.sql"), source.list());
+            Assertions.assertEquals(2, ScriptParser.parse(source, "a.sql", true).size());
+            Assertions.assertThrows(NoSuchFileException.class, () -> source.open("c.sql"));
+            Assertions.assertEquals(Fingerprint.compute(this.folder), Fingerprint.compute(source));
+        }
+    }
+
+    @Test
+    public void testClasspathRootSource() throws IOException {
+        final Path classes = Files.createDirectory(this.folder.resolve("classes"));
+        Files.writeString(classes.resolve("schema.sql"), "SELECT 1;");
+        Files.writeString(classes.resolve(VersionChain.MANIFEST), "1=\n");
+        Files.writeString(classes.resolve("application.properties"), "name=harry\n");
+        Files.createDirectory(classes.resolve("db"));
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {classes.toUri().toURL()}, null)) {
+            Assertions.assertEquals(List.of("schema.sql", VersionChain.MANIFEST), ScriptSource.classpath(loader, "").list());
+        }
+    }
+
+}